@@ -0,0 +1,398 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/*
+    Checks the bulk inserts of WeatherProvider, and benchmarks the compiled statements they store
+    weather rows through against the db.insert of every row they used, and updating changed rows
+    in place against replacing them.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final String BENCHMARK_DATABASE_NAME = "bulk_insert_benchmark.db";
+
+    private static final int BENCHMARK_LOCATIONS = 1000;
+    private static final int BENCHMARK_DAYS = 14;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    // Not normalized, so that both ways of inserting have to normalize it.
+    private static final long FIRST_DAY = 1419033600000L + 12 * 60 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testBulkInsertLocations() {
+        ContentValues[] locations = new ContentValues[2];
+        locations[0] = TestUtilities.createNorthPoleLocationValues();
+        locations[1] = new ContentValues(locations[0]);
+        locations[1].put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "12345");
+
+        int inserted = mContext.getContentResolver().bulkInsert(
+                WeatherContract.LocationEntry.CONTENT_URI, locations);
+        assertEquals(2, inserted);
+        long locationId = queryNorthPoleLocation(locations[0]);
+
+        assertEquals("Error: bulk inserting stored locations again should write nothing",
+                0, mContext.getContentResolver().bulkInsert(
+                        WeatherContract.LocationEntry.CONTENT_URI, locations));
+
+        // The same setting with another city name refreshes the stored location in place.
+        ContentValues renamed = new ContentValues(locations[0]);
+        renamed.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Elsewhere");
+        assertEquals(1, mContext.getContentResolver().bulkInsert(
+                WeatherContract.LocationEntry.CONTENT_URI, new ContentValues[]{renamed}));
+        assertEquals("Error: a refreshed location should keep its _id",
+                locationId, queryNorthPoleLocation(renamed));
+    }
+
+    public void testBulkInsertLocationWithoutSettingFails() {
+        ContentValues[] locations = new ContentValues[2];
+        locations[0] = TestUtilities.createNorthPoleLocationValues();
+        locations[1] = new ContentValues(locations[0]);
+        locations[1].remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        try {
+            mContext.getContentResolver().bulkInsert(
+                    WeatherContract.LocationEntry.CONTENT_URI, locations);
+            fail("Error: a location without a setting should fail the bulk insert");
+        } catch (android.database.SQLException e) {
+            // Expected.
+        }
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: a failed bulk insert should store none of its locations",
+                0, cursor.getCount());
+        cursor.close();
+
+        // Nor should it leave the _id it gave the location behind for the next one to resolve.
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.buildLocationUpsertUri(), locations[0]));
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, null,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)}, null);
+        assertEquals("Error: the upserted location's _id should be stored", 1,
+                cursor.getCount());
+        cursor.close();
+    }
+
+    /**
+     * @return the _id of the stored North Pole location, after checking it holds the values.
+     */
+    private long queryNorthPoleLocation(ContentValues expected) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, null,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null);
+        assertTrue(cursor.moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: the stored location should hold the values "
+                + "last inserted", cursor, expected);
+        long _id = cursor.getLong(cursor.getColumnIndex(WeatherContract.LocationEntry._ID));
+        cursor.close();
+        return _id;
+    }
+
+    public void testBulkInsertNormalizesDates() {
+        long locationId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] days = new ContentValues[2];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createWeatherValues(locationId);
+            days[i].put(WeatherContract.WeatherEntry.COLUMN_DATE, FIRST_DAY + i * DAY_MILLIS);
+        }
+
+        assertEquals(2, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, days));
+        assertEquals("Error: the values passed in should be left as they were",
+                FIRST_DAY, (long) days[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(WeatherContract.normalizeDate(FIRST_DAY), cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals("Error: unchanged days should not be written again",
+                0, mContext.getContentResolver().bulkInsert(
+                        WeatherContract.WeatherEntry.CONTENT_URI, days));
+    }
+
+    public void testBenchmarkBulkInsert() {
+        SQLiteDatabase db = openBenchmarkDatabase();
+        try {
+            int rows = BENCHMARK_LOCATIONS * BENCHMARK_DAYS;
+
+            long start = System.nanoTime();
+            assertEquals(rows, replaceEveryRow(db, createRows(0)));
+            long everyRow = System.nanoTime() - start;
+            String stored = dumpStoredRows(db);
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+
+            ContentValues[] values = createRows(0);
+            start = System.nanoTime();
+            assertEquals(rows, insertCompiled(db, values));
+            long compiled = System.nanoTime() - start;
+            assertEquals("Error: both ways should store the same rows", stored, dumpStoredRows(db));
+
+            // The common case of a sync: the same forecast again, every row skipped.
+            start = System.nanoTime();
+            assertEquals(0, insertCompiled(db, values));
+            long unchanged = System.nanoTime() - start;
+
+            Log.d(LOG_TAG, rows + " weather rows; db.insert of every row "
+                    + getRowsPerSecond(rows, everyRow) + " rows/s, compiled statement "
+                    + getRowsPerSecond(rows, compiled) + " rows/s, unchanged rows skipped at "
+                    + getRowsPerSecond(rows, unchanged) + " rows/s");
+        } finally {
+            closeBenchmarkDatabase(db);
+        }
+    }
+
+    /*
+        Stores a forecast in which every day changed over one already stored, by replacing the
+        rows and by updating them in place, and compares the bytes written, the time taken and
+        what becomes of the rows' _ids.
+     */
+    public void testBenchmarkChangedForecastWrites() {
+        int rows = BENCHMARK_LOCATIONS * BENCHMARK_DAYS;
+
+        SQLiteDatabase db = openBenchmarkDatabase();
+        long replacedBytes;
+        long replacedMillis;
+        long replacedSequence;
+        try {
+            assertEquals(rows, replaceEveryRow(db, createRows(0)));
+            String before = dumpStoredIds(db);
+            long sequence = getWeatherSequence(db);
+            ContentValues[] changed = createRows(1);
+            long bytes = getWrittenBytes();
+            long start = System.nanoTime();
+            assertEquals(rows, replaceEveryRow(db, changed));
+            replacedMillis = (System.nanoTime() - start) / 1000000;
+            replacedBytes = getWrittenBytes() - bytes;
+            replacedSequence = getWeatherSequence(db) - sequence;
+            assertFalse("Error: replaced rows should have new _ids",
+                    before.equals(dumpStoredIds(db)));
+        } finally {
+            closeBenchmarkDatabase(db);
+        }
+
+        db = openBenchmarkDatabase();
+        long updatedBytes;
+        long updatedMillis;
+        try {
+            assertEquals(rows, insertCompiled(db, createRows(0)));
+            String before = dumpStoredIds(db);
+            long sequence = getWeatherSequence(db);
+            ContentValues[] changed = createRows(1);
+            long bytes = getWrittenBytes();
+            long start = System.nanoTime();
+            assertEquals(rows, insertCompiled(db, changed));
+            updatedMillis = (System.nanoTime() - start) / 1000000;
+            updatedBytes = getWrittenBytes() - bytes;
+            assertEquals("Error: rows updated in place should keep their _ids",
+                    before, dumpStoredIds(db));
+            assertEquals(sequence, getWeatherSequence(db));
+        } finally {
+            closeBenchmarkDatabase(db);
+        }
+
+        Log.d(LOG_TAG, rows + " changed weather rows; replaced: " + replacedBytes
+                + " bytes written in " + replacedMillis + " ms, " + replacedSequence
+                + " new _ids; updated in place: " + updatedBytes + " bytes written in "
+                + updatedMillis + " ms, no new _ids");
+    }
+
+    private SQLiteDatabase openBenchmarkDatabase() {
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // The journal mode WeatherDbHelper opens the database in.
+            WeatherDbHelper.enableWriteAheadLogging(db);
+        }
+        new WeatherDbHelper(mContext).onCreate(db);
+        db.beginTransaction();
+        try {
+            for (int location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+                ContentValues values = new ContentValues();
+                values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        "location " + location);
+                values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City");
+                values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 0);
+                values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 0);
+                db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+    private void closeBenchmarkDatabase(SQLiteDatabase db) {
+        db.close();
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+    }
+
+    private static String dumpStoredRows(SQLiteDatabase db) {
+        return dump(db, WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + ", "
+                + WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH);
+    }
+
+    private static String dumpStoredIds(SQLiteDatabase db) {
+        return dump(db, WeatherContract.WeatherEntry._ID + ", "
+                + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DATE);
+    }
+
+    private static String dump(SQLiteDatabase db, String columns) {
+        Cursor cursor = db.rawQuery("SELECT " + columns + " FROM "
+                + WeatherContract.WeatherEntry.TABLE_NAME + " ORDER BY "
+                + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DATE, null);
+        try {
+            return DatabaseUtils.dumpCursorToString(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the last _id the weather table handed out.
+     */
+    private static long getWeatherSequence(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME});
+    }
+
+    /**
+     * @return the bytes the process has written so far, or 0 if the kernel doesn't say.
+     */
+    private static long getWrittenBytes() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/io"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Bytes passed to write(), whether they reached the storage yet or not.
+                if (line.startsWith("wchar:")) {
+                    return Long.parseLong(line.substring("wchar:".length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Can't read the bytes written: " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to read anyway.
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static long getRowsPerSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(1, nanos);
+    }
+
+    /**
+     * @param round changes every row's high temperature, so that each round differs.
+     */
+    private static ContentValues[] createRows(int round) {
+        ContentValues[] values = new ContentValues[BENCHMARK_LOCATIONS * BENCHMARK_DAYS];
+        for (int location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+            for (int day = 0; day < BENCHMARK_DAYS; day++) {
+                ContentValues value = TestUtilities.createWeatherValues(location);
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_MILLIS);
+                value.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day + round);
+                values[(location - 1) * BENCHMARK_DAYS + day] = value;
+            }
+        }
+        return values;
+    }
+
+    private static int insertCompiled(SQLiteDatabase db, ContentValues[] values) {
+        db.beginTransaction();
+        try {
+            int count = WeatherProvider.insertWeatherRows(db, values);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Stores the rows the way WeatherProvider.bulkInsert used to: the date normalized and the
+     * content hash put into each row's values, and every row that changed inserted with
+     * db.insert, for the table's ON CONFLICT REPLACE to replace the stored one.
+     */
+    private static int replaceEveryRow(SQLiteDatabase db, ContentValues[] values) {
+        db.beginTransaction();
+        SQLiteStatement findRow = db.compileStatement(WeatherUpsert.FIND_WEATHER_ROW_SQL);
+        try {
+            int count = 0;
+            for (ContentValues value : values) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                long contentHash = WeatherProvider.computeContentHash(value);
+                findRow.bindLong(1, contentHash);
+                findRow.bindLong(2, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+                findRow.bindLong(3, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                try {
+                    if (findRow.simpleQueryForLong() < 0) {
+                        // Stored with these values already.
+                        continue;
+                    }
+                } catch (SQLiteDoneException e) {
+                    // Not stored yet.
+                }
+                value.put(WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH, contentHash);
+                if (db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            findRow.close();
+            db.endTransaction();
+        }
+    }
+}
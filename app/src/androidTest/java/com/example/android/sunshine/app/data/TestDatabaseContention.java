@@ -0,0 +1,188 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Benchmarks reading a location's forecast while a sync writes, the way the forecast list,
+    the widgets and Muzei do: a few reader threads query while a writer keeps replacing
+    locations' forecasts in transactions.  It reports the median and 99th percentile query
+    latency in the rollback journal mode the database used to be in, and in write-ahead
+    logging mode as WeatherDbHelper opens it now.
+ */
+public class TestDatabaseContention extends AndroidTestCase {
+    private static final String LOG_TAG = TestDatabaseContention.class.getSimpleName();
+
+    private static final String BENCHMARK_DATABASE_NAME = "contention_benchmark.db";
+
+    private static final int LOCATIONS = 100;
+    private static final int DAYS = 14;
+    private static final int READERS = 3;
+    private static final int QUERIES_PER_READER = 300;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+
+    private static final String QUERY =
+            WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(null,
+                    WeatherProvider.sWeatherLocationIdWithStartDateSelection, null, null,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " ASC", null);
+
+    public void testWriteAheadLoggingIsEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)
+                    .toLowerCase(Locale.US));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testBenchmarkReadsDuringWrites() throws Exception {
+        long[] journal = run(false);
+        Log.d(LOG_TAG, "Rollback journal: " + describe(journal));
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long[] wal = run(true);
+        Log.d(LOG_TAG, "Write-ahead log: " + describe(wal));
+    }
+
+    private static String describe(long[] latencies) {
+        return latencies.length + " queries by " + READERS + " readers, p50 "
+                + percentile(latencies, 50) + " us, p99 " + percentile(latencies, 99) + " us";
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * @return the latencies of every reader's queries, in microseconds and sorted.
+     */
+    private long[] run(boolean writeAheadLogging) throws Exception {
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        final SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            if (writeAheadLogging) {
+                WeatherDbHelper.enableWriteAheadLogging(db);
+            }
+            new WeatherDbHelper(mContext).onCreate(db);
+            db.beginTransaction();
+            try {
+                for (int location = 1; location <= LOCATIONS; location++) {
+                    ContentValues values = new ContentValues();
+                    values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                            "location " + location);
+                    values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City");
+                    values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 0);
+                    values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, 0);
+                    db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                    writeForecast(db, location, 0);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 1; !done.get(); round++) {
+                        // One sync: every location's days replaced in one transaction.
+                        db.beginTransaction();
+                        try {
+                            for (int location = 1; location <= LOCATIONS; location++) {
+                                writeForecast(db, location, round);
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                    }
+                }
+            };
+
+            final long[][] latencies = new long[READERS][QUERIES_PER_READER];
+            final Throwable[] failure = new Throwable[1];
+            Thread[] readers = new Thread[READERS];
+            for (int i = 0; i < READERS; i++) {
+                final int reader = i;
+                readers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int query = 0; query < QUERIES_PER_READER; query++) {
+                                String location = Integer.toString(
+                                        1 + (reader * 31 + query * 7) % LOCATIONS);
+                                long start = System.nanoTime();
+                                Cursor cursor = db.rawQuery(QUERY,
+                                        new String[]{location, Long.toString(FIRST_DAY)});
+                                int count = cursor.getCount();
+                                cursor.close();
+                                latencies[reader][query] = (System.nanoTime() - start) / 1000;
+                                if (count != DAYS) {
+                                    throw new AssertionError("Read " + count + " days");
+                                }
+                            }
+                        } catch (Throwable t) {
+                            failure[0] = t;
+                        }
+                    }
+                };
+            }
+
+            writer.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            done.set(true);
+            writer.join();
+            if (failure[0] != null) {
+                throw new AssertionError(failure[0]);
+            }
+
+            long[] sorted = new long[READERS * QUERIES_PER_READER];
+            for (int i = 0; i < READERS; i++) {
+                System.arraycopy(latencies[i], 0, sorted, i * QUERIES_PER_READER,
+                        QUERIES_PER_READER);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        } finally {
+            db.close();
+            mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        }
+    }
+
+    private static void writeForecast(SQLiteDatabase db, long location, int round) {
+        db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(location)});
+        for (int day = 0; day < DAYS; day++) {
+            ContentValues values = TestUtilities.createWeatherValues(location);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, FIRST_DAY + day * DAY_MILLIS);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, round % 40);
+            db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import java.util.HashSet;
 
@@ -26,6 +27,17 @@ public class TestDb extends AndroidTestCase {
 
     public static final String LOG_TAG = TestDb.class.getSimpleName();
 
+    private static final int BENCHMARK_LOCATIONS = 1000;
+    private static final int BENCHMARK_DAYS = 14;
+    private static final int BENCHMARK_QUERIES = 200;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+
+    private static final String WEATHER_SORT_ORDER =
+            WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String HOURLY_SORT_ORDER = WeatherContract.HourlyEntry.TABLE_NAME + "."
+            + WeatherContract.HourlyEntry.COLUMN_DATE + " ASC";
+
     // Since we want each test to start with a clean slate
     void deleteTheDatabase() {
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
@@ -55,6 +67,7 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -234,4 +247,204 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    /*
+        Runs EXPLAIN QUERY PLAN on every kind of query and delete the provider makes, on a
+        database of many locations, and fails if one of them scans a table or sorts in a
+        temporary B-tree.
+     */
+    public void testQueryPlans() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            populate(db, 50);
+            String location = "location 7";
+            String locationId = Long.toString(findLocationId(db, location));
+            String date = Long.toString(FIRST_DAY + 3 * DAY_MILLIS);
+            String endDate = Long.toString(FIRST_DAY + 5 * DAY_MILLIS);
+            String hourlyRange = " AND " + WeatherContract.HourlyEntry.TABLE_NAME + "."
+                    + WeatherContract.HourlyEntry.COLUMN_DATE + " >= ? AND "
+                    + WeatherContract.HourlyEntry.TABLE_NAME + "."
+                    + WeatherContract.HourlyEntry.COLUMN_DATE + " <= ?";
+
+            // A location's days, before and after its _id is known to the provider.
+            assertIndexed(db, buildWeatherQuery(WeatherProvider.sLocationSettingSelection),
+                    location);
+            assertIndexed(db, buildWeatherQuery(
+                    WeatherProvider.sLocationSettingWithStartDateSelection), location, date);
+            assertIndexed(db, buildWeatherQuery(WeatherProvider.sLocationSettingAndDaySelection),
+                    location, date);
+            assertIndexed(db, buildWeatherQuery(WeatherProvider.sWeatherLocationIdSelection),
+                    locationId);
+            assertIndexed(db, buildWeatherQuery(
+                    WeatherProvider.sWeatherLocationIdWithStartDateSelection), locationId, date);
+            assertIndexed(db, buildWeatherQuery(
+                    WeatherProvider.sWeatherLocationIdAndDaySelection), locationId, date);
+
+            assertIndexed(db, buildHourlyQuery(WeatherProvider.sLocationSettingSelection
+                    + hourlyRange), location, date, endDate);
+            assertIndexed(db, buildHourlyQuery(WeatherProvider.sHourlyLocationIdSelection
+                    + hourlyRange), locationId, date, endDate);
+
+            assertIndexed(db, WeatherProvider.FIND_LOCATION_SQL, location);
+            assertIndexed(db, "SELECT * FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                    + " WHERE " + WeatherContract.LocationEntry._ID + " = ?", locationId);
+
+            String plan = assertIndexed(db, WeatherUpsert.FIND_WEATHER_ROW_SQL,
+                    "1", locationId, date);
+            assertTrue("Error: Finding a stored day should not touch the table: " + plan,
+                    plan.contains("COVERING INDEX"));
+            assertIndexed(db, WeatherProvider.UNCHANGED_HOURLY_ROW_SQL, locationId, date, "0");
+
+            // The retention deletes of every sync.
+            assertIndexed(db, "DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME + " WHERE "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?", date);
+            assertIndexed(db, "DELETE FROM " + WeatherContract.HourlyEntry.TABLE_NAME + " WHERE "
+                    + WeatherContract.HourlyEntry.COLUMN_DATE + " <= ?", date);
+
+            // Reading every location, newest first, has to scan, but needs no sort.
+            plan = explain(db, "SELECT * FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                    + " ORDER BY " + WeatherContract.LocationEntry._ID + " DESC");
+            assertFalse("Error: " + plan, plan.contains("TEMP B-TREE"));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+        Times the query of a location's forecast at 1000 locations, by location setting and by
+        _id, with the location and date index and without it.
+     */
+    public void testBenchmarkLocationQueries() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            populate(db, BENCHMARK_LOCATIONS);
+            String startDate = Long.toString(FIRST_DAY);
+
+            long bySetting = timeQueries(db,
+                    buildWeatherQuery(WeatherProvider.sLocationSettingWithStartDateSelection),
+                    false, startDate);
+            long byId = timeQueries(db,
+                    buildWeatherQuery(WeatherProvider.sWeatherLocationIdWithStartDateSelection),
+                    true, startDate);
+
+            db.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+            long bySettingUnindexed = timeQueries(db,
+                    buildWeatherQuery(WeatherProvider.sLocationSettingWithStartDateSelection),
+                    false, startDate);
+            long byIdUnindexed = timeQueries(db,
+                    buildWeatherQuery(WeatherProvider.sWeatherLocationIdWithStartDateSelection),
+                    true, startDate);
+
+            Log.d(LOG_TAG, BENCHMARK_LOCATIONS + " locations of " + BENCHMARK_DAYS + " days, "
+                    + BENCHMARK_QUERIES + " queries; a location's days by setting "
+                    + bySetting / BENCHMARK_QUERIES + " us, by _id " + byId / BENCHMARK_QUERIES
+                    + " us; without the location and date index "
+                    + bySettingUnindexed / BENCHMARK_QUERIES + " us and "
+                    + byIdUnindexed / BENCHMARK_QUERIES + " us");
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String buildWeatherQuery(String selection) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(
+                null, selection, null, null, WEATHER_SORT_ORDER, null);
+    }
+
+    private static String buildHourlyQuery(String selection) {
+        return WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(
+                null, selection, null, null, HOURLY_SORT_ORDER, null);
+    }
+
+    /**
+     * @return the steps of the plan SQLite picks for {@code sql}, one per line.
+     */
+    private static String explain(SQLiteDatabase db, String sql, String... args) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    private static String assertIndexed(SQLiteDatabase db, String sql, String... args) {
+        String plan = explain(db, sql, args);
+        for (String step : plan.split("\n")) {
+            assertFalse("Error: " + sql + " scans a table: " + plan, step.startsWith("SCAN"));
+            assertFalse("Error: " + sql + " sorts in a temporary B-tree: " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+        return plan;
+    }
+
+    private static long findLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.rawQuery(WeatherProvider.FIND_LOCATION_SQL,
+                new String[]{locationSetting});
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores the forecast of {@code locations} locations, and the 3-hour days of each.
+     */
+    private static void populate(SQLiteDatabase db, int locations) {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < locations; i++) {
+                ContentValues location = new ContentValues();
+                location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        "location " + i);
+                location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "City " + i);
+                location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, i % 180 - 90);
+                location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, i % 360 - 180);
+                long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                        location);
+                for (int day = 0; day < BENCHMARK_DAYS; day++) {
+                    ContentValues weather = TestUtilities.createWeatherValues(locationRowId);
+                    weather.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            FIRST_DAY + day * DAY_MILLIS);
+                    db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weather);
+                }
+                for (int day = 0; day < 5; day++) {
+                    ContentValues hourly = new ContentValues();
+                    hourly.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+                    hourly.put(WeatherContract.HourlyEntry.COLUMN_DATE,
+                            FIRST_DAY + day * DAY_MILLIS);
+                    hourly.put(WeatherContract.HourlyEntry.COLUMN_SLOTS,
+                            new HourlySlots.Builder().add(0, 10, 800, 50, 2, 90).build());
+                    db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, hourly);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the microseconds {@link #BENCHMARK_QUERIES} queries of a location's days took.
+     */
+    private static long timeQueries(SQLiteDatabase db, String sql, boolean byId,
+                                    String startDate) {
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_QUERIES; i++) {
+            // Spread over the locations, so the cache doesn't hold just one.
+            int location = (i * 7919) % BENCHMARK_LOCATIONS;
+            String key = byId ? Integer.toString(location + 1) : "location " + location;
+            Cursor cursor = db.rawQuery(sql, new String[]{key, startDate});
+            assertEquals(BENCHMARK_DAYS, cursor.getCount());
+            cursor.close();
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
 }
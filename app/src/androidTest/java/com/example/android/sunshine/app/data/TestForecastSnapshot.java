@@ -0,0 +1,203 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.WeatherInformation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks the binary forecast snapshot the sync writes, and benchmarks reading today's values
+    from it against querying the provider for them.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+    private static final String LOG_TAG = TestForecastSnapshot.class.getSimpleName();
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final int DAYS = 14;
+    private static final int BENCHMARK_READS = 200;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ForecastSnapshot.clear(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ForecastSnapshot.clear(mContext);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    private static List<ContentValues> createDays(long firstDay, long locationRowId) {
+        List<ContentValues> rows = new ArrayList<ContentValues>(DAYS);
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues row = TestUtilities.createWeatherValues(locationRowId);
+            row.put(WeatherContract.WeatherEntry.COLUMN_DATE, firstDay + i * DAY_MILLIS);
+            row.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20 + i + 0.25);
+            row.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public void testSnapshotRoundTrip() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        List<ContentValues> rows = createDays(today, 1);
+        rows.get(1).put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                "thunderstorm with heavy drizzle and then some more of it");
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION, rows, 1234L,
+                false));
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull("Error: The snapshot just written could not be read", snapshot);
+        assertEquals(1234L, snapshot.getWrittenAt());
+        assertEquals(DAYS, snapshot.size());
+        assertEquals(0, snapshot.findDay(System.currentTimeMillis()));
+        assertEquals(3, snapshot.findDay(System.currentTimeMillis() + 3 * DAY_MILLIS));
+
+        assertEquals(today, snapshot.getDate(0));
+        assertEquals(800, snapshot.getWeatherId(0));
+        assertEquals(20.25, snapshot.getHigh(0), 0);
+        assertEquals(65, snapshot.getLow(0), 0);
+        assertEquals(1.3, snapshot.getPressure(0), 0);
+        assertEquals(5.5, snapshot.getWindSpeed(0), 0);
+        assertEquals(1.1, snapshot.getWindDirection(0), 0);
+        assertEquals("Asteroids", snapshot.getDescription(0));
+        // Too long for its record, so cut short.
+        assertTrue(snapshot.getDescription(1).startsWith("thunderstorm with heavy drizzle"));
+
+        assertNull(ForecastSnapshot.read(mContext, "Somewhere else"));
+    }
+
+    public void testNearTermSnapshotKeepsLaterDays() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createDays(today, 1), today, false));
+
+        List<ContentValues> nearTerm = createDays(today, 1).subList(0, 3);
+        for (ContentValues row : nearTerm) {
+            row.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION, nearTerm,
+                today + 1, true));
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals(DAYS, snapshot.size());
+        assertEquals(today + 1, snapshot.getWrittenAt());
+        for (int i = 0; i < DAYS; i++) {
+            assertEquals(today + i * DAY_MILLIS, snapshot.getDate(i));
+            assertEquals(800 + i, snapshot.getWeatherId(i));
+            assertEquals(i < 3 ? "Meteors" : "Asteroids", snapshot.getDescription(i));
+        }
+    }
+
+    public void testStaleSnapshotIsNotUsed() {
+        long longAgo = WeatherContract.normalizeDate(System.currentTimeMillis()) - 30 * DAY_MILLIS;
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createDays(longAgo, 1), longAgo, false));
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals("Error: A snapshot ending before today should not have a today",
+                -1, snapshot.findDay(System.currentTimeMillis()));
+    }
+
+    public void testCorruptSnapshotIsNotUsed() throws Exception {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createDays(today, 1), today, false));
+
+        File file = new File(new File(mContext.getFilesDir(), "forecast_snapshots"),
+                TestUtilities.TEST_LOCATION);
+        assertTrue(file.exists());
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertNull("Error: A snapshot of the wrong size should be ignored",
+                ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION));
+    }
+
+    public void testFailedWriteDropsPreviousSnapshot() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createDays(today, 1), today, false));
+
+        // A directory where the new snapshot is written first makes the write fail.
+        File temp = new File(new File(mContext.getFilesDir(), "forecast_snapshots"),
+                TestUtilities.TEST_LOCATION + ".tmp");
+        assertTrue(temp.mkdir());
+        try {
+            assertFalse(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                    createDays(today, 1), today + 1, false));
+        } finally {
+            temp.delete();
+        }
+        assertNull("Error: A snapshot older than the stored rows should not be left behind",
+                ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION));
+    }
+
+    public void testRecreatedTablesDropSnapshots() {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION,
+                createDays(today, 1), today, false));
+
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+        } finally {
+            db.close();
+        }
+        assertNull("Error: Snapshots should go with the tables they were taken of",
+                ForecastSnapshot.read(mContext, TestUtilities.TEST_LOCATION));
+    }
+
+    public void testBenchmarkSnapshotRead() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        List<ContentValues> rows = createDays(today, locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+        assertTrue(ForecastSnapshot.write(mContext, TestUtilities.TEST_LOCATION, rows,
+                System.currentTimeMillis(), false));
+
+        WeatherInformation fromProvider = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_READS; i++) {
+            fromProvider = WeatherInformation.getWeatherInformation(TestUtilities.TEST_LOCATION,
+                    mContext.getContentResolver());
+        }
+        long providerMicros = (System.nanoTime() - start) / 1000;
+
+        WeatherInformation fromSnapshot = null;
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_READS; i++) {
+            fromSnapshot = WeatherInformation.getWeatherInformation(mContext,
+                    TestUtilities.TEST_LOCATION);
+        }
+        long snapshotMicros = (System.nanoTime() - start) / 1000;
+
+        Log.d(LOG_TAG, "Today's values, " + BENCHMARK_READS + " reads: provider "
+                + providerMicros / BENCHMARK_READS + " us a read, snapshot "
+                + snapshotMicros / BENCHMARK_READS + " us a read");
+
+        assertNotNull(fromProvider);
+        assertNotNull(fromSnapshot);
+        assertEquals(fromProvider.getMaxTemp(), fromSnapshot.getMaxTemp(), 0);
+        assertEquals(fromProvider.getMinTemp(), fromSnapshot.getMinTemp(), 0);
+        assertEquals(fromProvider.getDescription(), fromSnapshot.getDescription());
+        assertEquals(fromProvider.getWeatherArtResourceId(),
+                fromSnapshot.getWeatherArtResourceId());
+    }
+}
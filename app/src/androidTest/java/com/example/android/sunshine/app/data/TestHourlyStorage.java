@@ -0,0 +1,157 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/*
+    Checks the packing of the 3-hour slots, and benchmarks storing a 5 day 3-hour forecast the
+    way the hourly table does, one row per day, against one row per slot: ingest time and
+    database size per location.
+ */
+public class TestHourlyStorage extends AndroidTestCase {
+    private static final String LOG_TAG = TestHourlyStorage.class.getSimpleName();
+
+    private static final int BENCHMARK_LOCATIONS = 50;
+    private static final int DAYS = 5;
+    private static final int SLOTS_PER_DAY = 8;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long FIRST_DAY = WeatherContract.normalizeDate(1419033600000L);
+
+    private static final String BENCHMARK_DATABASE_NAME = "hourly_benchmark.db";
+    private static final String NAIVE_TABLE_NAME = "hourly_per_slot";
+
+    public void testSlotsRoundTrip() {
+        HourlySlots.Builder builder = new HourlySlots.Builder()
+                .add(0, -12.34, 600, 85, 3.3, 0)
+                .add(3, 41.06, 800, 0, 127.5, 358)
+                .add(21, 0, 211, 100, 300, 360);
+        HourlySlots slots = new HourlySlots(builder.build());
+
+        assertEquals(3, slots.size());
+        assertEquals(3 * HourlySlots.SLOT_BYTES, builder.build().length);
+
+        assertEquals(0, slots.getHour(0));
+        assertEquals(-12.3, slots.getTemperature(0), 0.001);
+        assertEquals(600, slots.getWeatherId(0));
+        assertEquals(85, slots.getHumidity(0));
+        assertEquals(3.5, slots.getWindSpeed(0), 0.001);
+        assertEquals(0, slots.getWindDirection(0), 0.001);
+
+        assertEquals(3, slots.getHour(1));
+        assertEquals(41.1, slots.getTemperature(1), 0.001);
+        assertEquals(127.5, slots.getWindSpeed(1), 0.001);
+        assertEquals(358, slots.getWindDirection(1), 0.001);
+
+        // Out of range values are clamped, and a full turn is north again.
+        assertEquals(21, slots.getHour(2));
+        assertEquals(100, slots.getHumidity(2));
+        assertEquals(127.5, slots.getWindSpeed(2), 0.001);
+        assertEquals(0, slots.getWindDirection(2), 0.001);
+    }
+
+    public void testBenchmarkHourlyStorage() {
+        Result packed = ingest(true);
+        Result perSlot = ingest(false);
+
+        Log.d(LOG_TAG, BENCHMARK_LOCATIONS + " locations of " + DAYS * SLOTS_PER_DAY
+                + " slots; per location: one row per day " + packed.micros / BENCHMARK_LOCATIONS
+                + " us, " + packed.bytes / BENCHMARK_LOCATIONS + " bytes ("
+                + packed.rows / BENCHMARK_LOCATIONS + " rows), one row per slot "
+                + perSlot.micros / BENCHMARK_LOCATIONS + " us, "
+                + perSlot.bytes / BENCHMARK_LOCATIONS + " bytes ("
+                + perSlot.rows / BENCHMARK_LOCATIONS + " rows)");
+
+        assertEquals(BENCHMARK_LOCATIONS * DAYS, packed.rows);
+        assertEquals(BENCHMARK_LOCATIONS * DAYS * SLOTS_PER_DAY, perSlot.rows);
+        assertTrue("Error: packed days should take less space than one row per slot",
+                packed.bytes < perSlot.bytes);
+    }
+
+    private static class Result {
+        long micros;
+        long bytes;
+        long rows;
+    }
+
+    /**
+     * Stores the forecast of every location in a database of its own.
+     */
+    private Result ingest(boolean packed) {
+        mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(BENCHMARK_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(db);
+            db.execSQL("CREATE TABLE " + NAIVE_TABLE_NAME + " (" +
+                    "_id INTEGER PRIMARY KEY, location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, hour INTEGER NOT NULL, temp REAL NOT NULL, " +
+                    "weather_id INTEGER NOT NULL, humidity INTEGER NOT NULL, " +
+                    "wind REAL NOT NULL, degrees REAL NOT NULL, " +
+                    "UNIQUE (location_id, date, hour) ON CONFLICT REPLACE);");
+            long emptyBytes = getDatabaseBytes(db);
+
+            Result result = new Result();
+            long start = System.nanoTime();
+            for (int location = 1; location <= BENCHMARK_LOCATIONS; location++) {
+                db.beginTransaction();
+                try {
+                    for (int day = 0; day < DAYS; day++) {
+                        result.rows += packed ? insertDay(db, location, day)
+                                : insertSlots(db, location, day);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            result.micros = (System.nanoTime() - start) / 1000;
+            result.bytes = getDatabaseBytes(db) - emptyBytes;
+            return result;
+        } finally {
+            db.close();
+            mContext.deleteDatabase(BENCHMARK_DATABASE_NAME);
+        }
+    }
+
+    private static long getDatabaseBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private static int insertDay(SQLiteDatabase db, int location, int day) {
+        HourlySlots.Builder slots = new HourlySlots.Builder();
+        for (int slot = 0; slot < SLOTS_PER_DAY; slot++) {
+            slots.add(slot * 3, getTemperature(location, day, slot), 800, 60, 4.5, 180);
+        }
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, location);
+        values.put(WeatherContract.HourlyEntry.COLUMN_DATE, FIRST_DAY + day * DAY_MILLIS);
+        values.put(WeatherContract.HourlyEntry.COLUMN_SLOTS, slots.build());
+        db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+        return 1;
+    }
+
+    private static int insertSlots(SQLiteDatabase db, int location, int day) {
+        ContentValues values = new ContentValues();
+        for (int slot = 0; slot < SLOTS_PER_DAY; slot++) {
+            values.put("location_id", location);
+            values.put("date", FIRST_DAY + day * DAY_MILLIS);
+            values.put("hour", slot * 3);
+            values.put("temp", getTemperature(location, day, slot));
+            values.put("weather_id", 800);
+            values.put("humidity", 60);
+            values.put("wind", 4.5);
+            values.put("degrees", 180.0);
+            db.insert(NAIVE_TABLE_NAME, null, values);
+        }
+        return SLOTS_PER_DAY;
+    }
+
+    private static double getTemperature(int location, int day, int slot) {
+        return -10 + (location * 7 + day * 3 + slot) % 40 + slot / 10.0;
+    }
+}
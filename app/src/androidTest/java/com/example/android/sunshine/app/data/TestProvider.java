@@ -16,20 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,6 +64,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -89,8 +102,13 @@ public class TestProvider extends AndroidTestCase {
      */
     public void deleteAllRecords() {
         deleteAllRecordsFromProvider();
+        // Some tests write to the database directly, where the provider can't see it.
+        QueryCache.clear();
     }
 
+    // A time of day in milliseconds, so the slots fall within its day.
+    static final long HOURLY_TEST_DATE = 1419033600000L;
+
     // Since we want each test to start with a clean slate, run deleteAllRecords
     // in setUp (called by the test runner before each test).
     @Override
@@ -160,6 +178,19 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/hourly/94074
+        type = mContext.getContentResolver().getType(
+                HourlyEntry.buildHourlyLocation(testLocation));
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/hourly
+        assertEquals("Error: the HourlyEntry CONTENT_URI with location should return HourlyEntry.CONTENT_TYPE",
+                HourlyEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/sync_trace/
+        type = mContext.getContentResolver().getType(SyncTraceEntry.CONTENT_URI);
+        // vnd.android.cursor.dir/com.example.android.sunshine.app/sync_trace
+        assertEquals("Error: the SyncTraceEntry CONTENT_URI should return SyncTraceEntry.CONTENT_TYPE",
+                SyncTraceEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +543,264 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    // Rewriting rows with the values they already hold should write nothing; changing one row
+    // should write only that row.
+    public void testBulkInsertSkipsUnchangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: unchanged rows should not be rewritten", 0, insertCount);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues);
+        assertEquals("Error: only the changed row should be rewritten", 1, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testBulkInsertSkipsUnchangedRows.  Error validating WeatherEntry " + i,
+                    cursor, changedValues[i]);
+        }
+        cursor.close();
+    }
+
+    // Stores a location and its weather the way the sync adapter does, twice: the location
+    // upsert must resolve to the same row and the weather rows must not be duplicated.
+    public void testApplyBatchUpsertsLocation() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+
+        for (int pass = 0; pass < 2; pass++) {
+            TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+            mContext.getContentResolver().registerContentObserver(
+                    WeatherContract.BASE_CONTENT_URI, true, tco);
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation
+                    .newInsert(LocationEntry.buildLocationUpsertUri())
+                    .withValues(locationValues)
+                    .build());
+            for (ContentValues weatherValues : createBulkInsertWeatherValues(-1)) {
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherEntry.CONTENT_URI)
+                        .withValues(weatherValues)
+                        .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                        .build());
+            }
+            ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+            assertEquals(operations.size(), results.length);
+            assertEquals("Error: only the first pass should write weather rows",
+                    pass == 0 ? BULK_INSERT_RECORDS_TO_INSERT : 0,
+                    WeatherProvider.getLastBatchTimings().rowsWritten);
+
+            if (pass == 0) {
+                // Nothing changes on the second pass, so only the first one is notified.
+                tco.waitForNotificationOrFail();
+            }
+            mContext.getContentResolver().unregisterContentObserver(tco);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: the location upsert should not duplicate the location",
+                1, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    // Storing a changed forecast updates the stored rows in place, so they keep their _ids, and
+    // the batch counts what it inserted, updated and left alone.
+    public void testApplyBatchUpdatesRowsInPlace() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        long[] ids = null;
+        for (int pass = 0; pass < 3; pass++) {
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation
+                    .newInsert(LocationEntry.buildLocationUpsertUri())
+                    .withValues(locationValues)
+                    .build());
+            for (ContentValues weatherValues : createBulkInsertWeatherValues(-1)) {
+                if (pass > 0) {
+                    weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+                }
+                operations.add(ContentProviderOperation
+                        .newInsert(WeatherEntry.CONTENT_URI)
+                        .withValues(weatherValues)
+                        .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                        .build());
+            }
+            ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+
+            WeatherProvider.BatchTimings timings = WeatherProvider.getLastBatchTimings();
+            assertEquals(pass < 2 ? BULK_INSERT_RECORDS_TO_INSERT : 0, timings.rowsWritten);
+            assertEquals(pass == 1 ? BULK_INSERT_RECORDS_TO_INSERT : 0, timings.rowsUpdated);
+            assertEquals(pass == 2 ? BULK_INSERT_RECORDS_TO_INSERT : 0, timings.rowsUnchanged);
+
+            long[] passIds = new long[BULK_INSERT_RECORDS_TO_INSERT];
+            for (int i = 0; i < passIds.length; i++) {
+                passIds[i] = ContentUris.parseId(results[i + 1].uri);
+            }
+            if (ids == null) {
+                ids = passIds;
+            } else {
+                assertTrue("Error: a row should keep its _id when its values change",
+                        Arrays.equals(ids, passIds));
+            }
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID, WeatherEntry.COLUMN_SHORT_DESC}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(ids[i], cursor.getLong(0));
+            assertEquals("Meteors", cursor.getString(1));
+        }
+        cursor.close();
+    }
+
+    // A known location resolves without going to the database, and deleting locations or
+    // rolling a batch back forgets what the registry knew.
+    public void testLocationRegistry() throws Exception {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(), locationValues));
+        assertTrue(locationRowId > 0);
+
+        int misses = LocationRegistry.getMisses();
+        assertEquals(locationRowId, ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(), locationValues)));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: a known location should not be looked up again",
+                misses, LocationRegistry.getMisses());
+
+        // A batch that fails takes the location it inserted with it.
+        deleteAllRecordsFromProvider();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation
+                .newInsert(LocationEntry.buildLocationUpsertUri())
+                .withValues(locationValues)
+                .build());
+        // A weather row without its values can't be inserted.
+        operations.add(ContentProviderOperation
+                .newInsert(WeatherEntry.CONTENT_URI)
+                .withValue(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: the batch should have failed");
+        } catch (SQLException e) {
+            // Expected.
+        }
+
+        locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(), locationValues));
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                null, LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)},
+                null);
+        assertEquals("Error: the upsert resolved to a location that was rolled back",
+                1, cursor.getCount());
+        cursor.close();
+    }
+
+    // Only the newest traces are kept, and they come back newest first.
+    public void testSyncTraceRingBuffer() {
+        mContext.getContentResolver().delete(SyncTraceEntry.CONTENT_URI, null, null);
+
+        int traceCount = SyncTraceStore.MAX_TRACES + 5;
+        for (int i = 0; i < traceCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(SyncTraceEntry.COLUMN_STARTED_AT, i);
+            values.put(SyncTraceEntry.COLUMN_OUTCOME, SyncTraceEntry.OUTCOME_OK);
+            Uri traceUri = mContext.getContentResolver().insert(SyncTraceEntry.CONTENT_URI, values);
+            assertTrue("Error: a trace should get an id", ContentUris.parseId(traceUri) > 0);
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncTraceEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(SyncTraceStore.MAX_TRACES, cursor.getCount());
+        int startedAtIndex = cursor.getColumnIndex(SyncTraceEntry.COLUMN_STARTED_AT);
+        long expected = traceCount - 1;
+        while (cursor.moveToNext()) {
+            assertEquals(expected--, cursor.getLong(startedAtIndex));
+        }
+        cursor.close();
+
+        assertEquals(SyncTraceStore.MAX_TRACES, mContext.getContentResolver().delete(
+                SyncTraceEntry.CONTENT_URI, null, null));
+    }
+
+    // Days of the 3-hour forecast come back by date, bounded by the range asked for, and a
+    // day stored again with the same slots is not rewritten.
+    public void testHourlyRangeQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long firstDay = WeatherContract.normalizeDate(HOURLY_TEST_DATE);
+        long millisecondsInADay = 1000 * 60 * 60 * 24;
+
+        ContentValues[] days = new ContentValues[5];
+        for (int i = 0; i < days.length; i++) {
+            HourlySlots.Builder slots = new HourlySlots.Builder();
+            for (int hour = 0; hour < 24; hour += 3) {
+                slots.add(hour, -5.5 + i + hour / 10.0, 800 + i, 50 + hour, 4.5, 270);
+            }
+            days[i] = new ContentValues();
+            days[i].put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            days[i].put(HourlyEntry.COLUMN_DATE, firstDay + i * millisecondsInADay);
+            days[i].put(HourlyEntry.COLUMN_SLOTS, slots.build());
+        }
+        assertEquals(days.length,
+                mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, days));
+        assertEquals("Error: unchanged days should not be rewritten", 0,
+                mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI, days));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDateRange(TestUtilities.TEST_LOCATION,
+                        firstDay + millisecondsInADay, firstDay + 3 * millisecondsInADay),
+                new String[]{HourlyEntry.COLUMN_DATE, HourlyEntry.COLUMN_SLOTS},
+                null, null, null);
+        assertEquals(3, cursor.getCount());
+        for (int i = 1; cursor.moveToNext(); i++) {
+            assertEquals(WeatherContract.normalizeDate(firstDay + i * millisecondsInADay),
+                    cursor.getLong(0));
+            HourlySlots slots = new HourlySlots(cursor.getBlob(1));
+            assertEquals(8, slots.size());
+            assertEquals(800 + i, slots.getWeatherId(0));
+            assertEquals(21, slots.getHour(7));
+            assertEquals(-5.5 + i + 2.1, slots.getTemperature(7), 0.05);
+        }
+        cursor.close();
+    }
 }
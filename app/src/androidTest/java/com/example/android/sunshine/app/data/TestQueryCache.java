@@ -0,0 +1,168 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/*
+    Checks that repeated queries are served from the provider's query cache, that writes drop
+    exactly the results they make stale, and that every cursor served is a copy of its own.
+ */
+public class TestQueryCache extends AndroidTestCase {
+
+    private static final Uri FORECAST_URI = WeatherEntry.buildWeatherLocationWithStartDate(
+            TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.buildLocationUpsertUri(),
+                TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mLocationRowId));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        QueryCache.clear();
+    }
+
+    private String queryForecast() {
+        Cursor cursor = mContext.getContentResolver().query(FORECAST_URI, null, null, null, null);
+        try {
+            return DatabaseUtils.dumpCursorToString(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return whether the query was served from the cache.
+     */
+    private boolean queryForecastIsHit() {
+        long hits = QueryCache.getHits();
+        queryForecast();
+        return QueryCache.getHits() == hits + 1;
+    }
+
+    public void testRepeatedQueryIsServedFromCache() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        long misses = QueryCache.getMisses();
+        String first = queryForecast();
+        assertEquals(misses + 1, QueryCache.getMisses());
+        assertTrue(QueryCache.getBytes() > 0);
+
+        long hits = QueryCache.getHits();
+        assertEquals("Error: the cached result should match the query's", first, queryForecast());
+        assertEquals(hits + 1, QueryCache.getHits());
+
+        // The same URI with another projection is another query.
+        mContext.getContentResolver().query(FORECAST_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null).close();
+        assertEquals(misses + 2, QueryCache.getMisses());
+    }
+
+    public void testWritesDropStaleResultsOnly() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        queryForecast();
+        assertTrue(queryForecastIsHit());
+
+        // Writing the same forecast again changes nothing, nor does writing another table.
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProvider.createBulkInsertWeatherValues(mLocationRowId));
+        ContentValues day = new ContentValues();
+        day.put(HourlyEntry.COLUMN_LOC_KEY, mLocationRowId);
+        day.put(HourlyEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+        day.put(HourlyEntry.COLUMN_SLOTS, new HourlySlots.Builder()
+                .add(0, 1.5, 800, 50, 4.5, 270).build());
+        mContext.getContentResolver().insert(HourlyEntry.CONTENT_URI, day);
+        assertTrue("Error: writes that change no forecast rows should keep the result",
+                queryForecastIsHit());
+
+        ContentValues[] changed = TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        changed[0].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changed);
+        assertFalse("Error: a changed forecast should drop the result", queryForecastIsHit());
+        assertTrue(queryForecast().contains("Meteors"));
+
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Workshop");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, location,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationRowId)});
+        assertFalse("Error: a changed location should drop the results joined with it",
+                queryForecastIsHit());
+    }
+
+    public void testCursorsAreCopies() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        ContentValues day = new ContentValues();
+        day.put(HourlyEntry.COLUMN_LOC_KEY, mLocationRowId);
+        day.put(HourlyEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+        day.put(HourlyEntry.COLUMN_SLOTS, new HourlySlots.Builder()
+                .add(0, 1.5, 800, 50, 4.5, 270).build());
+        mContext.getContentResolver().insert(HourlyEntry.CONTENT_URI, day);
+
+        Uri uri = HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION);
+        String[] projection = {HourlyEntry.COLUMN_SLOTS};
+        Cursor first = mContext.getContentResolver().query(uri, projection, null, null, null);
+        assertTrue(first.moveToFirst());
+        byte[] slots = first.getBlob(0);
+        byte[] original = slots.clone();
+        slots[0] ^= 0xff;
+        first.close();
+
+        long hits = QueryCache.getHits();
+        Cursor second = mContext.getContentResolver().query(uri, projection, null, null, null);
+        assertEquals(hits + 1, QueryCache.getHits());
+        assertTrue(second.moveToFirst());
+        assertTrue("Error: changing a blob read should not change the cached one",
+                Arrays.equals(original, second.getBlob(0)));
+        second.close();
+    }
+
+    public void testLargeResultsAreNotKept() {
+        if (!QueryCache.isSupported()) {
+            return;
+        }
+        ContentValues[] days = new ContentValues[QueryCache.MAX_ROWS + 1];
+        long dayMillis = 24 * 60 * 60 * 1000;
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createWeatherValues(mLocationRowId);
+            days[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * dayMillis);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals(QueryCache.MAX_ROWS + 1, cursor.getCount());
+        cursor.close();
+        assertEquals(0, QueryCache.getSize());
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the OpenWeatherMap daily and 3-hour forecast APIs, so syncs can run
+ * without network access.  It serves a recorded payload, or a generated one of any number of
+ * days and size, and can be told to answer slowly, with an error status or with a truncated
+ * body.  Like the real servers it sends an ETag and a Last-Modified date with every forecast,
+ * and answers a request carrying the validators of the forecast it would send with 304.
+ */
+class ForecastStandInServer {
+    private static final String LOG_TAG = ForecastStandInServer.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    // What to answer with; can be changed between requests.
+    volatile int responseCode = 200;
+    volatile long latencyMillis;
+    volatile boolean truncateBody;
+    volatile boolean gzip;
+    // The payload to serve, or null to generate one.
+    volatile String payload;
+    // Extra bytes added to generated payloads, in a field the parsers skip.
+    volatile int paddingBytes;
+    // Whether generated payloads are the same for every request, rather than new each time.
+    volatile boolean repeatGenerated;
+    // A location whose requests alone are answered with 503, or null.
+    volatile String failingLocation;
+    // Which validators are sent with a forecast, and honoured when a request carries them.
+    volatile boolean sendETag = true;
+    volatile boolean sendLastModified = true;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mHourlyRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxRequestsInFlight = new AtomicInteger();
+    // When each forecast served, by ETag, was first served: its Last-Modified date.
+    private final ConcurrentHashMap<String, String> mLastModified =
+            new ConcurrentHashMap<String, String>();
+
+    ForecastStandInServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * @return the forecast URL to hand to {@link SunshineSyncAdapter#setForecastBaseUrl}.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    /**
+     * @return the number of daily forecast requests served.
+     */
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getHourlyRequestCount() {
+        return mHourlyRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests, daily or 3-hour, answered with 304 Not Modified.
+     */
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    /**
+     * @return the most requests that were being served at the same time.
+     */
+    int getMaxRequestsInFlight() {
+        return mMaxRequestsInFlight.get();
+    }
+
+    void start() {
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        // Closed by shutdown.
+                    }
+                }
+            }
+        }, LOG_TAG);
+        mAcceptThread.start();
+    }
+
+    void shutdown() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mAcceptThread.join();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String ifNoneMatch = null;
+            String ifModifiedSince = null;
+            String header;
+            while ((header = reader.readLine()) != null && header.length() > 0) {
+                int separator = header.indexOf(':');
+                if (separator < 0) {
+                    continue;
+                }
+                String name = header.substring(0, separator).trim();
+                String value = header.substring(separator + 1).trim();
+                if (name.equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = value;
+                } else if (name.equalsIgnoreCase("If-Modified-Since")) {
+                    ifModifiedSince = value;
+                }
+            }
+
+            Uri uri = Uri.parse(requestLine.split(" ")[1]);
+            boolean hourly = uri.getPath().endsWith("/forecast");
+            int requestCount = hourly ? mHourlyRequestCount.incrementAndGet()
+                    : mRequestCount.incrementAndGet();
+
+            int inFlight = mRequestsInFlight.incrementAndGet();
+            int maxInFlight;
+            do {
+                maxInFlight = mMaxRequestsInFlight.get();
+            } while (inFlight > maxInFlight
+                    && !mMaxRequestsInFlight.compareAndSet(maxInFlight, inFlight));
+            try {
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+            } finally {
+                mRequestsInFlight.decrementAndGet();
+            }
+
+            String location = uri.getQueryParameter("q");
+            int code = location != null && location.equals(failingLocation) ? 503
+                    : responseCode;
+            long seed = repeatGenerated ? 0 : requestCount;
+            String days = uri.getQueryParameter("cnt");
+            String body = code != 200 ? "{\"cod\":\"" + code + "\"}"
+                    : hourly ? generateHourlyForecast(location, seed)
+                    : payload != null ? payload
+                    : generateForecast(location,
+                    days != null ? Integer.parseInt(days) : ForecastRequest.NUM_DAYS,
+                    seed, paddingBytes);
+            respond(socket.getOutputStream(), code, body.getBytes(UTF_8), ifNoneMatch,
+                    ifModifiedSince);
+        } catch (IOException | InterruptedException e) {
+            Log.e(LOG_TAG, "Error serving a request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to send anyway.
+            }
+        }
+    }
+
+    private void respond(OutputStream out, int code, byte[] body, String ifNoneMatch,
+                         String ifModifiedSince) throws IOException {
+        String eTag = null;
+        String lastModified = null;
+        if (code == 200) {
+            // The ETag of a forecast is its content's, so the same forecast always has the same.
+            eTag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+            String firstServed = formatHttpDate(System.currentTimeMillis());
+            lastModified = mLastModified.putIfAbsent(eTag, firstServed);
+            if (lastModified == null) {
+                lastModified = firstServed;
+            }
+            // If-None-Match, when sent, decides on its own.
+            if (sendETag && ifNoneMatch != null ? ifNoneMatch.equals(eTag)
+                    : sendLastModified && lastModified.equals(ifModifiedSince)) {
+                mNotModifiedCount.incrementAndGet();
+                code = 304;
+                body = new byte[0];
+            }
+        }
+
+        boolean gzipped = gzip && body.length > 0;
+        if (gzipped) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder headers = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(" Stand-in\r\n")
+                .append("Content-Type: application/json; charset=utf-8\r\n")
+                .append("Content-Length: ").append(body.length).append("\r\n")
+                .append("Connection: close\r\n");
+        if (gzipped) {
+            headers.append("Content-Encoding: gzip\r\n");
+        }
+        if (eTag != null && sendETag) {
+            headers.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (lastModified != null && sendLastModified) {
+            headers.append("Last-Modified: ").append(lastModified).append("\r\n");
+        }
+        headers.append("\r\n");
+        out.write(headers.toString().getBytes(UTF_8));
+        // A truncated body stops halfway through what Content-Length promised.
+        out.write(body, 0, truncateBody ? body.length / 2 : body.length);
+        out.flush();
+    }
+
+    private static String formatHttpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    /**
+     * @return a daily forecast response in the format of OpenWeatherMap, the same for the same
+     * arguments.
+     */
+    static String generateForecast(String city, int days, long seed, int paddingBytes) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(512 + days * 320 + paddingBytes);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"")
+                .append(city != null ? city : "Stand-in")
+                .append("\",\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0,\"padding\":\"");
+        for (int i = 0; i < paddingBytes; i++) {
+            json.append('x');
+        }
+        json.append("\"},\"cod\":\"200\",\"message\":0.0131,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            double min = -5 + random.nextInt(200) / 10.0;
+            double max = min + random.nextInt(150) / 10.0;
+            int weatherId = random.nextBoolean() ? 800 : 500 + random.nextInt(5);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,"
+                            + "\"max\":%.2f,\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,\"weather\":[{\"id\":%d,"
+                            + "\"main\":\"%s\",\"description\":\"%s\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":0}",
+                    1455998400L + i * 86400L, max, min, max, min, max, min,
+                    990 + random.nextInt(400) / 10.0, 40 + random.nextInt(60), weatherId,
+                    weatherId == 800 ? "Clear" : "Rain",
+                    weatherId == 800 ? "sky is clear" : "light rain",
+                    random.nextInt(100) / 10.0, random.nextInt(360)));
+        }
+        return json.append("]}").toString();
+    }
+
+    // Slots in a 3-hour forecast: five days of eight.
+    static final int HOURLY_SLOTS = 40;
+
+    /**
+     * @return a 3-hour forecast response in the format of OpenWeatherMap, starting now and the
+     * same for the same arguments.
+     */
+    static String generateHourlyForecast(String city, long seed) {
+        Random random = new Random(seed);
+        long start = System.currentTimeMillis() / 1000 / 10800 * 10800;
+        StringBuilder json = new StringBuilder(256 + HOURLY_SLOTS * 280);
+        json.append("{\"cod\":\"200\",\"message\":0.0036,\"cnt\":").append(HOURLY_SLOTS)
+                .append(",\"list\":[");
+        for (int i = 0; i < HOURLY_SLOTS; i++) {
+            int weatherId = random.nextBoolean() ? 800 : 500 + random.nextInt(5);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "{\"dt\":%d,\"main\":{\"temp\":%.2f,"
+                            + "\"pressure\":%.2f,\"humidity\":%d},\"weather\":[{\"id\":%d,"
+                            + "\"main\":\"%s\",\"description\":\"%s\",\"icon\":\"01d\"}],"
+                            + "\"clouds\":{\"all\":0},\"wind\":{\"speed\":%.2f,\"deg\":%d}}",
+                    start + i * 10800L, -5 + random.nextInt(300) / 10.0,
+                    990 + random.nextInt(400) / 10.0, 40 + random.nextInt(60), weatherId,
+                    weatherId == 800 ? "Clear" : "Rain",
+                    weatherId == 800 ? "sky is clear" : "light rain",
+                    random.nextInt(100) / 10.0, random.nextInt(360)));
+        }
+        return json.append("],\"city\":{\"id\":5375480,\"name\":\"")
+                .append(city != null ? city : "Stand-in")
+                .append("\",\"coord\":{\"lat\":37.386051,\"lon\":-122.083847},")
+                .append("\"country\":\"US\"}}").toString();
+    }
+}
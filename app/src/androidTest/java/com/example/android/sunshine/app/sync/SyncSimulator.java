@@ -0,0 +1,257 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Replays a deterministic stretch of forecast changes, app use and charging against a
+ * {@link SyncPolicy}, so policies can be compared offline: how often they wake the device, how
+ * many bytes they download and how long a change on the server goes unnoticed.
+ *
+ * The signals are made the way {@link SyncChangeSet} makes them on a device.  Only a noticeable
+ * change to a day the sync fetched counts as a changed day.  The server reissuing the forecast
+ * with nothing noticeable changed, and the forecast moving on a day at midnight, download the
+ * whole response again but change no day.  Syncs fetch the whole forecast every
+ * {@link ForecastHorizon#FULL_INTERVAL_MILLIS} and its first {@link ForecastHorizon#SHORT_DAYS}
+ * days in between, like {@link ForecastHorizon}.
+ */
+class SyncSimulator {
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+    private static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // A gzipped 14 day and 3 day forecast, and the headers of a 304 Not Modified.
+    static final long FULL_RESPONSE_BYTES = 2 * 1024;
+    static final long SHORT_RESPONSE_BYTES = 600;
+    static final long NOT_MODIFIED_BYTES = 300;
+
+    /**
+     * When the server's forecast changes and when the app is used.  The device is taken to
+     * charge on an unmetered network every night from midnight to 7am.
+     */
+    static class Scenario {
+        final long durationMillis;
+        // Noticeable changes, one per day changed: when, and the day from the start it changed.
+        final long[] changeTimes;
+        final int[] changeDays;
+        // When the server reissued the forecast with nothing noticeable changed.
+        final long[] churnTimes;
+        final long[] appUseTimes;
+
+        Scenario(long durationMillis, long[] changeTimes, int[] changeDays, long[] churnTimes,
+                 long[] appUseTimes) {
+            this.durationMillis = durationMillis;
+            this.changeTimes = changeTimes;
+            this.changeDays = changeDays;
+            this.churnTimes = churnTimes;
+            this.appUseTimes = appUseTimes;
+        }
+
+        /**
+         * @return a scenario of {@code days} days that is the same for the same arguments.
+         * Scenarios that differ in {@code churnsPerDay} only have the same changes and app use.
+         */
+        static Scenario generate(long seed, int days, float changesPerDay, float churnsPerDay,
+                                 float appUsesPerDay) {
+            Random random = new Random(seed);
+            long duration = days * DAY_IN_MILLIS;
+
+            long[] updateTimes = new long[Math.round(days * changesPerDay)];
+            for (int i = 0; i < updateTimes.length; i++) {
+                updateTimes[i] = (long) (random.nextDouble() * duration);
+            }
+            Arrays.sort(updateTimes);
+            List<Long> changeTimes = new ArrayList<Long>();
+            List<Integer> changeDays = new ArrayList<Integer>();
+            for (long time : updateTimes) {
+                // Most updates touch the next few days only.
+                int firstOffset = random.nextInt(ForecastHorizon.SHORT_DAYS);
+                int count = random.nextInt(10) == 0 ? 1 + random.nextInt(ForecastRequest.NUM_DAYS)
+                        : 1 + random.nextInt(3);
+                int today = (int) (time / DAY_IN_MILLIS);
+                for (int offset = firstOffset;
+                     offset < firstOffset + count && offset < ForecastRequest.NUM_DAYS; offset++) {
+                    changeTimes.add(time);
+                    changeDays.add(today + offset);
+                }
+            }
+
+            long[] appUseTimes = new long[Math.round(days * appUsesPerDay)];
+            for (int i = 0; i < appUseTimes.length; i++) {
+                // During the day, between 8am and 10pm.
+                long day = random.nextInt(days) * DAY_IN_MILLIS;
+                appUseTimes[i] = day + 8 * HOUR_IN_MILLIS
+                        + (long) (random.nextDouble() * 14 * HOUR_IN_MILLIS);
+            }
+            Arrays.sort(appUseTimes);
+
+            long[] churnTimes = new long[Math.round(days * churnsPerDay)];
+            for (int i = 0; i < churnTimes.length; i++) {
+                churnTimes[i] = (long) (random.nextDouble() * duration);
+            }
+            Arrays.sort(churnTimes);
+
+            long[] times = new long[changeTimes.size()];
+            int[] changed = new int[times.length];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = changeTimes.get(i);
+                changed[i] = changeDays.get(i);
+            }
+            return new Scenario(duration, times, changed, churnTimes, appUseTimes);
+        }
+
+        boolean isChargingUnmetered(long time) {
+            return time % DAY_IN_MILLIS < 7 * HOUR_IN_MILLIS;
+        }
+    }
+
+    /**
+     * What a policy cost and achieved over a scenario.
+     */
+    static class Result {
+        int wakeups;
+        long bytes;
+        // Time from each change of a day on the server to the sync that picked it up, or to
+        // the end of the day if none did.
+        long totalStalenessMillis;
+        long maxStalenessMillis;
+        int changes;
+        long minInterval = Long.MAX_VALUE;
+        long maxInterval;
+
+        long getMeanStalenessMillis() {
+            return changes == 0 ? 0 : totalStalenessMillis / changes;
+        }
+
+        @Override
+        public String toString() {
+            return wakeups + " wakeups, " + bytes + " bytes, staleness mean "
+                    + getMeanStalenessMillis() / 60000 + " min, max "
+                    + maxStalenessMillis / 60000 + " min, period " + minInterval + ".."
+                    + maxInterval + " s";
+        }
+    }
+
+    /**
+     * A noticeable change to a day that no sync has fetched yet.
+     */
+    private static class PendingChange {
+        final long time;
+        final int day;
+
+        PendingChange(long time, int day) {
+            this.time = time;
+            this.day = day;
+        }
+    }
+
+    /**
+     * Runs the scenario with a sync at its start and then at whatever periods the policy picks.
+     *
+     * @param initialInterval the period of the first sync, in seconds.
+     */
+    static Result run(SyncPolicy policy, Scenario scenario, long initialInterval) {
+        Result result = new Result();
+        long interval = initialInterval;
+        float noOpRate = 0;
+        int nextChange = 0;
+        int nextChurn = 0;
+        int nextAppUse = 0;
+        long lastAppUse = -1;
+        long lastSync = -1;
+        long lastFullFetch = -1;
+        List<PendingChange> pending = new ArrayList<PendingChange>();
+
+        for (long time = 0; time <= scenario.durationMillis; time += interval * 1000) {
+            result.wakeups++;
+            int today = (int) (time / DAY_IN_MILLIS);
+            boolean full = lastFullFetch < 0
+                    || time - lastFullFetch >= ForecastHorizon.FULL_INTERVAL_MILLIS;
+            int fetchedDays = full ? ForecastRequest.NUM_DAYS : ForecastHorizon.SHORT_DAYS;
+            if (full) {
+                lastFullFetch = time;
+            }
+
+            // The response is new if the server reissued it or the first day moved on, even
+            // when no day changed noticeably.
+            boolean contentChanged = lastSync < 0 || today != lastSync / DAY_IN_MILLIS;
+            while (nextChurn < scenario.churnTimes.length
+                    && scenario.churnTimes[nextChurn] <= time) {
+                contentChanged = true;
+                nextChurn++;
+            }
+            while (nextChange < scenario.changeTimes.length
+                    && scenario.changeTimes[nextChange] <= time) {
+                pending.add(new PendingChange(scenario.changeTimes[nextChange],
+                        scenario.changeDays[nextChange]));
+                nextChange++;
+            }
+
+            Set<Integer> changed = new HashSet<Integer>();
+            Iterator<PendingChange> changes = pending.iterator();
+            while (changes.hasNext()) {
+                PendingChange change = changes.next();
+                int offset = change.day - today;
+                if (offset < 0) {
+                    // The day went by before any sync fetched it.
+                    recordStaleness(result, (change.day + 1) * DAY_IN_MILLIS - change.time);
+                    changes.remove();
+                } else if (offset < fetchedDays) {
+                    recordStaleness(result, time - change.time);
+                    changed.add(change.day);
+                    changes.remove();
+                }
+            }
+            if (!changed.isEmpty()) {
+                contentChanged = true;
+            }
+            result.bytes += !contentChanged ? NOT_MODIFIED_BYTES
+                    : full ? FULL_RESPONSE_BYTES : SHORT_RESPONSE_BYTES;
+            lastSync = time;
+
+            while (nextAppUse < scenario.appUseTimes.length
+                    && scenario.appUseTimes[nextAppUse] <= time) {
+                lastAppUse = scenario.appUseTimes[nextAppUse++];
+            }
+
+            SyncSignals signals = new SyncSignals();
+            signals.changedDays = changed.size();
+            signals.fetchedDays = fetchedDays;
+            signals.noOp = signals.changedDays == 0;
+            noOpRate = SyncSignals.updateNoOpRate(noOpRate, signals.noOp);
+            signals.noOpRate = noOpRate;
+            signals.charging = signals.unmetered = scenario.isChargingUnmetered(time);
+            signals.millisSinceAppUse = lastAppUse < 0 ? -1 : time - lastAppUse;
+
+            interval = policy.nextInterval(interval, signals);
+            if (interval <= 0) {
+                throw new IllegalStateException("Policy picked a period of " + interval + " s");
+            }
+            result.minInterval = Math.min(result.minInterval, interval);
+            result.maxInterval = Math.max(result.maxInterval, interval);
+        }
+
+        // Changes nobody synced by the end stay stale until then, or until their day is over.
+        for (PendingChange change : pending) {
+            recordStaleness(result, Math.min(scenario.durationMillis,
+                    (change.day + 1) * DAY_IN_MILLIS) - change.time);
+        }
+        for (; nextChange < scenario.changeTimes.length; nextChange++) {
+            recordStaleness(result, Math.min(scenario.durationMillis,
+                    (scenario.changeDays[nextChange] + 1) * DAY_IN_MILLIS)
+                    - scenario.changeTimes[nextChange]);
+        }
+        return result;
+    }
+
+    private static void recordStaleness(Result result, long stalenessMillis) {
+        result.changes++;
+        result.totalStalenessMillis += stalenessMillis;
+        result.maxStalenessMillis = Math.max(result.maxStalenessMillis, stalenessMillis);
+    }
+}
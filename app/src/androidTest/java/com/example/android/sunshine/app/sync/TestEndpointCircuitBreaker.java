@@ -0,0 +1,71 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+    Walks a circuit breaker through an outage and its recovery, with a fixed clock.
+ */
+public class TestEndpointCircuitBreaker extends AndroidTestCase {
+
+    private static final String ENDPOINT = "forecast.test";
+
+    private EndpointCircuitBreaker createBreaker() {
+        return new EndpointCircuitBreaker(ENDPOINT, new Random(7));
+    }
+
+    public void testBackoffGrowsWithinBounds() {
+        EndpointCircuitBreaker breaker = createBreaker();
+        for (int failures = 1; failures < 30; failures++) {
+            long delay = Math.min(
+                    EndpointCircuitBreaker.BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20),
+                    EndpointCircuitBreaker.MAX_BACKOFF_MILLIS);
+            long backoff = breaker.getBackoffMillis(failures);
+            assertTrue("Error: back-off " + backoff + " after " + failures + " failures",
+                    backoff >= delay / 2 && backoff <= delay);
+        }
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        EndpointCircuitBreaker breaker = createBreaker();
+        long now = 1000000;
+        for (int i = 0; i < EndpointCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertEquals(EndpointCircuitBreaker.STATE_CLOSED, breaker.getState());
+            now = breaker.getRetryAt() + 1;
+            assertTrue(breaker.allowRequest(now));
+            breaker.onFailure(now);
+            assertFalse("Error: a request right after a failure should back off",
+                    breaker.allowRequest(now + 1));
+        }
+        assertEquals(EndpointCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(breaker.getRetryAt() - 1));
+    }
+
+    public void testHalfOpenLetsOneProbeThrough() {
+        EndpointCircuitBreaker breaker = createBreaker();
+        long now = 1000000;
+        for (int i = 0; i < EndpointCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.onFailure(now);
+        }
+        long previousRetryAt = breaker.getRetryAt();
+
+        now = previousRetryAt;
+        assertTrue("Error: the probe should be let through", breaker.allowRequest(now));
+        assertEquals(EndpointCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertFalse("Error: only one probe at a time", breaker.allowRequest(now));
+
+        // A failed probe opens the circuit again, for longer.
+        breaker.onFailure(now);
+        assertEquals(EndpointCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertTrue(breaker.getRetryAt() - now >= previousRetryAt - 1000000);
+
+        now = breaker.getRetryAt();
+        assertTrue(breaker.allowRequest(now));
+        breaker.onSuccess(now);
+        assertEquals(EndpointCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowRequest(now));
+        assertTrue(breaker.allowRequest(now));
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs both forecast parsers over the same recorded payloads and checks they report the
+    same things.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    // Trimmed down recording of a real daily forecast response.
+    static final String RECORDED_FORECAST = "{\"city\":{\"id\":5375480,\"name\":\"Mountain View\","
+            + "\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\",\"population\":0},"
+            + "\"cod\":\"200\",\"message\":0.0131,\"cnt\":3,\"list\":["
+            + "{\"dt\":1455998400,\"temp\":{\"day\":17.64,\"min\":8.31,\"max\":17.64,\"night\":8.31,"
+            + "\"eve\":15.2,\"morn\":12.1},\"pressure\":1001.96,\"humidity\":74,"
+            + "\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\",\"icon\":\"10d\"}],"
+            + "\"speed\":1.86,\"deg\":273,\"clouds\":0,\"rain\":0.9},"
+            + "{\"dt\":1456084800,\"temp\":{\"day\":16.02,\"min\":6.97,\"max\":16.51,\"night\":9.4,"
+            + "\"eve\":14.7,\"morn\":7.01},\"pressure\":1003.12,\"humidity\":81,"
+            + "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}],"
+            + "\"speed\":2.41,\"deg\":301,\"clouds\":0},"
+            + "{\"dt\":1456171200,\"temp\":{\"day\":15.5,\"min\":7.5,\"max\":15.9,\"night\":8.0,"
+            + "\"eve\":13.2,\"morn\":7.6},\"pressure\":1005.4,\"humidity\":70,"
+            + "\"weather\":[{\"id\":802,\"main\":\"Clouds\",\"description\":\"scattered clouds\",\"icon\":\"03d\"}],"
+            + "\"speed\":3.1,\"deg\":290,\"clouds\":40}]}";
+
+    static final String RECORDED_NOT_FOUND = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    static class RecordingCallback implements ForecastParser.Callback {
+        String cityName;
+        double latitude;
+        double longitude;
+        final List<String> days = new ArrayList<String>();
+
+        @Override
+        public void onCity(String cityName, double latitude, double longitude) {
+            this.cityName = cityName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public void onDay(int index, ForecastDay day) {
+            days.add(index + ":" + day.pressure + ":" + day.humidity + ":" + day.windSpeed + ":"
+                    + day.windDirection + ":" + day.high + ":" + day.low + ":"
+                    + day.description + ":" + day.weatherId);
+        }
+    }
+
+    private static InputStream streamOf(String payload) throws Exception {
+        return new ByteArrayInputStream(payload.getBytes("UTF-8"));
+    }
+
+    public void testParsersAgreeOnRecordedForecast() throws Exception {
+        RecordingCallback streaming = new RecordingCallback();
+        RecordingCallback jsonObject = new RecordingCallback();
+
+        int streamingCode = SunshineSyncAdapter.createForecastParser(
+                SunshineSyncAdapter.PARSER_STREAMING).parse(streamOf(RECORDED_FORECAST), streaming);
+        int jsonObjectCode = SunshineSyncAdapter.createForecastParser(
+                SunshineSyncAdapter.PARSER_JSON_OBJECT).parse(streamOf(RECORDED_FORECAST), jsonObject);
+
+        assertEquals(HttpURLConnection.HTTP_OK, streamingCode);
+        assertEquals(HttpURLConnection.HTTP_OK, jsonObjectCode);
+
+        assertEquals("Mountain View", streaming.cityName);
+        assertEquals(jsonObject.cityName, streaming.cityName);
+        assertEquals(jsonObject.latitude, streaming.latitude);
+        assertEquals(jsonObject.longitude, streaming.longitude);
+
+        assertEquals(3, streaming.days.size());
+        assertEquals("Error: the parsers disagree on the parsed days",
+                jsonObject.days, streaming.days);
+    }
+
+    public void testParsersReportErrorCode() throws Exception {
+        RecordingCallback streaming = new RecordingCallback();
+        RecordingCallback jsonObject = new RecordingCallback();
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, SunshineSyncAdapter.createForecastParser(
+                SunshineSyncAdapter.PARSER_STREAMING).parse(streamOf(RECORDED_NOT_FOUND), streaming));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, SunshineSyncAdapter.createForecastParser(
+                SunshineSyncAdapter.PARSER_JSON_OBJECT).parse(streamOf(RECORDED_NOT_FOUND), jsonObject));
+
+        assertTrue(streaming.days.isEmpty());
+        assertTrue(jsonObject.days.isEmpty());
+    }
+
+    public void testStreamingParserRejectsIncompleteDay() throws Exception {
+        String missingTemperature = "{\"city\":{\"name\":\"Nowhere\",\"coord\":{\"lon\":0,\"lat\":0}},"
+                + "\"list\":[{\"pressure\":1000,\"humidity\":50,\"speed\":1,\"deg\":90,"
+                + "\"weather\":[{\"id\":800,\"main\":\"Clear\"}]}]}";
+        try {
+            SunshineSyncAdapter.createForecastParser(SunshineSyncAdapter.PARSER_STREAMING)
+                    .parse(streamOf(missingTemperature), new RecordingCallback());
+            fail("Error: a day without temperatures should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+}
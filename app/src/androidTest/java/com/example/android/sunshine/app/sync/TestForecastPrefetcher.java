@@ -0,0 +1,140 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Checks which locations are picked for prefetching, the daily byte budget and the counting of
+    hits and misses.
+ */
+public class TestForecastPrefetcher extends AndroidTestCase {
+
+    private static final String HOME = "Home";
+    private static final long NOW = 1419033600000L;
+
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteLocations();
+        ForecastPrefetcher.clear(mContext);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        prefs.edit()
+                .putString(mContext.getString(R.string.pref_location_key), HOME)
+                .remove(mContext.getString(R.string.pref_location_latitude))
+                .remove(mContext.getString(R.string.pref_location_longitude))
+                .commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteLocations();
+        ForecastPrefetcher.clear(mContext);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    private void deleteLocations() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void insertLocation(String setting, double lat, double lon) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, setting);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
+    }
+
+    private static List<String> getSettings(List<ForecastRequest> requests) {
+        List<String> settings = new ArrayList<String>(requests.size());
+        for (ForecastRequest request : requests) {
+            settings.add(request.locationSetting);
+        }
+        return settings;
+    }
+
+    public void testNearbyFirstThenMostRecent() {
+        insertLocation("Oldest", 0, 0);
+        insertLocation(HOME, 50, 0);
+        insertLocation("Far away", -30, 100);
+        insertLocation("Nearby", 50.2, 0.1);
+        insertLocation("Farther away", 10, 10);
+        insertLocation("Tracked", 50.1, 0);
+
+        List<ForecastRequest> synced = Arrays.asList(
+                new ForecastRequest(HOME, true), new ForecastRequest("Tracked", false));
+        List<ForecastRequest> candidates = ForecastPrefetcher.chooseCandidates(mContext, synced);
+
+        assertEquals(Arrays.asList("Nearby", "Farther away", "Far away"),
+                getSettings(candidates));
+        for (ForecastRequest candidate : candidates) {
+            assertFalse(candidate.isPreferred);
+        }
+    }
+
+    public void testNothingToPrefetch() {
+        insertLocation(HOME, 50, 0);
+        assertTrue(ForecastPrefetcher.chooseCandidates(mContext,
+                Collections.singletonList(new ForecastRequest(HOME, true))).isEmpty());
+    }
+
+    public void testDailyByteBudget() {
+        ForecastPrefetcher.onPrefetched(mContext, Collections.singletonList("Nearby"),
+                ForecastPrefetcher.DAILY_BYTE_BUDGET - 1, NOW);
+        ForecastPrefetcher.onPrefetched(mContext, Collections.<String>emptyList(), 100, NOW + 1);
+        assertEquals(ForecastPrefetcher.DAILY_BYTE_BUDGET + 99,
+                ForecastPrefetcher.getBytesSpent(mContext, NOW + 2));
+        assertFalse("Error: a spent budget should hold prefetching back",
+                ForecastPrefetcher.isAllowed(mContext, NOW + 2));
+
+        long tomorrow = NOW + 24 * 60 * 60 * 1000;
+        assertEquals("Error: the budget should start afresh every day",
+                0, ForecastPrefetcher.getBytesSpent(mContext, tomorrow));
+    }
+
+    public void testHitsAndMisses() {
+        ForecastPrefetcher.onPreferredLocation(mContext, HOME, NOW);
+        assertEquals(0, ForecastPrefetcher.getHits(mContext));
+        assertEquals(0, ForecastPrefetcher.getMisses(mContext));
+
+        ForecastPrefetcher.onPrefetched(mContext, Collections.singletonList("Nearby"), 10, NOW);
+        ForecastPrefetcher.onPreferredLocation(mContext, "Nearby", NOW + 1000);
+        assertEquals(1, ForecastPrefetcher.getHits(mContext));
+
+        // Syncing the same location again is no switch.
+        ForecastPrefetcher.onPreferredLocation(mContext, "Nearby", NOW + 2000);
+        ForecastPrefetcher.onPreferredLocation(mContext, HOME, NOW + 3000);
+        assertEquals(1, ForecastPrefetcher.getMisses(mContext));
+
+        // A prefetch too old to have helped is a miss.
+        ForecastPrefetcher.onPreferredLocation(mContext, "Nearby",
+                NOW + ForecastPrefetcher.HIT_WINDOW_MILLIS + 1);
+        assertEquals(1, ForecastPrefetcher.getHits(mContext));
+        assertEquals(2, ForecastPrefetcher.getMisses(mContext));
+    }
+}
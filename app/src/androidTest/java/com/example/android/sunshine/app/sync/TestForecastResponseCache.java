@@ -0,0 +1,100 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/*
+    Stores, ages and evicts responses in a response cache of its own, with a fixed clock.
+ */
+public class TestForecastResponseCache extends AndroidTestCase {
+
+    private static final String KEY = "forecast.test?q=99705&units=metric&cnt=14";
+    private static final long NOW = 1000000000L;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(mContext.getCacheDir(), "test_forecast_responses");
+        createCache(ForecastResponseCache.MAX_BYTES).clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        createCache(ForecastResponseCache.MAX_BYTES).clear();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private ForecastResponseCache createCache(long maxBytes) {
+        return new ForecastResponseCache(mContext, mDirectory, maxBytes);
+    }
+
+    private static byte[] createBody(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    public void testStoredResponseIsReadBack() {
+        ForecastResponseCache cache = createCache(ForecastResponseCache.MAX_BYTES);
+        byte[] body = createBody(100);
+        cache.put(KEY, NOW, 60, "\"etag\"", null, body, body.length);
+
+        ForecastResponseCache.Entry entry = cache.get(KEY, NOW + 1);
+        assertNotNull("Error: the response should be cached", entry);
+        assertEquals(KEY, entry.key);
+        assertEquals(60, entry.wireBytes);
+        assertEquals("\"etag\"", entry.eTag);
+        assertNull(entry.lastModified);
+        assertEquals(body.length, entry.body.length);
+        for (int i = 0; i < body.length; i++) {
+            assertEquals(body[i], entry.body[i]);
+        }
+        assertNull(cache.get(KEY + "&other", NOW + 1));
+    }
+
+    public void testResponseAges() {
+        ForecastResponseCache cache = createCache(ForecastResponseCache.MAX_BYTES);
+        byte[] body = createBody(100);
+        cache.put(KEY, NOW, 60, null, null, body, body.length);
+
+        ForecastResponseCache.Entry entry = cache.get(KEY, NOW);
+        assertTrue(entry.isFresh(NOW));
+        assertFalse(entry.needsRevalidation(NOW));
+        assertTrue(entry.needsRevalidation(NOW + ForecastResponseCache.REVALIDATE_AFTER_MILLIS));
+        assertFalse(entry.isFresh(NOW + ForecastResponseCache.FRESH_MILLIS));
+
+        // A 304 makes it fresh again.
+        long later = NOW + ForecastResponseCache.FRESH_MILLIS;
+        cache.touch(KEY, later);
+        assertTrue(cache.get(KEY, later).isFresh(later));
+
+        assertNull("Error: a day old response should be dropped",
+                cache.get(KEY, later + ForecastResponseCache.MAX_AGE_MILLIS + 1));
+    }
+
+    public void testLeastRecentlyUsedResponseIsEvicted() {
+        // Room for two responses but not three.
+        ForecastResponseCache cache = createCache(2500);
+        byte[] body = createBody(1000);
+        cache.put(KEY + "1", NOW, 0, null, null, body, body.length);
+        cache.put(KEY + "2", NOW, 0, null, null, body, body.length);
+        // Using the first one makes the second the least recently used.
+        assertNotNull(cache.get(KEY + "1", NOW + 1));
+        // Eviction goes by the time of last use the entries record, not by the file times.
+        for (File file : mDirectory.listFiles()) {
+            file.setLastModified(0);
+        }
+        cache.put(KEY + "3", NOW + 2, 0, null, null, body, body.length);
+
+        assertNotNull(cache.get(KEY + "1", NOW + 2));
+        assertNull("Error: the least recently used response should be evicted",
+                cache.get(KEY + "2", NOW + 2));
+        assertNotNull(cache.get(KEY + "3", NOW + 2));
+    }
+}
@@ -0,0 +1,389 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.WeatherInformation;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.HourlySlots;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+    Drives the sync adapter through fetch, parse, commit and fan-out against a local stand-in
+    for OpenWeatherMap, so the whole pipeline runs without network access.  The benchmark
+    reports throughput and the time spent in each stage.
+ */
+public class TestSyncEndToEnd extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncEndToEnd.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "99705";
+    private static final String[] TRACKED_LOCATIONS = {"94043", "10001"};
+    private static final int BENCHMARK_SYNCS = 20;
+
+    private ForecastStandInServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new ForecastStandInServer();
+        mServer.start();
+        SunshineSyncAdapter.setForecastBaseUrl(mServer.getBaseUrl());
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        prefs.edit()
+                .putString(mContext.getString(R.string.pref_location_key), TEST_LOCATION)
+                .remove(mContext.getString(R.string.pref_location_latitude))
+                .remove(mContext.getString(R.string.pref_location_longitude))
+                .commit();
+        Utility.setTrackedLocations(mContext, Collections.<String>emptyList());
+
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        // Other locations would be prefetched, from the stand-in too.
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        ForecastPrefetcher.clear(mContext);
+        ForecastValidators.clear(mContext, TEST_LOCATION);
+        ForecastValidators.clear(mContext, "hourly:" + TEST_LOCATION);
+        for (String location : TRACKED_LOCATIONS) {
+            ForecastValidators.clear(mContext, location);
+            ForecastValidators.clear(mContext, "hourly:" + location);
+        }
+        EndpointCircuitBreaker.resetAll(mContext);
+        ForecastResponseCache.get(mContext).clear();
+        ForecastSnapshot.clear(mContext);
+        ForecastHorizon.clear(mContext);
+
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SunshineSyncAdapter.setForecastBaseUrl(null);
+        mServer.shutdown();
+        Utility.setTrackedLocations(mContext, Collections.<String>emptyList());
+        EndpointCircuitBreaker.resetAll(mContext);
+        ForecastResponseCache.get(mContext).clear();
+        ForecastSnapshot.clear(mContext);
+        ForecastHorizon.clear(mContext);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    private SyncTrace sync() {
+        mSyncAdapter.onPerformSync(null, new Bundle(),
+                mContext.getString(R.string.content_authority), null, new SyncResult());
+        return SunshineSyncAdapter.getLastSyncTrace();
+    }
+
+    private int countStoredDays() {
+        return countStoredDays(TEST_LOCATION);
+    }
+
+    private int countStoredDays(String location) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(location),
+                null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testSyncStoresRecordedForecast() {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        sync();
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(3, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+    }
+
+    public void testSyncWritesSnapshot() {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        sync();
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext, TEST_LOCATION);
+        assertNotNull("Error: The sync wrote no snapshot", snapshot);
+        assertEquals(3, snapshot.size());
+        int today = snapshot.findDay(System.currentTimeMillis());
+        assertEquals(0, today);
+
+        WeatherInformation fromProvider = WeatherInformation.getWeatherInformation(
+                TEST_LOCATION, mContext.getContentResolver());
+        assertEquals(fromProvider.getMaxTemp(), snapshot.getHigh(today), 0);
+        assertEquals(fromProvider.getMinTemp(), snapshot.getLow(today), 0);
+        assertEquals(fromProvider.getDescription(), snapshot.getDescription(today));
+    }
+
+    public void testSyncIsTraced() {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        sync();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncTraceEntry.CONTENT_URI, null, null, null, null);
+        assertTrue("Error: No trace was stored for the sync", cursor.moveToFirst());
+        assertEquals(WeatherContract.SyncTraceEntry.OUTCOME_OK, cursor.getString(
+                cursor.getColumnIndex(WeatherContract.SyncTraceEntry.COLUMN_OUTCOME)));
+        assertEquals(3, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.SyncTraceEntry.COLUMN_ROWS_PARSED)));
+        assertEquals(3, cursor.getInt(
+                cursor.getColumnIndex(WeatherContract.SyncTraceEntry.COLUMN_ROWS_WRITTEN)));
+        assertTrue("Error: The trace recorded no bytes", cursor.getLong(
+                cursor.getColumnIndex(WeatherContract.SyncTraceEntry.COLUMN_WIRE_BYTES)) > 0);
+        cursor.close();
+    }
+
+    public void testSyncStoresHourlyForecast() {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        sync();
+        assertEquals(1, mServer.getHourlyRequestCount());
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocation(TEST_LOCATION),
+                new String[]{WeatherContract.HourlyEntry.COLUMN_SLOTS}, null, null, null);
+        int slots = 0;
+        while (cursor.moveToNext()) {
+            slots += new HourlySlots(cursor.getBlob(0)).size();
+        }
+        assertTrue("Error: the 3-hour forecast should take a row per day, not per slot",
+                cursor.getCount() < ForecastStandInServer.HOURLY_SLOTS);
+        cursor.close();
+        assertEquals(ForecastStandInServer.HOURLY_SLOTS, slots);
+    }
+
+    public void testUnchangedForecastIsNoOp() {
+        // The server answers 304 to the ETag, or to the Last-Modified date, of what is stored;
+        // with neither, the body is the same as the stored one.
+        assertSecondSyncIsNoOp("ETag", true, false, 1);
+        assertSecondSyncIsNoOp("Last-Modified", false, true, 1);
+        assertSecondSyncIsNoOp("content hash", false, false, 0);
+    }
+
+    private void assertSecondSyncIsNoOp(String how, boolean eTag, boolean lastModified,
+                                        int notModified) {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        mServer.repeatGenerated = true;
+        mServer.sendETag = eTag;
+        mServer.sendLastModified = lastModified;
+        ForecastValidators.clear(mContext, TEST_LOCATION);
+        ForecastValidators.clear(mContext, "hourly:" + TEST_LOCATION);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        ForecastResponseCache.get(mContext).clear();
+        assertEquals(how + ": the first sync should store the forecast", 3, sync().parsedRows);
+        assertEquals(3, countStoredDays());
+
+        // Go to the server with a full fetch again, rather than the cached or near-term one.
+        ForecastResponseCache.get(mContext).clear();
+        ForecastHorizon.clear(mContext);
+        int requests = mServer.getRequestCount();
+        int hourlyRequests = mServer.getHourlyRequestCount();
+        int notModifiedBefore = mServer.getNotModifiedCount();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String lastNotificationKey = mContext.getString(R.string.pref_last_notification);
+        long lastNotification = prefs.getLong(lastNotificationKey, 0);
+
+        SyncTrace trace = sync();
+        assertEquals(how + ": the second sync should have asked the server",
+                requests + 1, mServer.getRequestCount());
+        assertEquals(hourlyRequests + 1, mServer.getHourlyRequestCount());
+        assertEquals(how + ": the daily and 3-hour forecasts should both be unchanged",
+                notModifiedBefore + 2 * notModified, mServer.getNotModifiedCount());
+        assertEquals(how + ": nothing should have been parsed", 0, trace.parsedRows);
+        assertEquals(0, trace.rowsWritten);
+        assertEquals(0, trace.rowsUpdated);
+        assertEquals(0, trace.hourlyRowsWritten);
+        assertEquals(3, countStoredDays());
+        assertFalse(how + ": no consumer should have been run, ran " + trace.getConsumers(),
+                trace.getConsumers().contains(" ms"));
+        assertEquals(how + ": no notification should have been posted",
+                lastNotification, prefs.getLong(lastNotificationKey, 0));
+        assertEquals(WeatherContract.SyncTraceEntry.OUTCOME_NO_OP, trace.outcome);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.SyncTraceEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncTraceEntry.COLUMN_OUTCOME}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(how + ": the newest trace should be the no-op",
+                WeatherContract.SyncTraceEntry.OUTCOME_NO_OP, cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testTrackedLocationsSyncedTogether() {
+        Utility.setTrackedLocations(mContext, Arrays.asList(TRACKED_LOCATIONS));
+        int locations = TRACKED_LOCATIONS.length + 1;
+        // Long enough that fetching the locations one after the other would show.
+        mServer.latencyMillis = 300;
+
+        SyncTrace trace = sync();
+        assertEquals(locations, trace.locations);
+        assertEquals(locations, mServer.getRequestCount());
+        assertTrue("Error: the locations should have been fetched concurrently",
+                mServer.getMaxRequestsInFlight() > 1);
+        // A daily and a 3-hour request each.
+        assertTrue("Error: the fetch stage took " + trace.fetchMillis + " ms",
+                trace.fetchMillis < locations * 2 * mServer.latencyMillis);
+        assertEquals(locations * ForecastRequest.NUM_DAYS, trace.parsedRows);
+        // The timings are those of the last batch, so they only count every location's rows
+        // if a single batch stored them all.
+        assertEquals("Error: every location should have been stored in one batch",
+                locations * ForecastRequest.NUM_DAYS, trace.rowsWritten);
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays());
+        for (String location : TRACKED_LOCATIONS) {
+            assertEquals(ForecastRequest.NUM_DAYS, countStoredDays(location));
+        }
+    }
+
+    public void testFailingTrackedLocationKeepsOthers() {
+        Utility.setTrackedLocations(mContext, Arrays.asList(TRACKED_LOCATIONS));
+        String failing = TRACKED_LOCATIONS[1];
+        mServer.failingLocation = failing;
+
+        SyncTrace trace = sync();
+        assertEquals(WeatherContract.SyncTraceEntry.OUTCOME_OK, trace.outcome);
+        assertEquals(TRACKED_LOCATIONS.length * ForecastRequest.NUM_DAYS, trace.rowsWritten);
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays());
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays(TRACKED_LOCATIONS[0]));
+        assertEquals(0, countStoredDays(failing));
+        assertEquals("Error: a tracked location failing is not the preferred one's status",
+                SunshineSyncAdapter.LOCATION_STATUS_OK, Utility.getLocationStatus(mContext));
+
+        // Once the location's server recovers, the next sync stores it.
+        mServer.failingLocation = null;
+        EndpointCircuitBreaker.resetAll(mContext);
+        sync();
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays(failing));
+    }
+
+    public void testRecentResponseServedFromCache() {
+        mServer.payload = TestForecastParser.RECORDED_FORECAST;
+        sync();
+        SyncTrace trace = sync();
+        assertEquals("Error: the second sync should not have gone to the server",
+                1, mServer.getRequestCount());
+        assertEquals(1, trace.cacheHits);
+        assertEquals(0, trace.wireBytes);
+        assertEquals(3, countStoredDays());
+
+        // Without the cached response the server is asked again.
+        ForecastResponseCache.get(mContext).clear();
+        sync();
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testNearTermSyncKeepsLaterDays() {
+        SyncTrace full = sync();
+        assertEquals(ForecastRequest.NUM_DAYS, full.parsedRows);
+        assertEquals(0, full.shortFetches);
+
+        // The next sync only asks for the first days, and leaves the rest as they are.
+        ForecastResponseCache.get(mContext).clear();
+        SyncTrace nearTerm = sync();
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, nearTerm.shortFetches);
+        assertEquals(ForecastHorizon.SHORT_DAYS, nearTerm.parsedRows);
+        assertTrue("Error: the near-term fetch should be smaller than the full one",
+                nearTerm.wireBytes < full.wireBytes);
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays());
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext, TEST_LOCATION);
+        assertEquals(ForecastRequest.NUM_DAYS, snapshot.size());
+
+        // Once the full forecast is old, it is fetched again.
+        ForecastHorizon.clear(mContext);
+        ForecastResponseCache.get(mContext).clear();
+        assertEquals(ForecastRequest.NUM_DAYS, sync().parsedRows);
+    }
+
+    public void testNotFoundMarksLocationInvalid() {
+        mServer.responseCode = 404;
+        sync();
+        assertEquals(0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_INVALID,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testServerErrorMarksServerDown() {
+        mServer.responseCode = 503;
+        sync();
+        assertEquals(0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testTruncatedBodyStoresNothing() {
+        mServer.truncateBody = true;
+        sync();
+        assertEquals(0, countStoredDays());
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                Utility.getLocationStatus(mContext));
+    }
+
+    public void testBenchmarkSyncPipeline() {
+        benchmark("14 days, gzip", 0, 0, true);
+        benchmark("14 days, 64 KB padding", 0, 64 * 1024, false);
+        benchmark("14 days, 100 ms latency", 100, 0, true);
+    }
+
+    private void benchmark(String name, long latencyMillis, int paddingBytes, boolean gzip) {
+        mServer.latencyMillis = latencyMillis;
+        mServer.paddingBytes = paddingBytes;
+        mServer.gzip = gzip;
+
+        // Every sync gets a different forecast, so none of them is skipped as unchanged.
+        SyncTrace total = new SyncTrace();
+        for (int i = 0; i < BENCHMARK_SYNCS; i++) {
+            // Measure the network path of full fetches, not the response cache.
+            ForecastResponseCache.get(mContext).clear();
+            ForecastHorizon.clear(mContext);
+            SyncTrace trace = sync();
+            assertFalse("Error: sync " + i + " of " + name + " was canceled",
+                    WeatherContract.SyncTraceEntry.OUTCOME_CANCELED.equals(trace.outcome));
+            assertEquals("Error: sync " + i + " of " + name + " stored nothing",
+                    ForecastRequest.NUM_DAYS, trace.parsedRows);
+            total.totalMillis += trace.totalMillis;
+            total.fetchMillis += trace.fetchMillis;
+            total.connectMillis += trace.connectMillis;
+            total.ttfbMillis += trace.ttfbMillis;
+            total.downloadMillis += trace.downloadMillis;
+            total.parseMillis += trace.parseMillis;
+            total.commitMillis += trace.commitMillis;
+            total.fanOutMillis += trace.fanOutMillis;
+            total.wireBytes += trace.wireBytes;
+            total.parsedRows += trace.parsedRows;
+        }
+        assertEquals(ForecastRequest.NUM_DAYS, countStoredDays());
+
+        Log.d(LOG_TAG, name + ": " + BENCHMARK_SYNCS + " syncs, "
+                + (BENCHMARK_SYNCS * 1000f / Math.max(1, total.totalMillis)) + " syncs/s, "
+                + (total.parsedRows * 1000f / Math.max(1, total.totalMillis)) + " rows/s; "
+                + "mean per sync: total " + total.totalMillis / BENCHMARK_SYNCS
+                + " ms, fetch " + total.fetchMillis / BENCHMARK_SYNCS
+                + " ms (connect " + total.connectMillis / BENCHMARK_SYNCS
+                + ", first byte " + total.ttfbMillis / BENCHMARK_SYNCS
+                + ", download " + total.downloadMillis / BENCHMARK_SYNCS
+                + ", parse " + total.parseMillis / BENCHMARK_SYNCS
+                + "), commit " + total.commitMillis / BENCHMARK_SYNCS
+                + " ms, fan-out " + total.fanOutMillis / BENCHMARK_SYNCS
+                + " ms, " + total.wireBytes / BENCHMARK_SYNCS + " bytes");
+    }
+}
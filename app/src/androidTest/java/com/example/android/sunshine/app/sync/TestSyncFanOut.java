@@ -0,0 +1,218 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Checks which fan-out consumers run for what a sync changed, that a consumer failing or
+    taking too long is given up on, and that what was fanned out is only remembered once every
+    consumer has finished.
+ */
+public class TestSyncFanOut extends AndroidTestCase {
+
+    private static final String TEST_LOCATION = "99705";
+
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncChangeSet.clear(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncChangeSet.clear(mContext);
+        super.tearDown();
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+            }
+        };
+    }
+
+    private SyncFanOut createFanOut() {
+        return new SyncFanOut()
+                .add("widgets", SyncChangeSet.FORECAST, record("widgets"))
+                .add("Muzei", SyncChangeSet.CONDITION, record("Muzei"))
+                .add("notification", SyncChangeSet.NOTIFICATION_DUE, record("notification"))
+                .add("watch face", SyncChangeSet.TODAY, record("watch face"));
+    }
+
+    private static ForecastBatch createBatch(double high, int weatherId) {
+        ForecastBatch batch = new ForecastBatch(TEST_LOCATION);
+        batch.onCity("North Pole", 64.7488, -147.353);
+        ForecastDay day = new ForecastDay();
+        for (int i = 0; i < 3; i++) {
+            day.reset();
+            day.high = high + i;
+            day.low = high - 10;
+            day.humidity = 80;
+            day.pressure = 1012.5;
+            day.description = weatherId == 800 ? "Clear" : "Rain";
+            day.weatherId = i == 0 ? weatherId : 800;
+            batch.onDay(i, day);
+        }
+        return batch;
+    }
+
+    /**
+     * @return a batch of days that all look the same, fetched at {@code now}.
+     */
+    private static ForecastBatch createBatch(long now, double high, int weatherId) {
+        ForecastBatch batch = new ForecastBatch(TEST_LOCATION, now);
+        batch.onCity("North Pole", 64.7488, -147.353);
+        ForecastDay day = new ForecastDay();
+        for (int i = 0; i < 3; i++) {
+            day.reset();
+            day.high = high;
+            day.low = high - 10;
+            day.humidity = 80;
+            day.pressure = 1012.5;
+            day.description = weatherId == 800 ? "Clear" : "Rain";
+            day.weatherId = weatherId;
+            batch.onDay(i, day);
+        }
+        return batch;
+    }
+
+    public void testConsumersRunForTheirChanges() {
+        SyncTrace trace = new SyncTrace();
+        assertTrue(createFanOut().run(
+                SyncChangeSet.TODAY | SyncChangeSet.NOTIFICATION_DUE, trace));
+        Collections.sort(mRan);
+        assertEquals(Arrays.asList("notification", "watch face"), mRan);
+        assertTrue(trace.getConsumers(), trace.getConsumers().contains("widgets skipped"));
+        assertTrue(trace.getConsumers(), trace.getConsumers().contains("Muzei skipped"));
+
+        mRan.clear();
+        assertTrue("Error: nothing to do is done", createFanOut().run(0, new SyncTrace()));
+        assertTrue("Error: no consumer should run without changes, ran " + mRan,
+                mRan.isEmpty());
+    }
+
+    public void testFailingConsumerDoesNotStopTheOthers() {
+        SyncTrace trace = new SyncTrace();
+        boolean completed = createFanOut()
+                .add("failing", SyncChangeSet.FORECAST, new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new IllegalStateException("Failing on purpose");
+                    }
+                })
+                .run(SyncChangeSet.FORECAST, trace);
+        assertFalse(completed);
+        assertEquals(Collections.singletonList("widgets"), mRan);
+        assertTrue(trace.getConsumers(), trace.getConsumers().contains("failing failed"));
+    }
+
+    public void testSlowConsumerTimesOut() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        SyncTrace trace = new SyncTrace();
+        long start = SystemClock.elapsedRealtime();
+        boolean completed = new SyncFanOut(100)
+                .add("widgets", SyncChangeSet.FORECAST, record("widgets"))
+                .add("slow", SyncChangeSet.FORECAST, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(10 * 1000);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                    }
+                })
+                .run(SyncChangeSet.FORECAST, trace);
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        assertFalse(completed);
+        assertTrue("Error: the fan-out waited " + millis + " ms", millis < 5 * 1000);
+        assertTrue(trace.getConsumers(), trace.getConsumers().contains("slow timed out"));
+        assertEquals(Collections.singletonList("widgets"), mRan);
+        assertTrue("Error: the consumer given up on should be interrupted",
+                interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(30 * 1000, SyncFanOut.CONSUMER_TIMEOUT_MILLIS);
+    }
+
+    public void testChangeSetFollowsWhatConsumersShow() {
+        SyncChangeSet first = SyncChangeSet.compute(mContext, createBatch(20, 800), false);
+        assertEquals("Error: a first forecast is new to every consumer",
+                SyncChangeSet.FORECAST | SyncChangeSet.TODAY | SyncChangeSet.CONDITION,
+                first.getChanges());
+        first.save(mContext);
+        assertEquals(0, SyncChangeSet.compute(mContext, createBatch(20, 800), false)
+                .getChanges());
+
+        // Another high today changes today, but not its artwork.
+        SyncChangeSet warmer = SyncChangeSet.compute(mContext, createBatch(25, 800), false);
+        assertEquals(SyncChangeSet.FORECAST | SyncChangeSet.TODAY, warmer.getChanges());
+        SyncChangeSet rain = SyncChangeSet.compute(mContext, createBatch(20, 500), false);
+        assertEquals(SyncChangeSet.FORECAST | SyncChangeSet.TODAY | SyncChangeSet.CONDITION,
+                rain.getChanges());
+    }
+
+    public void testChangeSetOnlySavedWhenEveryConsumerFinished() {
+        SyncChangeSet changeSet = SyncChangeSet.compute(mContext, createBatch(20, 800), false);
+        SyncFanOut failing = createFanOut()
+                .add("failing", SyncChangeSet.TODAY, new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new IllegalStateException("Failing on purpose");
+                    }
+                });
+        assertFalse(failing.run(changeSet, mContext, new SyncTrace()));
+        assertEquals("Error: the next sync should retry what didn't finish",
+                changeSet.getChanges(),
+                SyncChangeSet.compute(mContext, createBatch(20, 800), false).getChanges());
+
+        assertTrue(createFanOut().run(changeSet, mContext, new SyncTrace()));
+        assertEquals(0, SyncChangeSet.compute(mContext, createBatch(20, 800), false)
+                .getChanges());
+    }
+
+    public void testUnchangedSyncOnlyRunsTheNotification() {
+        SyncChangeSet stored = SyncChangeSet.compute(mContext, createBatch(20, 800), false);
+        stored.save(mContext);
+
+        SyncChangeSet unchanged = SyncChangeSet.unchanged();
+        unchanged.add(SyncChangeSet.NOTIFICATION_DUE);
+        assertEquals(0, unchanged.getChangedDays());
+        assertTrue(createFanOut().run(unchanged, mContext, new SyncTrace()));
+        assertEquals(Collections.singletonList("notification"), mRan);
+        assertEquals("Error: an unchanged sync should leave what was fanned out alone",
+                0, SyncChangeSet.compute(mContext, createBatch(20, 800), false).getChanges());
+    }
+
+    public void testOnlyNoticeableChangesCountAsChangedDays() {
+        long now = System.currentTimeMillis();
+        SyncChangeSet.compute(mContext, createBatch(now, 20, 800), false).save(mContext);
+
+        // Midnight moves the forecast on a day without changing any of the days it kept.
+        SyncChangeSet rollover = SyncChangeSet.compute(mContext,
+                createBatch(now + 24 * 60 * 60 * 1000, 20, 800), false);
+        assertTrue(rollover.isForecastChanged());
+        assertEquals(0, rollover.getChangedDays());
+
+        SyncChangeSet slightly = SyncChangeSet.compute(mContext,
+                createBatch(now, 20.05, 800), false);
+        assertTrue("Error: the consumers should still show the new values",
+                slightly.isForecastChanged());
+        assertEquals(0, slightly.getChangedDays());
+
+        assertEquals(3, SyncChangeSet.compute(mContext, createBatch(now, 23, 800), false)
+                .getChangedDays());
+        assertEquals(3, SyncChangeSet.compute(mContext, createBatch(now, 20, 500), false)
+                .getChangedDays());
+    }
+}
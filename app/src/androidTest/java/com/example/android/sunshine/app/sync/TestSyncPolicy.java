@@ -0,0 +1,104 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+/*
+    Compares the sync policies on simulated weeks of forecast changes, so a change to a policy
+    shows up as a change in wakeups and staleness rather than only on a device.
+ */
+public class TestSyncPolicy extends AndroidTestCase {
+
+    private static final long SEED = 42;
+    private static final int DAYS = 28;
+    private static final float APP_USES_PER_DAY = 2;
+    // The server reissuing the forecast every three hours.
+    private static final float CHURNS_PER_DAY = 8;
+
+    private static SyncPolicy createAdaptivePolicy() {
+        return new AdaptiveSyncPolicy(SyncScheduler.MIN_SYNC_INTERVAL,
+                SyncScheduler.MAX_SYNC_INTERVAL);
+    }
+
+    private static SyncSimulator.Result simulate(SyncPolicy policy, float changesPerDay) {
+        return simulate(policy, changesPerDay, CHURNS_PER_DAY);
+    }
+
+    private static SyncSimulator.Result simulate(SyncPolicy policy, float changesPerDay,
+                                                 float churnsPerDay) {
+        return SyncSimulator.run(policy, SyncSimulator.Scenario.generate(SEED, DAYS,
+                        changesPerDay, churnsPerDay, APP_USES_PER_DAY),
+                SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    private static SyncSignals createSignals(int changedDays, int fetchedDays) {
+        SyncSignals signals = new SyncSignals();
+        signals.changedDays = changedDays;
+        signals.fetchedDays = fetchedDays;
+        signals.noOp = changedDays == 0;
+        // Used recently, but not within the hour.
+        signals.millisSinceAppUse = 2 * 60 * 60 * 1000;
+        return signals;
+    }
+
+    public void testSimulationIsDeterministic() {
+        SyncSimulator.Result first = simulate(createAdaptivePolicy(), 4);
+        SyncSimulator.Result second = simulate(createAdaptivePolicy(), 4);
+        assertEquals(first.wakeups, second.wakeups);
+        assertEquals(first.bytes, second.bytes);
+        assertEquals(first.totalStalenessMillis, second.totalStalenessMillis);
+    }
+
+    public void testAdaptivePolicyStaysWithinBounds() {
+        for (float changesPerDay : new float[]{0, 1, 4, 12, 48}) {
+            SyncSimulator.Result result = simulate(createAdaptivePolicy(), changesPerDay);
+            assertTrue("Error: period below the minimum with " + changesPerDay
+                            + " changes a day: " + result,
+                    result.minInterval >= SyncScheduler.MIN_SYNC_INTERVAL);
+            assertTrue("Error: period above the maximum with " + changesPerDay
+                            + " changes a day: " + result,
+                    result.maxInterval <= SyncScheduler.MAX_SYNC_INTERVAL);
+        }
+    }
+
+    public void testAdaptivePolicyWakesLessWhenCalm() {
+        SyncSimulator.Result fixed = simulate(
+                new FixedSyncPolicy(SunshineSyncAdapter.SYNC_INTERVAL), 1);
+        SyncSimulator.Result adaptive = simulate(createAdaptivePolicy(), 1);
+        assertTrue("Error: adaptive " + adaptive + " vs fixed " + fixed,
+                adaptive.wakeups < fixed.wakeups);
+        assertTrue("Error: adaptive " + adaptive + " vs fixed " + fixed,
+                adaptive.bytes < fixed.bytes);
+    }
+
+    public void testAdaptivePolicyFollowsVolatileForecast() {
+        SyncSimulator.Result fixed = simulate(
+                new FixedSyncPolicy(SunshineSyncAdapter.SYNC_INTERVAL), 12);
+        SyncSimulator.Result adaptive = simulate(createAdaptivePolicy(), 12);
+        assertTrue("Error: adaptive " + adaptive + " vs fixed " + fixed,
+                adaptive.getMeanStalenessMillis() < fixed.getMeanStalenessMillis());
+    }
+
+    public void testChurnAloneDoesNotSpeedUpSyncs() {
+        SyncSimulator.Result calm = simulate(createAdaptivePolicy(), 0, 0);
+        SyncSimulator.Result churned = simulate(createAdaptivePolicy(), 0, 4 * CHURNS_PER_DAY);
+        assertEquals("Error: reissued forecasts should not change the schedule",
+                calm.wakeups, churned.wakeups);
+        assertTrue("Error: reissued forecasts should cost their bytes",
+                churned.bytes > calm.bytes);
+
+        SyncSimulator.Result fixed = simulate(
+                new FixedSyncPolicy(SunshineSyncAdapter.SYNC_INTERVAL), 0, 4 * CHURNS_PER_DAY);
+        assertTrue("Error: adaptive " + churned + " vs fixed " + fixed,
+                churned.wakeups < fixed.wakeups);
+    }
+
+    public void testVolatilityIsRelativeToDaysFetched() {
+        SyncPolicy policy = createAdaptivePolicy();
+        long interval = 10000;
+        assertEquals(8000, policy.nextInterval(interval, createSignals(1, 14)));
+        assertEquals(5000, policy.nextInterval(interval, createSignals(7, 14)));
+        // A fetch of the near term only has fewer days that can change.
+        assertEquals(5000, policy.nextInterval(interval, createSignals(2, 3)));
+        assertEquals(8000, policy.nextInterval(interval, createSignals(1, 3)));
+    }
+}
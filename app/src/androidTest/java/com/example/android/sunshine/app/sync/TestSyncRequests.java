@@ -0,0 +1,267 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that requests to sync immediately are collapsed into one sync of the location the
+    last of them was for, and that a sync in flight is kept when it is yet to fetch that
+    location and canceled when it isn't.  A request that comes in once the sync in flight has
+    fetched follows it.  Requests go to a stand-in for the sync manager.
+ */
+public class TestSyncRequests extends AndroidTestCase {
+
+    private static final String FIRST_LOCATION = "99705";
+    private static final String SECOND_LOCATION = "94043";
+
+    // Longer than the window of a request, so one can come and go while a sync is in flight.
+    private static final long SYNC_LATENCY_MILLIS =
+            2 * SunshineSyncAdapter.SYNC_COALESCE_WINDOW_MILLIS;
+
+    /**
+     * Records the location each sync was requested for, and cancels the sync in flight the way
+     * the sync manager would.
+     */
+    private static class StandInSyncManager implements SunshineSyncAdapter.SyncRequester {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger cancels = new AtomicInteger();
+        volatile SunshineSyncAdapter syncing;
+
+        @Override
+        public void requestSync(Context context, Bundle extras) {
+            assertTrue(extras.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED));
+            assertTrue(extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL));
+            requests.add(Utility.getPreferredLocation(context));
+        }
+
+        @Override
+        public void cancelSync(Context context) {
+            cancels.incrementAndGet();
+            SunshineSyncAdapter adapter = syncing;
+            if (adapter != null) {
+                adapter.onSyncCanceled();
+            }
+        }
+    }
+
+    private StandInSyncManager mSyncManager;
+    private String mSavedLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        waitForPendingRequest();
+        mSyncManager = new StandInSyncManager();
+        SunshineSyncAdapter.setSyncRequester(mSyncManager);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = prefs.getString(mContext.getString(R.string.pref_location_key), null);
+        setLocation(FIRST_LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // A request left pending would otherwise reach the next test's sync manager.
+        waitForPendingRequest();
+        SunshineSyncAdapter.setSyncRequester(null);
+
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mContext.getString(R.string.pref_location_key));
+        } else {
+            editor.putString(mContext.getString(R.string.pref_location_key), mSavedLocation);
+        }
+        editor.commit();
+        super.tearDown();
+    }
+
+    private void setLocation(String location) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(mContext.getString(R.string.pref_location_key), location)
+                .remove(mContext.getString(R.string.pref_location_latitude))
+                .remove(mContext.getString(R.string.pref_location_longitude))
+                .commit();
+    }
+
+    private static void waitForPendingRequest() {
+        new PollingCheck(4 * SunshineSyncAdapter.SYNC_COALESCE_WINDOW_MILLIS) {
+            @Override
+            protected boolean check() {
+                return !SunshineSyncAdapter.isSyncRequestPending();
+            }
+        }.run();
+    }
+
+    public void testBurstOfRequestsIsCollapsed() {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 5; i++) {
+            SunshineSyncAdapter.syncImmediately(mContext);
+        }
+        if (SystemClock.elapsedRealtime() - start
+                < SunshineSyncAdapter.SYNC_COALESCE_WINDOW_MILLIS) {
+            assertTrue("Error: no sync should be requested within the window",
+                    mSyncManager.requests.isEmpty());
+        }
+
+        waitForPendingRequest();
+        assertEquals(Collections.singletonList(FIRST_LOCATION), mSyncManager.requests);
+        assertEquals(0, mSyncManager.cancels.get());
+    }
+
+    public void testLatestLocationWins() {
+        SunshineSyncAdapter.syncImmediately(mContext);
+        setLocation(SECOND_LOCATION);
+        SunshineSyncAdapter.syncImmediately(mContext);
+
+        waitForPendingRequest();
+        assertEquals("Error: the one sync should be for the location last asked for",
+                Collections.singletonList(SECOND_LOCATION), mSyncManager.requests);
+    }
+
+    /**
+     * @return a stand-in server following syncs fetch from, with nothing about the first
+     * location stored or cached.
+     */
+    private ForecastStandInServer startStandInServer() throws IOException {
+        ForecastStandInServer server = new ForecastStandInServer();
+        server.start();
+        SunshineSyncAdapter.setForecastBaseUrl(server.getBaseUrl());
+        Utility.setTrackedLocations(mContext, Collections.<String>emptyList());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        ForecastPrefetcher.clear(mContext);
+        ForecastValidators.clear(mContext, FIRST_LOCATION);
+        EndpointCircuitBreaker.resetAll(mContext);
+        ForecastResponseCache.get(mContext).clear();
+        ForecastHorizon.clear(mContext);
+        return server;
+    }
+
+    private void stopStandInServer(ForecastStandInServer server) {
+        SunshineSyncAdapter.setForecastBaseUrl(null);
+        server.shutdown();
+        EndpointCircuitBreaker.resetAll(mContext);
+        ForecastResponseCache.get(mContext).clear();
+        ForecastHorizon.clear(mContext);
+    }
+
+    private Thread startSync(final SunshineSyncAdapter adapter) {
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                adapter.onPerformSync(null, new Bundle(),
+                        mContext.getString(R.string.content_authority), null, new SyncResult());
+            }
+        });
+        syncThread.start();
+        return syncThread;
+    }
+
+    public void testSupersededSyncIsCanceled() throws Exception {
+        ForecastStandInServer server = startStandInServer();
+        server.latencyMillis = SYNC_LATENCY_MILLIS;
+
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        mSyncManager.syncing = adapter;
+        Thread syncThread = startSync(adapter);
+        try {
+            new PollingCheck() {
+                @Override
+                protected boolean check() {
+                    return SunshineSyncAdapter.getSyncingLocation() != null;
+                }
+            }.run();
+            assertEquals(FIRST_LOCATION, SunshineSyncAdapter.getSyncingLocation());
+
+            // The sync in flight is yet to fetch this location.
+            SunshineSyncAdapter.syncImmediately(mContext);
+            waitForPendingRequest();
+            assertTrue("Error: the sync in flight should be kept",
+                    mSyncManager.requests.isEmpty());
+            assertEquals(0, mSyncManager.cancels.get());
+
+            // But not this one.
+            setLocation(SECOND_LOCATION);
+            SunshineSyncAdapter.syncImmediately(mContext);
+            waitForPendingRequest();
+            assertEquals(1, mSyncManager.cancels.get());
+            assertEquals(Collections.singletonList(SECOND_LOCATION), mSyncManager.requests);
+
+            syncThread.join(4 * SYNC_LATENCY_MILLIS);
+            assertFalse(syncThread.isAlive());
+            assertNull(SunshineSyncAdapter.getSyncingLocation());
+            assertEquals(WeatherContract.SyncTraceEntry.OUTCOME_CANCELED,
+                    SunshineSyncAdapter.getLastSyncTrace().outcome);
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherContract.WeatherEntry.buildWeatherLocation(FIRST_LOCATION),
+                    null, null, null, null);
+            assertEquals("Error: a canceled sync should store nothing", 0, cursor.getCount());
+            cursor.close();
+        } finally {
+            syncThread.join();
+            stopStandInServer(server);
+        }
+    }
+
+    public void testRequestAfterFetchFollowsSync() throws Exception {
+        ForecastStandInServer server = startStandInServer();
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Picking the next period is one of the last things a sync does, well after it fetched.
+        SyncScheduler.setPolicy(new SyncPolicy() {
+            @Override
+            public long nextInterval(long currentInterval, SyncSignals signals) {
+                fetched.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return currentInterval;
+            }
+        });
+
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(mContext, false);
+        mSyncManager.syncing = adapter;
+        Thread syncThread = startSync(adapter);
+        try {
+            assertTrue(fetched.await(10, TimeUnit.SECONDS));
+            assertNull("Error: a sync past its fetches should not hold requests back",
+                    SunshineSyncAdapter.getSyncingLocation());
+
+            // Say the cached forecast the sync stored turned out to be stale.
+            SunshineSyncAdapter.syncImmediately(mContext);
+            waitForPendingRequest();
+            assertEquals("Error: the request should follow the sync in flight",
+                    Collections.singletonList(FIRST_LOCATION), mSyncManager.requests);
+            assertEquals(0, mSyncManager.cancels.get());
+        } finally {
+            release.countDown();
+            syncThread.join();
+            SyncScheduler.setPolicy(new AdaptiveSyncPolicy(SyncScheduler.MIN_SYNC_INTERVAL,
+                    SyncScheduler.MAX_SYNC_INTERVAL));
+            stopStandInServer(server);
+        }
+    }
+}
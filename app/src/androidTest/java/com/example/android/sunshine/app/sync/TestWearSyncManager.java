@@ -0,0 +1,120 @@
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.gms.wearable.DataMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Delivers queued payloads to a stand-in for the data layer that fails on demand.
+ */
+public class TestWearSyncManager extends AndroidTestCase {
+
+    private static final String PATH = "/weatherDetails";
+    private static final String OTHER_PATH = "/other";
+
+    private static class StandInChannel implements WearSyncManager.Channel {
+        @WearSyncManager.Connection
+        int connection = WearSyncManager.CONNECTED;
+        int failingPuts;
+        int connects;
+        final List<String> puts = new ArrayList<String>();
+
+        @Override
+        public int connect(long timeoutMillis) {
+            connects++;
+            return connection;
+        }
+
+        @Override
+        public boolean put(String path, DataMap dataMap, long timeoutMillis) {
+            if (failingPuts > 0) {
+                failingPuts--;
+                return false;
+            }
+            puts.add(path + " " + dataMap.getString("maxTemp"));
+            return true;
+        }
+    }
+
+    private static DataMap createDataMap(String maxTemp) {
+        DataMap dataMap = new DataMap();
+        dataMap.putString("maxTemp", maxTemp);
+        return dataMap;
+    }
+
+    public void testCoalescesByPath() {
+        StandInChannel channel = new StandInChannel();
+        WearSyncManager manager = new WearSyncManager(channel);
+        manager.enqueue(PATH, createDataMap("10"));
+        manager.enqueue(OTHER_PATH, createDataMap("1"));
+        manager.enqueue(PATH, createDataMap("12"));
+        assertEquals(2, manager.getPendingCount());
+        assertEquals(1, manager.getCoalesced());
+
+        assertTrue(manager.flush());
+        assertEquals("Error: only the newest payload of a path should be put",
+                2, channel.puts.size());
+        assertEquals(OTHER_PATH + " 1", channel.puts.get(0));
+        assertEquals(PATH + " 12", channel.puts.get(1));
+        assertEquals(2, manager.getDelivered());
+        assertEquals(0, manager.getPendingCount());
+
+        // Nothing queued, nothing to connect for.
+        int connects = channel.connects;
+        assertTrue(manager.flush());
+        assertEquals(connects, channel.connects);
+    }
+
+    public void testRetriesFailedPuts() {
+        StandInChannel channel = new StandInChannel();
+        channel.failingPuts = 1;
+        WearSyncManager manager = new WearSyncManager(channel);
+        manager.enqueue(PATH, createDataMap("10"));
+
+        assertTrue(manager.flush());
+        assertEquals(1, manager.getFailures());
+        assertEquals(1, manager.getDelivered());
+        assertEquals(2, channel.connects);
+    }
+
+    public void testKeepsWhatCouldNotBeDelivered() {
+        StandInChannel channel = new StandInChannel();
+        channel.connection = WearSyncManager.FAILED;
+        WearSyncManager manager = new WearSyncManager(channel);
+        manager.enqueue(PATH, createDataMap("10"));
+
+        assertFalse(manager.flush());
+        assertEquals(WearSyncManager.MAX_ATTEMPTS, channel.connects);
+        assertEquals(WearSyncManager.MAX_ATTEMPTS, manager.getFailures());
+        assertEquals(1, manager.getPendingCount());
+
+        // The next flush delivers it, or the newer payload that replaced it.
+        channel.connection = WearSyncManager.CONNECTED;
+        manager.enqueue(PATH, createDataMap("11"));
+        assertTrue(manager.flush());
+        assertEquals(1, channel.puts.size());
+        assertEquals(PATH + " 11", channel.puts.get(0));
+    }
+
+    public void testDropsQueueWithoutWearableApi() {
+        StandInChannel channel = new StandInChannel();
+        channel.connection = WearSyncManager.UNAVAILABLE;
+        WearSyncManager manager = new WearSyncManager(channel);
+        manager.enqueue(PATH, createDataMap("10"));
+
+        assertTrue("Error: with no watch to deliver to there is nothing left to do",
+                manager.flush());
+        assertEquals(1, channel.connects);
+        assertEquals(0, manager.getPendingCount());
+        assertEquals(0, manager.getFailures());
+    }
+
+    public void testBackoffDoubles() {
+        assertEquals(WearSyncManager.BASE_BACKOFF_MILLIS, WearSyncManager.getBackoffMillis(1));
+        assertEquals(2 * WearSyncManager.BASE_BACKOFF_MILLIS,
+                WearSyncManager.getBackoffMillis(2));
+    }
+}
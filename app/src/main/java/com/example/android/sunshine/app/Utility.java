@@ -26,7 +26,9 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Utility {
@@ -60,6 +62,46 @@ public class Utility {
                 context.getString(R.string.pref_location_default));
     }
 
+    // Location settings can contain commas ("London,uk"), so tracked ones are kept one per line.
+    private static final String TRACKED_LOCATIONS_SEPARATOR = "\n";
+
+    /**
+     * @return the locations synced in addition to the preferred one, in the order they were
+     * added.  The preferred location is never part of the list.
+     */
+    public static List<String> getTrackedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String tracked = prefs.getString(context.getString(R.string.pref_tracked_locations_key), "");
+        String preferred = getPreferredLocation(context);
+
+        List<String> locations = new ArrayList<String>();
+        for (String location : tracked.split(TRACKED_LOCATIONS_SEPARATOR)) {
+            location = location.trim();
+            if (location.length() > 0 && !location.equals(preferred)
+                    && !locations.contains(location)) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Replaces the locations synced in addition to the preferred one.
+     */
+    public static void setTrackedLocations(Context context, List<String> locations) {
+        StringBuilder tracked = new StringBuilder();
+        for (String location : locations) {
+            if (tracked.length() > 0) {
+                tracked.append(TRACKED_LOCATIONS_SEPARATOR);
+            }
+            tracked.append(location.trim());
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit()
+                .putString(context.getString(R.string.pref_tracked_locations_key), tracked.toString())
+                .apply();
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
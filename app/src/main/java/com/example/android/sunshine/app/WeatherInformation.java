@@ -1,9 +1,11 @@
 package com.example.android.sunshine.app;
 
 import android.content.ContentResolver;
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
 
 /**
@@ -67,6 +69,21 @@ public class WeatherInformation {
     private static final int INDEX_MAX_TEMP = 2;
     private static final int INDEX_MIN_TEMP = 3;
 
+    /**
+     * Reads today's values from the location's snapshot, and only queries the provider if there
+     * is no snapshot or it ends before today.
+     */
+    public static WeatherInformation getWeatherInformation(Context context, String location) {
+        ForecastSnapshot snapshot = ForecastSnapshot.read(context, location);
+        int today = snapshot != null ? snapshot.findDay(System.currentTimeMillis()) : -1;
+        if (today == -1) {
+            return getWeatherInformation(location, context.getContentResolver());
+        }
+        return new WeatherInformation(snapshot.getHigh(today), snapshot.getLow(today),
+                snapshot.getDescription(today),
+                Utility.getArtResourceForWeatherCondition(snapshot.getWeatherId(today)));
+    }
+
     public static WeatherInformation getWeatherInformation(String location, ContentResolver resolver){
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 location, System.currentTimeMillis());
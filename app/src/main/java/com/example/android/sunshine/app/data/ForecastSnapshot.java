@@ -0,0 +1,326 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * The forecast of one location as the last sync stored it, written next to the database in a
+ * fixed layout so today's values can be read by memory-mapping a file: no database to open, no
+ * cursor and no parsing.  The widgets, Muzei and the notification read this first and only go
+ * to the provider when there is no snapshot, or none covering today.
+ *
+ * <pre>
+ *   header, {@link #HEADER_BYTES} bytes
+ *     int    magic
+ *     int    format version
+ *     long   wall clock time the snapshot was written at
+ *     int    number of days
+ *     int    reserved
+ *   then one record of {@link #DAY_BYTES} bytes per day, by date
+ *     long   date, normalized as in the weather table
+ *     int    weather id
+ *     int    humidity
+ *     double high, low, pressure, wind speed and wind direction
+ *     short  length of the description
+ *     bytes  description, UTF-8, cut to fit
+ * </pre>
+ *
+ * Multi-byte values are big-endian.  A snapshot is replaced with a rename, so readers never see
+ * half of one.
+ */
+public final class ForecastSnapshot {
+    private static final String LOG_TAG = ForecastSnapshot.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "forecast_snapshots";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x534e5348;
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int HEADER_BYTES = 24;
+    public static final int DAY_BYTES = 96;
+
+    private static final int OFFSET_WRITTEN_AT = 8;
+    private static final int OFFSET_DAY_COUNT = 16;
+
+    private static final int DAY_DATE = 0;
+    private static final int DAY_WEATHER_ID = 8;
+    private static final int DAY_HUMIDITY = 12;
+    private static final int DAY_HIGH = 16;
+    private static final int DAY_LOW = 24;
+    private static final int DAY_PRESSURE = 32;
+    private static final int DAY_WIND_SPEED = 40;
+    private static final int DAY_WIND_DIRECTION = 48;
+    private static final int DAY_DESCRIPTION_LENGTH = 56;
+    private static final int DAY_DESCRIPTION = 58;
+    private static final int MAX_DESCRIPTION_BYTES = DAY_BYTES - DAY_DESCRIPTION;
+
+    // More than any forecast we ask for; a bigger count means the file is not a snapshot.
+    private static final int MAX_DAYS = 31;
+
+    private final ByteBuffer mBuffer;
+    private final int mDayCount;
+
+    private ForecastSnapshot(ByteBuffer buffer, int dayCount) {
+        mBuffer = buffer;
+        mDayCount = dayCount;
+    }
+
+    /**
+     * @return the snapshot of the location, or null if there is none or it can't be used.
+     */
+    public static ForecastSnapshot read(Context context, String locationSetting) {
+        File file = getFile(context, locationSetting);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > HEADER_BYTES + MAX_DAYS * DAY_BYTES) {
+                return null;
+            }
+            // The mapping stays valid once the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                return null;
+            }
+            int dayCount = buffer.getInt(OFFSET_DAY_COUNT);
+            if (dayCount < 0 || HEADER_BYTES + (long) dayCount * DAY_BYTES != size) {
+                return null;
+            }
+            return new ForecastSnapshot(buffer, dayCount);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the snapshot of " + locationSetting, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing more to read from it anyway.
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot of the location with the given weather rows, which must be ordered
+     * by date.
+     *
+     * @param keepLaterDays whether the days of the previous snapshot after the last of the rows
+     * are kept, as when only the first days of the forecast were fetched.
+     * @return true if the snapshot was written.  If it couldn't be, the previous one is deleted
+     * too, as it would be older than the rows just stored; readers then go to the provider.
+     */
+    public static boolean write(Context context, String locationSetting, List<ContentValues> rows,
+                                long now, boolean keepLaterDays) {
+        File file = getFile(context, locationSetting);
+        if (file == null) {
+            return false;
+        }
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            // So there is no previous snapshot to leave behind either.
+            Log.e(LOG_TAG, "Could not create " + directory);
+            return false;
+        }
+        int dayCount = Math.min(rows.size(), MAX_DAYS);
+
+        // The later days are copied over record by record, as they are.
+        ForecastSnapshot previous = keepLaterDays && dayCount > 0
+                ? read(context, locationSetting) : null;
+        int firstKept = 0;
+        int keptCount = 0;
+        if (previous != null) {
+            long lastDate = rows.get(dayCount - 1).getAsLong(
+                    WeatherContract.WeatherEntry.COLUMN_DATE);
+            firstKept = previous.size();
+            while (firstKept > 0 && previous.getDate(firstKept - 1) > lastDate) {
+                firstKept--;
+            }
+            keptCount = Math.min(previous.size() - firstKept, MAX_DAYS - dayCount);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + (dayCount + keptCount) * DAY_BYTES);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(OFFSET_WRITTEN_AT, now);
+        buffer.putInt(OFFSET_DAY_COUNT, dayCount + keptCount);
+        for (int i = 0; i < dayCount; i++) {
+            putDay(buffer, HEADER_BYTES + i * DAY_BYTES, rows.get(i));
+        }
+        for (int i = 0; i < keptCount; i++) {
+            int from = HEADER_BYTES + (firstKept + i) * DAY_BYTES;
+            int to = HEADER_BYTES + (dayCount + i) * DAY_BYTES;
+            for (int j = 0; j < DAY_BYTES; j++) {
+                buffer.put(to + j, previous.mBuffer.get(from + j));
+            }
+        }
+
+        File temp = new File(directory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(buffer.array());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing the snapshot of " + locationSetting, e);
+            temp.delete();
+            file.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // The write failed already.
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the snapshots of every location.
+     */
+    public static void clear(Context context) {
+        File[] files = new File(context.getFilesDir(), DIRECTORY_NAME).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File getFile(Context context, String locationSetting) {
+        if (locationSetting == null) {
+            return null;
+        }
+        try {
+            return new File(new File(context.getFilesDir(), DIRECTORY_NAME),
+                    URLEncoder.encode(locationSetting, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void putDay(ByteBuffer buffer, int offset, ContentValues row) {
+        buffer.putLong(offset + DAY_DATE,
+                row.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        buffer.putInt(offset + DAY_WEATHER_ID,
+                row.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        buffer.putInt(offset + DAY_HUMIDITY,
+                row.getAsInteger(WeatherContract.WeatherEntry.COLUMN_HUMIDITY));
+        buffer.putDouble(offset + DAY_HIGH,
+                row.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP));
+        buffer.putDouble(offset + DAY_LOW,
+                row.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP));
+        buffer.putDouble(offset + DAY_PRESSURE,
+                row.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE));
+        buffer.putDouble(offset + DAY_WIND_SPEED,
+                row.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED));
+        buffer.putDouble(offset + DAY_WIND_DIRECTION,
+                row.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+
+        String description = row.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        byte[] bytes = (description != null ? description : "").getBytes(UTF_8);
+        int length = Math.min(bytes.length, MAX_DESCRIPTION_BYTES);
+        // Don't cut a multi-byte character in half.
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        buffer.putShort(offset + DAY_DESCRIPTION_LENGTH, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + DAY_DESCRIPTION + i, bytes[i]);
+        }
+    }
+
+    public long getWrittenAt() {
+        return mBuffer.getLong(OFFSET_WRITTEN_AT);
+    }
+
+    public int size() {
+        return mDayCount;
+    }
+
+    /**
+     * @return the index of the first day on or after the day of {@code now}, or -1 if the
+     * snapshot ends before it, i.e. it is stale.
+     */
+    public int findDay(long now) {
+        long today = WeatherContract.normalizeDate(now);
+        for (int i = 0; i < mDayCount; i++) {
+            if (getDate(i) >= today) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long getDate(int day) {
+        return mBuffer.getLong(HEADER_BYTES + day * DAY_BYTES + DAY_DATE);
+    }
+
+    public int getWeatherId(int day) {
+        return mBuffer.getInt(HEADER_BYTES + day * DAY_BYTES + DAY_WEATHER_ID);
+    }
+
+    public int getHumidity(int day) {
+        return mBuffer.getInt(HEADER_BYTES + day * DAY_BYTES + DAY_HUMIDITY);
+    }
+
+    public double getHigh(int day) {
+        return mBuffer.getDouble(HEADER_BYTES + day * DAY_BYTES + DAY_HIGH);
+    }
+
+    public double getLow(int day) {
+        return mBuffer.getDouble(HEADER_BYTES + day * DAY_BYTES + DAY_LOW);
+    }
+
+    public double getPressure(int day) {
+        return mBuffer.getDouble(HEADER_BYTES + day * DAY_BYTES + DAY_PRESSURE);
+    }
+
+    public double getWindSpeed(int day) {
+        return mBuffer.getDouble(HEADER_BYTES + day * DAY_BYTES + DAY_WIND_SPEED);
+    }
+
+    public double getWindDirection(int day) {
+        return mBuffer.getDouble(HEADER_BYTES + day * DAY_BYTES + DAY_WIND_DIRECTION);
+    }
+
+    public String getDescription(int day) {
+        int offset = HEADER_BYTES + day * DAY_BYTES;
+        int length = mBuffer.getShort(offset + DAY_DESCRIPTION_LENGTH);
+        if (length < 0 || length > MAX_DESCRIPTION_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + DAY_DESCRIPTION + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
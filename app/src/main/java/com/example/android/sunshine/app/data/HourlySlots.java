@@ -0,0 +1,111 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.Arrays;
+
+/**
+ * The 3-hour forecast of one day for one location, packed into the blob stored in
+ * {@link WeatherContract.HourlyEntry#COLUMN_SLOTS}.  Each slot takes {@link #SLOT_BYTES} bytes,
+ * so a whole day fits in one row of a few dozen bytes instead of eight rows of their own:
+ *
+ * <pre>
+ *   byte   hours since the start of the day
+ *   short  temperature, in tenths of a degree
+ *   short  weather id
+ *   byte   humidity, in percent
+ *   byte   wind speed, in half units, up to 127.5
+ *   byte   wind direction, in 2 degree steps
+ * </pre>
+ *
+ * Multi-byte values are big-endian.  The description of a slot is not stored; it follows from
+ * the weather id.
+ */
+public final class HourlySlots {
+
+    public static final int SLOT_BYTES = 8;
+
+    // The most slots a day can have: one an hour, in case the step ever gets finer.
+    public static final int MAX_SLOTS = 24;
+
+    private final byte[] mBlob;
+
+    public HourlySlots(byte[] blob) {
+        mBlob = blob;
+    }
+
+    public int size() {
+        return mBlob.length / SLOT_BYTES;
+    }
+
+    public int getHour(int slot) {
+        return mBlob[slot * SLOT_BYTES] & 0xff;
+    }
+
+    public double getTemperature(int slot) {
+        return getShort(slot * SLOT_BYTES + 1) / 10.0;
+    }
+
+    public int getWeatherId(int slot) {
+        return getShort(slot * SLOT_BYTES + 3);
+    }
+
+    public int getHumidity(int slot) {
+        return mBlob[slot * SLOT_BYTES + 5] & 0xff;
+    }
+
+    public double getWindSpeed(int slot) {
+        return (mBlob[slot * SLOT_BYTES + 6] & 0xff) / 2.0;
+    }
+
+    public double getWindDirection(int slot) {
+        return (mBlob[slot * SLOT_BYTES + 7] & 0xff) * 2.0;
+    }
+
+    private int getShort(int offset) {
+        return (short) ((mBlob[offset] << 8) | (mBlob[offset + 1] & 0xff));
+    }
+
+    /**
+     * Packs the slots of a day in the order they are added, which should be by hour.
+     */
+    public static class Builder {
+        private byte[] mBlob = new byte[8 * SLOT_BYTES];
+        private int mLength;
+
+        public Builder add(int hour, double temperature, int weatherId, int humidity,
+                           double windSpeed, double windDirection) {
+            if (mLength == MAX_SLOTS * SLOT_BYTES) {
+                throw new IllegalStateException("More than " + MAX_SLOTS + " slots in a day");
+            }
+            if (mLength == mBlob.length) {
+                mBlob = Arrays.copyOf(mBlob, mBlob.length * 2);
+            }
+            mBlob[mLength] = (byte) clamp(hour, 0, 255);
+            putShort(mLength + 1, clamp((int) Math.round(temperature * 10),
+                    Short.MIN_VALUE, Short.MAX_VALUE));
+            putShort(mLength + 3, clamp(weatherId, Short.MIN_VALUE, Short.MAX_VALUE));
+            mBlob[mLength + 5] = (byte) clamp(humidity, 0, 255);
+            mBlob[mLength + 6] = (byte) clamp((int) Math.round(windSpeed * 2), 0, 255);
+            // 360 degrees wraps around to 0.
+            mBlob[mLength + 7] = (byte) (((int) Math.round(windDirection / 2) % 180 + 180) % 180);
+            mLength += SLOT_BYTES;
+            return this;
+        }
+
+        public int size() {
+            return mLength / SLOT_BYTES;
+        }
+
+        public byte[] build() {
+            return Arrays.copyOf(mBlob, mLength);
+        }
+
+        private void putShort(int offset, int value) {
+            mBlob[offset] = (byte) (value >> 8);
+            mBlob[offset + 1] = (byte) value;
+        }
+
+        private static int clamp(int value, int min, int max) {
+            return Math.max(min, Math.min(max, value));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * The _id of every location row the provider has resolved in this process, by location
+ * setting, so resolving a known location takes neither a query nor an insert.  The provider
+ * clears it whenever location rows may have gone or changed under it: a delete or update of
+ * the location table, a batch that was rolled back, or a database created afresh.
+ */
+final class LocationRegistry {
+
+    private static final HashMap<String, Long> sIds = new HashMap<String, Long>();
+
+    // How often a location had to be looked up in the database; for tests and benchmarks.
+    private static int sMisses;
+
+    private LocationRegistry() {
+    }
+
+    /**
+     * @return the _id of the location with the given setting, or -1 if it isn't known.
+     */
+    static synchronized long get(String locationSetting) {
+        Long id = sIds.get(locationSetting);
+        if (id == null) {
+            sMisses++;
+            return -1;
+        }
+        return id;
+    }
+
+    static synchronized void put(String locationSetting, long id) {
+        sIds.put(locationSetting, id);
+    }
+
+    static synchronized void clear() {
+        sIds.clear();
+    }
+
+    static synchronized int getMisses() {
+        return sMisses;
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The results of the provider's recent queries, by URI, projection, selection and sort order,
+ * so that the forecast list, the widgets, Muzei and the notification asking for the same
+ * forecast right after a sync are served the rows the first of them read.  A result is kept
+ * as a snapshot of its values that is never changed; every query it serves gets a cursor of
+ * its own over a copy of the rows.
+ *
+ * A result is dropped as soon as the provider writes to a table it was read from.  Results
+ * of more than {@link #MAX_ROWS} rows aren't kept, and the least recently used are dropped to
+ * stay within {@link #MAX_BYTES}.  Like {@link LocationRegistry} there is one per process.
+ */
+public final class QueryCache {
+
+    static final int MAX_ROWS = 64;
+    // What the values kept take up, roughly.
+    static final int MAX_BYTES = 64 * 1024;
+
+    // The tables a result is read from, or a write goes to.
+    static final int TABLE_WEATHER = 1;
+    static final int TABLE_HOURLY = 2;
+    static final int TABLE_LOCATION = 4;
+    static final int ALL_TABLES = TABLE_WEATHER | TABLE_HOURLY | TABLE_LOCATION;
+
+    // Estimated sizes of what a snapshot holds, in bytes.
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int ROW_OVERHEAD = 16;
+    private static final int VALUE_OVERHEAD = 16;
+
+    private static final char NULL_MARK = '\u0001';
+    private static final char SEPARATOR = '\u0000';
+
+    private static class Snapshot {
+        final String[] columnNames;
+        final Object[][] rows;
+        final int tables;
+        final int bytes;
+        // What running the query took SQLite, and what each hit saves.
+        final long queryNanos;
+
+        Snapshot(String[] columnNames, Object[][] rows, int tables, int bytes, long queryNanos) {
+            this.columnNames = columnNames;
+            this.rows = rows;
+            this.tables = tables;
+            this.bytes = bytes;
+            this.queryNanos = queryNanos;
+        }
+    }
+
+    // Least recently used first.
+    private static final LinkedHashMap<String, Snapshot> sSnapshots =
+            new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+    private static int sBytes;
+    // Advanced by every invalidation, so a query that raced with a write isn't kept.
+    private static long sGeneration;
+
+    private static long sHits;
+    private static long sMisses;
+    private static long sInvalidations;
+    private static long sSavedNanos;
+
+    private QueryCache() {
+    }
+
+    /**
+     * Reading the type of a value, which a snapshot needs, takes API 11.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    static String buildKey(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString()).append(SEPARATOR);
+        appendAll(key, projection);
+        append(key, selection);
+        appendAll(key, selectionArgs);
+        append(key, sortOrder);
+        return key.toString();
+    }
+
+    private static void appendAll(StringBuilder key, String[] values) {
+        if (values == null) {
+            key.append(NULL_MARK).append(SEPARATOR);
+            return;
+        }
+        key.append(values.length).append(SEPARATOR);
+        for (String value : values) {
+            append(key, value);
+        }
+    }
+
+    private static void append(StringBuilder key, String value) {
+        if (value == null) {
+            key.append(NULL_MARK);
+        } else {
+            key.append(value);
+        }
+        key.append(SEPARATOR);
+    }
+
+    /**
+     * @return a cursor over the kept result of the query, or null if there is none.
+     */
+    static synchronized Cursor get(String key) {
+        Snapshot snapshot = sSnapshots.get(key);
+        if (snapshot == null) {
+            sMisses++;
+            return null;
+        }
+        sHits++;
+        sSavedNanos += snapshot.queryNanos;
+        return newCursor(snapshot);
+    }
+
+    /**
+     * @return what {@link #invalidate} has to advance past for a result to be kept by
+     * {@link #put}; read before running the query.
+     */
+    static synchronized long getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Keeps the result of a query that missed, unless it's too large, and returns a cursor over
+     * it in place of {@code cursor}, which is then closed.  The result isn't kept if a table
+     * was written to since {@code generation} was read.
+     *
+     * @param tables the TABLE_ flags of the tables the query reads.
+     * @param startNanos when the query started, for the time a hit saves.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static Cursor put(String key, int tables, long generation, Cursor cursor, long startNanos) {
+        // Counting runs the query to the end.
+        int count = cursor.getCount();
+        long queryNanos = System.nanoTime() - startNanos;
+        if (count > MAX_ROWS) {
+            return cursor;
+        }
+
+        String[] columnNames = cursor.getColumnNames();
+        Object[][] rows = new Object[count][];
+        int bytes = ENTRY_OVERHEAD + key.length() * 2;
+        cursor.moveToPosition(-1);
+        for (int row = 0; cursor.moveToNext(); row++) {
+            Object[] values = new Object[columnNames.length];
+            for (int column = 0; column < values.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[column] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[column] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String string = cursor.getString(column);
+                        values[column] = string;
+                        bytes += string.length() * 2;
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(column);
+                        values[column] = blob;
+                        bytes += blob.length;
+                        break;
+                    default:
+                        values[column] = null;
+                }
+                bytes += VALUE_OVERHEAD;
+            }
+            bytes += ROW_OVERHEAD;
+            rows[row] = values;
+        }
+        cursor.close();
+
+        Snapshot snapshot = new Snapshot(columnNames, rows, tables, bytes, queryNanos);
+        synchronized (QueryCache.class) {
+            if (generation == sGeneration && bytes <= MAX_BYTES) {
+                Snapshot replaced = sSnapshots.put(key, snapshot);
+                if (replaced != null) {
+                    sBytes -= replaced.bytes;
+                }
+                sBytes += bytes;
+                Iterator<Snapshot> leastRecentlyUsed = sSnapshots.values().iterator();
+                while (sBytes > MAX_BYTES && leastRecentlyUsed.hasNext()) {
+                    sBytes -= leastRecentlyUsed.next().bytes;
+                    leastRecentlyUsed.remove();
+                }
+            }
+        }
+        return newCursor(snapshot);
+    }
+
+    private static Cursor newCursor(Snapshot snapshot) {
+        MatrixCursor cursor = new MatrixCursor(snapshot.columnNames, snapshot.rows.length);
+        for (Object[] values : snapshot.rows) {
+            Object[] row = values;
+            for (int column = 0; column < values.length; column++) {
+                if (values[column] instanceof byte[]) {
+                    // A blob is the one value its reader could change.
+                    if (row == values) {
+                        row = values.clone();
+                    }
+                    row[column] = ((byte[]) values[column]).clone();
+                }
+            }
+            // Which copies the row.
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Drops the results read from any of {@code tables}.
+     */
+    static synchronized void invalidate(int tables) {
+        if (tables == 0) {
+            return;
+        }
+        sGeneration++;
+        Iterator<Snapshot> snapshots = sSnapshots.values().iterator();
+        while (snapshots.hasNext()) {
+            Snapshot snapshot = snapshots.next();
+            if ((snapshot.tables & tables) != 0) {
+                sBytes -= snapshot.bytes;
+                sInvalidations++;
+                snapshots.remove();
+            }
+        }
+    }
+
+    static synchronized void clear() {
+        invalidate(ALL_TABLES);
+    }
+
+    static synchronized long getHits() {
+        return sHits;
+    }
+
+    static synchronized long getMisses() {
+        return sMisses;
+    }
+
+    static synchronized int getBytes() {
+        return sBytes;
+    }
+
+    static synchronized int getSize() {
+        return sSnapshots.size();
+    }
+
+    public static synchronized void dump(PrintWriter writer) {
+        long lookups = sHits + sMisses;
+        writer.println("  " + sSnapshots.size() + " result(s) kept in about " + sBytes + " of "
+                + MAX_BYTES + " bytes, " + sHits + " hit(s) of " + lookups + " ("
+                + (lookups > 0 ? sHits * 100 / lookups : 0) + "%), " + sInvalidations
+                + " dropped by writes, " + sSavedNanos / 1000000 + " ms of queries saved");
+    }
+}
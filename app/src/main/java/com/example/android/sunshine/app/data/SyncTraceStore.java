@@ -0,0 +1,142 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A ring buffer of the last {@link #MAX_TRACES} sync traces, kept in memory and mirrored to a
+ * file so they survive the process.  A trace is kept as the values it was inserted with, and
+ * gets an increasing _id.
+ */
+class SyncTraceStore {
+    private static final String LOG_TAG = SyncTraceStore.class.getSimpleName();
+
+    static final int MAX_TRACES = 50;
+
+    private static final String FILE_NAME = "sync_traces.json";
+
+    private final AtomicFile mFile;
+    private final ArrayDeque<ContentValues> mTraces = new ArrayDeque<ContentValues>(MAX_TRACES);
+    private long mNextId = 1;
+    private boolean mLoaded;
+
+    SyncTraceStore(File directory) {
+        mFile = new AtomicFile(new File(directory, FILE_NAME));
+    }
+
+    /**
+     * @return the _id of the trace.
+     */
+    synchronized long add(ContentValues values) {
+        load();
+        ContentValues trace = new ContentValues(values);
+        long id = mNextId++;
+        trace.put(WeatherContract.SyncTraceEntry._ID, id);
+        if (mTraces.size() == MAX_TRACES) {
+            mTraces.removeFirst();
+        }
+        mTraces.addLast(trace);
+        save();
+        return id;
+    }
+
+    /**
+     * @return the traces, newest first.
+     */
+    synchronized Cursor query(String[] projection) {
+        load();
+        if (projection == null) {
+            projection = WeatherContract.SyncTraceEntry.COLUMNS;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, mTraces.size());
+        Iterator<ContentValues> newestFirst = mTraces.descendingIterator();
+        while (newestFirst.hasNext()) {
+            ContentValues trace = newestFirst.next();
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = trace.get(projection[i]);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    synchronized int clear() {
+        load();
+        int count = mTraces.size();
+        mTraces.clear();
+        mFile.delete();
+        return count;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.getBaseFile().exists()) {
+            return;
+        }
+        try {
+            JSONArray traces = new JSONArray(new String(mFile.readFully(), "UTF-8"));
+            for (int i = 0; i < traces.length(); i++) {
+                JSONObject trace = traces.getJSONObject(i);
+                ContentValues values = new ContentValues();
+                Iterator<String> keys = trace.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    Object value = trace.get(key);
+                    if (value instanceof Number) {
+                        values.put(key, ((Number) value).longValue());
+                    } else {
+                        values.put(key, value.toString());
+                    }
+                }
+                mTraces.addLast(values);
+                mNextId = Math.max(mNextId,
+                        values.getAsLong(WeatherContract.SyncTraceEntry._ID) + 1);
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            // Diagnostics only; start over rather than fail the caller.
+            Log.e(LOG_TAG, "Error reading the sync traces", e);
+            mTraces.clear();
+        }
+    }
+
+    private void save() {
+        FileOutputStream out = null;
+        try {
+            JSONArray traces = new JSONArray();
+            for (ContentValues trace : mTraces) {
+                JSONObject json = new JSONObject();
+                for (Map.Entry<String, Object> value : trace.valueSet()) {
+                    json.put(value.getKey(), value.getValue());
+                }
+                traces.put(json);
+            }
+            out = mFile.startWrite();
+            out.write(traces.toString().getBytes("UTF-8"));
+            mFile.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error writing the sync traces", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+}
@@ -43,6 +43,8 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_TRACE = "sync_trace";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,9 +83,21 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Query parameter marking an insert that should resolve to the existing location with
+        // the same location setting, instead of failing on it.
+        private static final String QUERY_UPSERT = "upsert";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationUpsertUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_UPSERT, "true").build();
+        }
+
+        public static boolean isUpsertUri(Uri uri) {
+            return "true".equals(uri.getQueryParameter(QUERY_UPSERT));
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +140,10 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Hash of the forecast values above, maintained by the provider so that rewriting a row
+        // with the values it already holds can be skipped.  0 means unknown.
+        public static final String COLUMN_CONTENT_HASH = "content_hash";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +183,157 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /*
+        The 3-hour forecast.  To keep the write volume of a sync down, a row holds a whole day
+        of a location, its slots packed into a blob read with HourlySlots.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the day the slots belong to, normalized like the weather dates
+        public static final String COLUMN_DATE = "date";
+        // The day's slots, packed by HourlySlots
+        public static final String COLUMN_SLOTS = "slots";
+
+        // Query parameter bounding a range query from above, inclusive.
+        private static final String QUERY_END_DATE = "end_date";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the URI of the days from {@code startDate} to {@code endDate}, both included.
+         */
+        public static Uri buildHourlyLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizeDate(startDate)))
+                    .appendQueryParameter(QUERY_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(COLUMN_DATE);
+            return dateString != null && dateString.length() > 0 ? Long.parseLong(dateString) : 0;
+        }
+
+        /**
+         * @return the last day of the range, or 0 if the range is open.
+         */
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(QUERY_END_DATE);
+            return dateString != null && dateString.length() > 0 ? Long.parseLong(dateString) : 0;
+        }
+    }
+
+    /*
+        Where the time of each recent sync went, stage by stage.  Not a table: the provider keeps
+        the last few traces in memory and in a file, and returns them newest first.
+     */
+    public static final class SyncTraceEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_TRACE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_TRACE;
+
+        // Wall clock time the sync started at, in milliseconds since the epoch
+        public static final String COLUMN_STARTED_AT = "started_at";
+        // One of the OUTCOME_ values
+        public static final String COLUMN_OUTCOME = "outcome";
+        // Number of locations the sync fetched
+        public static final String COLUMN_LOCATIONS = "locations";
+        public static final String COLUMN_TOTAL_MS = "total_ms";
+
+        // The fetch stage, and its connect, time to first byte, download and parse times summed
+        // over the locations, which were fetched concurrently.
+        public static final String COLUMN_FETCH_MS = "fetch_ms";
+        public static final String COLUMN_CONNECT_MS = "connect_ms";
+        public static final String COLUMN_TTFB_MS = "ttfb_ms";
+        public static final String COLUMN_DOWNLOAD_MS = "download_ms";
+        public static final String COLUMN_PARSE_MS = "parse_ms";
+
+        // The commit stage, and the time its transaction spent resolving locations, writing
+        // weather rows and deleting old ones.
+        public static final String COLUMN_COMMIT_MS = "commit_ms";
+        public static final String COLUMN_LOCATION_RESOLVE_MS = "location_resolve_ms";
+        public static final String COLUMN_DB_WRITE_MS = "db_write_ms";
+        public static final String COLUMN_RETENTION_DELETE_MS = "retention_delete_ms";
+
+        // The fan-out stage, and what became of each consumer, e.g. "widgets 3 ms, Muzei skipped"
+        public static final String COLUMN_FAN_OUT_MS = "fan_out_ms";
+        public static final String COLUMN_CONSUMERS = "consumers";
+
+        public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+        // Locations served from the response cache instead of the network
+        public static final String COLUMN_CACHE_HITS = "cache_hits";
+        // Locations for which only the first days were fetched
+        public static final String COLUMN_SHORT_FETCHES = "short_fetches";
+        public static final String COLUMN_ROWS_PARSED = "rows_parsed";
+        // Weather rows inserted or updated; of those, the ones updated in place
+        public static final String COLUMN_ROWS_WRITTEN = "rows_written";
+        public static final String COLUMN_ROWS_UPDATED = "rows_updated";
+        // Weather rows that already held the values fetched
+        public static final String COLUMN_ROWS_UNCHANGED = "rows_unchanged";
+        // Days of the 3-hour forecast written
+        public static final String COLUMN_HOURLY_ROWS_WRITTEN = "hourly_rows_written";
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+
+        public static final String OUTCOME_OK = "ok";
+        // Nothing new was stored
+        public static final String OUTCOME_NO_OP = "no-op";
+        public static final String OUTCOME_FAILED = "failed";
+        // Superseded by a sync for another location
+        public static final String OUTCOME_CANCELED = "canceled";
+
+        public static final String[] COLUMNS = {
+                _ID,
+                COLUMN_STARTED_AT,
+                COLUMN_OUTCOME,
+                COLUMN_LOCATIONS,
+                COLUMN_TOTAL_MS,
+                COLUMN_FETCH_MS,
+                COLUMN_CONNECT_MS,
+                COLUMN_TTFB_MS,
+                COLUMN_DOWNLOAD_MS,
+                COLUMN_PARSE_MS,
+                COLUMN_COMMIT_MS,
+                COLUMN_LOCATION_RESOLVE_MS,
+                COLUMN_DB_WRITE_MS,
+                COLUMN_RETENTION_DELETE_MS,
+                COLUMN_FAN_OUT_MS,
+                COLUMN_CONSUMERS,
+                COLUMN_WIRE_BYTES,
+                COLUMN_CACHE_HITS,
+                COLUMN_SHORT_FETCHES,
+                COLUMN_ROWS_PARSED,
+                COLUMN_ROWS_WRITTEN,
+                COLUMN_ROWS_UPDATED,
+                COLUMN_ROWS_UNCHANGED,
+                COLUMN_HOURLY_ROWS_WRITTEN,
+                COLUMN_ROWS_DELETED
+        };
+    }
 }
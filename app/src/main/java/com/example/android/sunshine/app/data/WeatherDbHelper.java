@@ -15,10 +15,14 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -28,12 +32,62 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 5;
 
     static final String DATABASE_NAME = "weather.db";
 
+    static final String WEATHER_LOCATION_DATE_INDEX = "weather_location_date";
+    static final String HOURLY_DATE_INDEX = "hourly_date";
+
+    // Pages the log may grow to before a commit checkpoints it into the database; a sync
+    // writes a few dozen.
+    static final int WAL_AUTOCHECKPOINT_PAGES = 500;
+    // What the log is truncated back to after a checkpoint, in bytes.
+    static final long WAL_SIZE_LIMIT_BYTES = 512 * 1024;
+
+    // For the snapshots, which are cleared along with the tables.
+    private final Context mContext;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        enableWriteAheadLogging(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean there is no onConfigure to do this in.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * Puts the database in write-ahead logging mode, so the UI, the widgets and Muzei go on
+     * reading, from connections of their own, while a sync writes.  This is a cache of online
+     * data, so synchronous=NORMAL is enough: a crash can't corrupt it, and at worst a power
+     * loss takes the last sync back.  How many reader connections there are is up to the
+     * platform.  Does nothing before Honeycomb, which has no write-ahead logging.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || !db.enableWriteAheadLogging()) {
+            return;
+        }
+        db.execSQL("PRAGMA synchronous = NORMAL");
+        // These return the value set, so they have to be run as queries.
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(db,
+                "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES, null);
     }
 
     @Override
@@ -69,6 +123,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
                 WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_CONTENT_HASH + " INTEGER NOT NULL DEFAULT 0, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -79,8 +134,45 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // One row per day and location, the day's 3-hour slots packed in a blob.  The unique
+        // constraint leads with the location, so its index also serves the range queries of
+        // a location's days.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_SLOTS + " BLOB NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+
+        // The unique constraint of the weather table leads with the date, which suits the
+        // retention delete but not the queries of a location's days, the hot path of the app.
+        // Those get an index of their own, by location and then date so it also returns the
+        // days in order.  It carries the content hash too, so telling whether a fetched day is
+        // already stored doesn't touch the table at all.  The location setting needs nothing
+        // more than the index of its unique constraint.
+        sqLiteDatabase.execSQL("CREATE INDEX " + WEATHER_LOCATION_DATE_INDEX + " ON " +
+                WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_CONTENT_HASH + ");");
+        // And the retention delete of the 3-hour days, whose constraint leads with the location.
+        sqLiteDatabase.execSQL("CREATE INDEX " + HOURLY_DATE_INDEX + " ON " +
+                HourlyEntry.TABLE_NAME + " (" + HourlyEntry.COLUMN_DATE + ");");
+
+        // Whatever _ids, results and snapshots were known belong to the database this one
+        // replaces.
+        LocationRegistry.clear();
+        QueryCache.clear();
+        ForecastSnapshot.clear(mContext);
     }
 
     @Override
@@ -93,6 +185,7 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
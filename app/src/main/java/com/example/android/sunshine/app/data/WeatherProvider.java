@@ -17,25 +17,58 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private SyncTraceStore mSyncTraces;
+
+    // Insert a location unless one with its setting exists, and look one up; guarded by this.
+    private SQLiteStatement mUpsertLocation;
+    private SQLiteStatement mFindLocation;
+
+    // Set while applyBatch runs on a thread, collecting the URIs to notify once it commits.
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+    // Set alongside, so the weather rows of a batch go through one set of compiled statements.
+    private final ThreadLocal<WeatherUpsert> mBatchUpsert = new ThreadLocal<WeatherUpsert>();
+
+    // Where the time of the last batch applied on a thread went.
+    private static final ThreadLocal<BatchTimings> sBatchTimings = new ThreadLocal<BatchTimings>();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int HOURLY = 200;
+    static final int HOURLY_WITH_LOCATION = 201;
     static final int LOCATION = 300;
+    static final int SYNC_TRACE = 400;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The query builders, selections and statements below are package-private so that TestDb
+    // can check the plan of every query the provider makes.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,33 +82,73 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // The same, by the location's _id once it is known, which spares the lookup by setting.
+    //weather.location_id = ?
+    static final String sWeatherLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sWeatherLocationIdWithStartDateSelection =
+            sWeatherLocationIdSelection + "AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //weather.location_id = ? AND date = ?
+    static final String sWeatherLocationIdAndDaySelection =
+            sWeatherLocationIdSelection + "AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    //hourly.location_id = ?
+    static final String sHourlyLocationIdSelection =
+            WeatherContract.HourlyEntry.TABLE_NAME +
+                    "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? ";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long locationId = resolveLocation(locationSetting);
 
         String[] selectionArgs;
         String selection;
 
-        if (startDate == 0) {
+        if (locationId != -1) {
+            if (startDate == 0) {
+                selection = sWeatherLocationIdSelection;
+                selectionArgs = new String[]{Long.toString(locationId)};
+            } else {
+                selection = sWeatherLocationIdWithStartDateSelection;
+                selectionArgs = new String[]{Long.toString(locationId), Long.toString(startDate)};
+            }
+        } else if (startDate == 0) {
             selection = sLocationSettingSelection;
             selectionArgs = new String[]{locationSetting};
         } else {
@@ -93,15 +166,52 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        long startDate = WeatherContract.HourlyEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.HourlyEntry.getEndDateFromUri(uri);
+
+        //location.location_setting = ? [AND hourly.date >= ?] [AND hourly.date <= ?]
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long locationId = resolveLocation(locationSetting);
+        StringBuilder selection = new StringBuilder(locationId != -1
+                ? sHourlyLocationIdSelection : sLocationSettingSelection);
+        ArrayList<String> selectionArgs = new ArrayList<String>(3);
+        selectionArgs.add(locationId != -1 ? Long.toString(locationId) : locationSetting);
+        if (startDate != 0) {
+            selection.append(" AND ").append(WeatherContract.HourlyEntry.TABLE_NAME).append('.')
+                    .append(WeatherContract.HourlyEntry.COLUMN_DATE).append(" >= ?");
+            selectionArgs.add(Long.toString(startDate));
+        }
+        if (endDate != 0) {
+            selection.append(" AND ").append(WeatherContract.HourlyEntry.TABLE_NAME).append('.')
+                    .append(WeatherContract.HourlyEntry.COLUMN_DATE).append(" <= ?");
+            selectionArgs.add(Long.toString(endDate));
+        }
+
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                null,
+                null,
+                sortOrder != null ? sortOrder
+                        : WeatherContract.HourlyEntry.TABLE_NAME + "."
+                        + WeatherContract.HourlyEntry.COLUMN_DATE + " ASC"
+        );
+    }
+
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+        long locationId = resolveLocation(locationSetting);
 
         return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                locationId != -1 ? sWeatherLocationIdAndDaySelection
+                        : sLocationSettingAndDaySelection,
+                new String[]{locationId != -1 ? Long.toString(locationId) : locationSetting,
+                        Long.toString(date)},
                 null,
                 null,
                 sortOrder
@@ -129,7 +239,12 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_TRACE, SYNC_TRACE);
         return matcher;
     }
 
@@ -140,6 +255,7 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        mSyncTraces = new SyncTraceStore(getContext().getFilesDir());
         return true;
     }
 
@@ -162,8 +278,14 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_TRACE:
+                return WeatherContract.SyncTraceEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,10 +294,26 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+        final int tables = getTables(match);
+        String cacheKey = null;
+        long generation = 0;
+        long start = 0;
+        if (tables != 0 && QueryCache.isSupported()) {
+            cacheKey = QueryCache.buildKey(uri, projection, selection, selectionArgs, sortOrder);
+            Cursor cached = QueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+            generation = QueryCache.getGeneration();
+            start = System.nanoTime();
+        }
+
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -200,6 +338,24 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*", by date unless sorted otherwise
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
             // "location"
             case LOCATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -213,14 +369,46 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_trace", newest first whatever the sort order
+            case SYNC_TRACE: {
+                retCursor = mSyncTraces.query(projection);
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        if (cacheKey != null) {
+            retCursor = QueryCache.put(cacheKey, tables, generation, retCursor, start);
+        }
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
 
+    /**
+     * @return the QueryCache.TABLE_ flags of the tables the URI reads and writes, or 0 for the
+     * sync traces, which the query cache leaves alone.
+     */
+    private static int getTables(int match) {
+        switch (match) {
+            case WEATHER:
+                return QueryCache.TABLE_WEATHER;
+            case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                return QueryCache.TABLE_WEATHER | QueryCache.TABLE_LOCATION;
+            case HOURLY:
+                return QueryCache.TABLE_HOURLY;
+            case HOURLY_WITH_LOCATION:
+                return QueryCache.TABLE_HOURLY | QueryCache.TABLE_LOCATION;
+            case LOCATION:
+                return QueryCache.TABLE_LOCATION;
+            case SYNC_TRACE:
+                return 0;
+            default:
+                return QueryCache.ALL_TABLES;
+        }
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -229,32 +417,316 @@ public class WeatherProvider extends ContentProvider {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        boolean changed = true;
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id;
+                WeatherUpsert upsert = mBatchUpsert.get();
+                boolean inBatch = upsert != null;
+                if (!inBatch) {
+                    upsert = new WeatherUpsert(db);
+                }
+                int unchanged = upsert.getUnchanged();
+                try {
+                    _id = upsert.upsert(values);
+                } finally {
+                    if (!inBatch) {
+                        upsert.close();
+                    }
+                }
+                // A row that already holds these values is not written.
+                changed = upsert.getUnchanged() == unchanged;
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case HOURLY: {
+                normalizeDate(values);
+                long _id;
+                SQLiteStatement unchangedDay = compileUnchangedHourlyRowStatement(db);
+                try {
+                    _id = findUnchangedHourlyRow(unchangedDay, values);
+                } finally {
+                    unchangedDay.close();
+                }
+                if (_id > 0) {
+                    changed = false;
+                } else {
+                    _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                    if (_id > 0 && mBatchChanges.get() != null) {
+                        sBatchTimings.get().hourlyRowsWritten++;
+                    }
+                }
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                long _id;
+                if (WeatherContract.LocationEntry.isUpsertUri(uri)) {
+                    // Resolve to the existing location with this setting, if there is one.
+                    String locationSetting = values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    _id = locationSetting != null ? LocationRegistry.get(locationSetting) : -1;
+                    changed = false;
+                    if (_id == -1 && locationSetting != null) {
+                        _id = insertLocationUnlessExists(db, values);
+                        changed = _id != -1;
+                        if (_id == -1) {
+                            _id = findLocation(db, locationSetting);
+                        }
+                        if (_id != -1) {
+                            LocationRegistry.put(locationSetting, _id);
+                        }
+                    }
+                    uri = WeatherContract.LocationEntry.CONTENT_URI;
+                } else {
+                    _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case SYNC_TRACE: {
+                returnUri = ContentUris.withAppendedId(uri, mSyncTraces.add(values));
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (changed) {
+            notifyChange(uri);
+        }
         return returnUri;
     }
 
+    private static final String INSERT_LOCATION_UNLESS_EXISTS_SQL =
+            "INSERT OR IGNORE INTO " + WeatherContract.LocationEntry.TABLE_NAME + " (" +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * Inserts the location unless there is one with its setting already, in a single statement.
+     *
+     * @return the _id of the inserted location, or -1 if there was one already or the values
+     * are not a valid location.
+     */
+    private long insertLocationUnlessExists(SQLiteDatabase db, ContentValues values) {
+        synchronized (this) {
+            if (mUpsertLocation == null) {
+                mUpsertLocation = db.compileStatement(INSERT_LOCATION_UNLESS_EXISTS_SQL);
+            }
+            return insertLocationUnlessExists(mUpsertLocation, values);
+        }
+    }
+
+    private static long insertLocationUnlessExists(SQLiteStatement insert, ContentValues values) {
+        insert.bindString(1, values.getAsString(
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+        bindStringOrNull(insert, 2,
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME));
+        bindDoubleOrNull(insert, 3,
+                values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT));
+        bindDoubleOrNull(insert, 4,
+                values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+        // OR IGNORE also covers values that break a NOT NULL constraint.
+        return insert.executeInsert();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindDoubleOrNull(SQLiteStatement statement, int index, Double value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    /**
+     * @return the _id of the location with the given setting, from the registry if it is known
+     * there, or -1 if there is none.
+     */
+    private long resolveLocation(String locationSetting) {
+        if (locationSetting == null) {
+            return -1;
+        }
+        long _id = LocationRegistry.get(locationSetting);
+        if (_id == -1) {
+            _id = findLocation(mOpenHelper.getReadableDatabase(), locationSetting);
+            if (_id != -1) {
+                LocationRegistry.put(locationSetting, _id);
+            }
+        }
+        return _id;
+    }
+
+    static final String FIND_LOCATION_SQL =
+            "SELECT " + WeatherContract.LocationEntry._ID +
+            " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+            " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    /**
+     * @return the _id of the location with the given setting, or -1 if there is none.
+     */
+    private long findLocation(SQLiteDatabase db, String locationSetting) {
+        synchronized (this) {
+            if (mFindLocation == null) {
+                mFindLocation = db.compileStatement(FIND_LOCATION_SQL);
+            }
+            mFindLocation.bindString(1, locationSetting);
+            try {
+                return mFindLocation.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Where the time of a batch went, by the kind of operation.  Only meaningful in the process
+     * the provider runs in.
+     */
+    public static class BatchTimings {
+        // Resolving or inserting locations
+        public long locationResolveMillis;
+        // Inserting weather rows, the unchanged ones that were skipped included
+        public long writeMillis;
+        // Deleting weather rows
+        public long deleteMillis;
+
+        // Weather rows inserted or updated; of those, the ones updated in place
+        public int rowsWritten;
+        public int rowsUpdated;
+        // Weather rows that already held the values they were given
+        public int rowsUnchanged;
+        public int hourlyRowsWritten;
+        public int rowsDeleted;
+
+        private long mLocationResolveNanos;
+        private long mWriteNanos;
+        private long mDeleteNanos;
+
+        void add(int match, ContentProviderResult result, long nanos) {
+            if (match == LOCATION) {
+                mLocationResolveNanos += nanos;
+            } else if (result.uri != null) {
+                mWriteNanos += nanos;
+            } else if (result.count != null) {
+                mDeleteNanos += nanos;
+                rowsDeleted += result.count;
+            }
+        }
+
+        void addWeatherRows(WeatherUpsert upsert) {
+            rowsWritten += upsert.getInserted() + upsert.getUpdated();
+            rowsUpdated += upsert.getUpdated();
+            rowsUnchanged += upsert.getUnchanged();
+        }
+
+        void finish() {
+            locationResolveMillis = mLocationResolveNanos / 1000000;
+            writeMillis = mWriteNanos / 1000000;
+            deleteMillis = mDeleteNanos / 1000000;
+        }
+    }
+
+    /**
+     * @return the timings of the last batch applied on the calling thread, or null if there was
+     * none.
+     */
+    public static BatchTimings getLastBatchTimings() {
+        return sBatchTimings.get();
+    }
+
+    /**
+     * Applies the operations in a single transaction: either all of them are committed or none
+     * is.  Changes are notified once, after the commit, rather than once per operation, and
+     * the weather rows share one {@link WeatherUpsert}, whose statements are compiled once.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> batchChanges = new HashSet<Uri>();
+        mBatchChanges.set(batchChanges);
+        WeatherUpsert upsert = new WeatherUpsert(db);
+        mBatchUpsert.set(upsert);
+        BatchTimings timings = new BatchTimings();
+        sBatchTimings.set(timings);
+
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            // What super.applyBatch does, with each operation timed.
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                long start = System.nanoTime();
+                results[i] = operation.apply(this, results, i);
+                timings.add(sUriMatcher.match(operation.getUri()), results[i],
+                        System.nanoTime() - start);
+            }
+            timings.addWeatherRows(upsert);
+            timings.finish();
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            mBatchUpsert.set(null);
+            upsert.close();
+            db.endTransaction();
+            mBatchChanges.set(null);
+            if (!success) {
+                // Locations the batch inserted are gone with it, and so is whatever this
+                // thread read of its writes.
+                LocationRegistry.clear();
+                QueryCache.clear();
+            }
+        }
+        // Again now that it is committed, for the results other threads kept meanwhile.
+        for (Uri changed : batchChanges) {
+            QueryCache.invalidate(getTables(sUriMatcher.match(changed)));
+        }
+
+        if (batchChanges.size() == 1) {
+            getContext().getContentResolver().notifyChange(batchChanges.iterator().next(), null);
+        } else if (batchChanges.size() > 1) {
+            // Notifying the root reaches the observers of every table at once.
+            getContext().getContentResolver().notifyChange(WeatherContract.BASE_CONTENT_URI, null);
+        }
+        return results;
+    }
+
+    /**
+     * Drops the query results the write to {@code uri} made stale, and notifies observers of
+     * it now, or once the enclosing batch has been committed.
+     */
+    private void notifyChange(Uri uri) {
+        QueryCache.invalidate(getTables(sUriMatcher.match(uri)));
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -267,16 +739,25 @@ public class WeatherProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationRegistry.clear();
+                break;
+            case SYNC_TRACE:
+                // The traces can only be cleared all at once.
+                rowsDeleted = mSyncTraces.clear();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -299,55 +780,376 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER:
                 normalizeDate(values);
+                // A partial update leaves us unable to tell what the row holds now.
+                if (!values.containsKey(WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH)) {
+                    values.put(WeatherContract.WeatherEntry.COLUMN_CONTENT_HASH, 0);
+                }
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
+            case HOURLY:
+                normalizeDate(values);
+                rowsUpdated = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+                break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                // The update may have changed which setting an _id goes with.
+                LocationRegistry.clear();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
 
+    /**
+     * Inserts weather rows, 3-hour days or locations in one transaction.  Rows whose values are
+     * identical to the stored row for the same location and date are skipped, as are locations
+     * stored already with the same city name and coordinates, and no change is notified when
+     * every row was skipped.
+     *
+     * @return the number of rows actually written.
+     */
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+        if (match != WEATHER && match != HOURLY && match != LOCATION) {
+            return super.bulkInsert(uri, values);
+        }
+        int returnCount;
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            if (match == WEATHER) {
+                returnCount = insertWeatherRows(db, values);
+            } else if (match == HOURLY) {
+                returnCount = insertHourlyRows(db, values);
+            } else {
+                returnCount = insertLocationRows(db, values);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            if (!success) {
+                // Locations the insert registered are gone with it, and their _ids would be
+                // handed out again.
+                LocationRegistry.clear();
+                QueryCache.clear();
+            }
+        }
+        if (returnCount > 0) {
+            notifyChange(uri);
+        }
+        return returnCount;
+    }
+
+    // The columns the bulk insert of 3-hour days binds, in order.
+    private static final String[] sHourlyInsertColumns = {
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+            WeatherContract.HourlyEntry.COLUMN_DATE,
+            WeatherContract.HourlyEntry.COLUMN_SLOTS
+    };
+    private static final int HOURLY_INSERT_DATE_INDEX = 2;
+
+    private static final String INSERT_HOURLY_SQL = buildInsertSql(
+            WeatherContract.HourlyEntry.TABLE_NAME, sHourlyInsertColumns);
+
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (String column : columns) {
+            sql.append(column).append(", ");
+            params.append("?, ");
+        }
+        sql.setLength(sql.length() - 2);
+        params.setLength(params.length() - 2);
+        return sql.append(") VALUES (").append(params).append(')').toString();
+    }
+
+    /**
+     * Stores weather rows through one set of compiled statements, binding each value where it
+     * is: no SQL is built, and the values are neither copied nor normalized in place, per row.
+     * Stored rows for the same location and date are updated in place, unless they hold the
+     * same values already.  The caller holds the transaction.
+     *
+     * @return the number of rows inserted or updated.
+     */
+    static int insertWeatherRows(SQLiteDatabase db, ContentValues[] values) {
+        WeatherUpsert upsert = new WeatherUpsert(db);
+        try {
+            for (ContentValues value : values) {
+                upsert.upsert(value);
+            }
+        } finally {
+            upsert.close();
+        }
+        return upsert.getInserted() + upsert.getUpdated();
+    }
+
+    /**
+     * Inserts 3-hour days through one compiled statement the way weather rows used to be:
+     * a day identical to the stored one is skipped, and the table's ON CONFLICT REPLACE
+     * replaces a day that changed.  The caller holds the transaction.
+     *
+     * @return the number of days written.
+     */
+    static int insertHourlyRows(SQLiteDatabase db, ContentValues[] values) {
+        SQLiteStatement insert = db.compileStatement(INSERT_HOURLY_SQL);
+        SQLiteStatement unchangedDay = compileUnchangedHourlyRowStatement(db);
+        int count = 0;
+        try {
+            for (ContentValues value : values) {
+                long locationId = getLong(value, WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+                long date = getLong(value, WeatherContract.HourlyEntry.COLUMN_DATE);
+                byte[] slots = value.getAsByteArray(WeatherContract.HourlyEntry.COLUMN_SLOTS);
+                if (locationId != NO_VALUE && date != NO_VALUE && slots != null
+                        && findUnchangedHourlyRow(unchangedDay, locationId,
+                                WeatherContract.normalizeDate(date), slots) > 0) {
+                    continue;
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
-            default:
-                return super.bulkInsert(uri, values);
+                bindRow(insert, value, sHourlyInsertColumns, HOURLY_INSERT_DATE_INDEX);
+                if (executeInsert(insert) != -1) {
+                    count++;
+                }
+            }
+        } finally {
+            insert.close();
+            unchangedDay.close();
+        }
+        return count;
+    }
+
+    // Sets the city name and coordinates of a stored location, unless it holds them already.
+    private static final String REFRESH_LOCATION_SQL =
+            "UPDATE OR IGNORE " + WeatherContract.LocationEntry.TABLE_NAME + " SET " +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " = ?, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " = ?, " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " = ? WHERE " +
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND NOT (" +
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME + " IS ? AND " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT + " IS ? AND " +
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG + " IS ?)";
+
+    // The rows the last statement changed; SQLiteStatement.executeUpdateDelete needs API 11.
+    private static final String CHANGES_SQL = "SELECT changes()";
+
+    /**
+     * Inserts the locations whose setting isn't stored yet, through one compiled statement,
+     * and registers their _ids.  A location whose setting is stored already keeps its _id and
+     * has its city name and coordinates refreshed, where inserting it one row at a time fails.
+     *
+     * @return the number of locations inserted or refreshed.
+     * @throws android.database.SQLException if a location has no setting, as inserting it one
+     * row at a time does; the caller's transaction then stores none of them.
+     */
+    static int insertLocationRows(SQLiteDatabase db, ContentValues[] values) {
+        SQLiteStatement insert = db.compileStatement(INSERT_LOCATION_UNLESS_EXISTS_SQL);
+        SQLiteStatement refresh = null;
+        SQLiteStatement changes = null;
+        int count = 0;
+        try {
+            for (ContentValues value : values) {
+                String locationSetting = value.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                if (locationSetting == null) {
+                    throw new android.database.SQLException(
+                            "Failed to insert a location without a setting");
+                }
+                long _id = insertLocationUnlessExists(insert, value);
+                if (_id != -1) {
+                    LocationRegistry.put(locationSetting, _id);
+                    count++;
+                    continue;
+                }
+                if (refresh == null) {
+                    refresh = db.compileStatement(REFRESH_LOCATION_SQL);
+                    changes = db.compileStatement(CHANGES_SQL);
+                }
+                if (refreshLocation(refresh, changes, locationSetting, value)) {
+                    count++;
+                }
+            }
+        } finally {
+            insert.close();
+            if (refresh != null) {
+                refresh.close();
+                changes.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the stored location had another city name or other coordinates.
+     */
+    private static boolean refreshLocation(SQLiteStatement refresh, SQLiteStatement changes,
+                                           String locationSetting, ContentValues value) {
+        String cityName = value.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME);
+        Double latitude = value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+        Double longitude = value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        for (int offset = 0; offset <= 4; offset += 4) {
+            bindStringOrNull(refresh, offset + 1, cityName);
+            bindDoubleOrNull(refresh, offset + 2, latitude);
+            bindDoubleOrNull(refresh, offset + 3, longitude);
+        }
+        refresh.bindString(4, locationSetting);
+        // OR IGNORE also covers values that break a NOT NULL constraint.
+        refresh.execute();
+        return changes.simpleQueryForLong() > 0;
+    }
+
+    /**
+     * Binds the values of {@code columns} to the first parameters of {@code statement}, the
+     * date, at {@code dateIndex}, normalized.  Missing values are bound as null.
+     */
+    private static void bindRow(SQLiteStatement statement, ContentValues value, String[] columns,
+                                int dateIndex) {
+        for (int i = 0; i < columns.length; i++) {
+            long date;
+            if (i + 1 == dateIndex && (date = getLong(value, columns[i])) != NO_VALUE) {
+                statement.bindLong(dateIndex, WeatherContract.normalizeDate(date));
+            } else {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, value.get(columns[i]));
+            }
         }
     }
 
+    // What getLong returns for a missing value, or one that isn't a number.
+    static final long NO_VALUE = Long.MIN_VALUE;
+
+    /**
+     * Reads a value as a long the way {@link ContentValues#getAsLong} does, without boxing
+     * the numbers it is usually given.
+     */
+    static long getLong(ContentValues value, String column) {
+        Object columnValue = value.get(column);
+        if (columnValue instanceof Number) {
+            return ((Number) columnValue).longValue();
+        }
+        Long parsed = columnValue != null ? value.getAsLong(column) : null;
+        return parsed != null ? parsed : NO_VALUE;
+    }
+
+    /**
+     * @return the _id of the inserted row, or -1 if it broke a constraint, as
+     * {@link SQLiteDatabase#insert} does.
+     */
+    static long executeInsert(SQLiteStatement insert) {
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            Log.e(LOG_TAG, "Error inserting a row", e);
+            return -1;
+        }
+    }
+
+    static final String UNCHANGED_HOURLY_ROW_SQL =
+            "SELECT " + WeatherContract.HourlyEntry._ID +
+            " FROM " + WeatherContract.HourlyEntry.TABLE_NAME +
+            " WHERE " + WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherContract.HourlyEntry.COLUMN_DATE + " = ? AND " +
+            WeatherContract.HourlyEntry.COLUMN_SLOTS + " = ?";
+
+    private static SQLiteStatement compileUnchangedHourlyRowStatement(SQLiteDatabase db) {
+        return db.compileStatement(UNCHANGED_HOURLY_ROW_SQL);
+    }
+
+    /**
+     * @return the _id of the stored day for the same location and date if it already holds
+     * these slots, or -1.  The blobs are small enough to compare as they are.
+     */
+    private static long findUnchangedHourlyRow(SQLiteStatement unchangedDay, ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_DATE);
+        byte[] slots = value.getAsByteArray(WeatherContract.HourlyEntry.COLUMN_SLOTS);
+        if (locationId == null || date == null || slots == null) {
+            return -1;
+        }
+        return findUnchangedHourlyRow(unchangedDay, locationId, date, slots);
+    }
+
+    private static long findUnchangedHourlyRow(SQLiteStatement unchangedDay, long locationId,
+                                               long date, byte[] slots) {
+        unchangedDay.bindLong(1, locationId);
+        unchangedDay.bindLong(2, date);
+        unchangedDay.bindBlob(3, slots);
+        try {
+            return unchangedDay.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    // The forecast columns covered by the content hash, in hashing order.
+    private static final String[] sHashedDoubleColumns = {
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * @return a 64-bit FNV-1a hash of the forecast values of a weather row; never 0.
+     */
+    public static long computeContentHash(ContentValues values) {
+        long hash = FNV_OFFSET_BASIS;
+        Long weatherId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        hash = mixLong(hash, weatherId == null ? Long.MIN_VALUE : weatherId);
+
+        String description = values.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+        if (description == null) {
+            hash = mixLong(hash, Long.MIN_VALUE);
+        } else {
+            for (int i = 0; i < description.length(); i++) {
+                hash = (hash ^ description.charAt(i)) * FNV_PRIME;
+            }
+            hash = mixLong(hash, description.length());
+        }
+
+        for (String column : sHashedDoubleColumns) {
+            Double value = values.getAsDouble(column);
+            hash = mixLong(hash, value == null ? Long.MIN_VALUE : Double.doubleToLongBits(value));
+        }
+        // 0 is reserved for rows whose content is unknown.
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mixLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
     @TargetApi(11)
     public void shutdown() {
+        synchronized (this) {
+            if (mUpsertLocation != null) {
+                mUpsertLocation.close();
+                mUpsertLocation = null;
+            }
+            if (mFindLocation != null) {
+                mFindLocation.close();
+                mFindLocation = null;
+            }
+        }
         mOpenHelper.close();
         super.shutdown();
     }
@@ -0,0 +1,194 @@
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Stores weather rows in place: the stored row for the same location and date is updated and
+ * keeps its _id, where the table's ON CONFLICT REPLACE would delete it and insert a new one
+ * under a new _id.  The widgets and the checked item of the forecast list hold on to those
+ * _ids.  An update only sets the forecast columns, so the unique index on the location and
+ * date is left alone, and a row that already holds the values isn't written at all.
+ *
+ * The statements are compiled when first needed and run in the caller's transaction, if any.
+ * Close the upsert when done with it.
+ */
+class WeatherUpsert {
+    private static final String LOG_TAG = WeatherUpsert.class.getSimpleName();
+
+    // The columns an update sets, in the order they are bound; the content hash follows them.
+    private static final String[] sForecastColumns = {
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The _id of the stored row for a location and date, negated if it holds values with the
+    // given content hash.  Served entirely by the location and date index, which covers the
+    // content hash.
+    static final String FIND_WEATHER_ROW_SQL =
+            "SELECT CASE WHEN " + WeatherEntry.COLUMN_CONTENT_HASH + " = ?" +
+            " THEN -" + WeatherEntry._ID + " ELSE " + WeatherEntry._ID + " END" +
+            " FROM " + WeatherEntry.TABLE_NAME +
+            " WHERE " + WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherEntry.COLUMN_DATE + " = ?";
+
+    private static final String INSERT_WEATHER_SQL;
+    private static final String UPDATE_WEATHER_SQL;
+
+    static {
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(WeatherEntry.TABLE_NAME)
+                .append(" (").append(WeatherEntry.COLUMN_LOC_KEY)
+                .append(", ").append(WeatherEntry.COLUMN_DATE);
+        StringBuilder update = new StringBuilder("UPDATE ").append(WeatherEntry.TABLE_NAME)
+                .append(" SET ");
+        for (String column : sForecastColumns) {
+            insert.append(", ").append(column);
+            update.append(column).append(" = ?, ");
+        }
+        insert.append(", ").append(WeatherEntry.COLUMN_CONTENT_HASH).append(") VALUES (?, ?");
+        for (int i = 0; i <= sForecastColumns.length; i++) {
+            insert.append(", ?");
+        }
+        INSERT_WEATHER_SQL = insert.append(')').toString();
+        UPDATE_WEATHER_SQL = update.append(WeatherEntry.COLUMN_CONTENT_HASH).append(" = ? WHERE ")
+                .append(WeatherEntry._ID).append(" = ?").toString();
+    }
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mFind;
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdate;
+
+    private int mInserted;
+    private int mUpdated;
+    private int mUnchanged;
+
+    WeatherUpsert(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Inserts the row, or updates the stored row for its location and date unless that holds
+     * the same values already.  The values are left as they are; their date is normalized as it
+     * is bound.
+     *
+     * @return the _id of the row holding the values, or -1 if they could not be stored.
+     */
+    long upsert(ContentValues values) {
+        long locationId = WeatherProvider.getLong(values, WeatherEntry.COLUMN_LOC_KEY);
+        long date = WeatherProvider.getLong(values, WeatherEntry.COLUMN_DATE);
+        if (date != WeatherProvider.NO_VALUE) {
+            date = WeatherContract.normalizeDate(date);
+        }
+        long contentHash = WeatherProvider.computeContentHash(values);
+
+        if (locationId != WeatherProvider.NO_VALUE && date != WeatherProvider.NO_VALUE) {
+            long stored = find(locationId, date, contentHash);
+            if (stored < 0) {
+                mUnchanged++;
+                return -stored;
+            } else if (stored > 0) {
+                return update(stored, values, contentHash);
+            }
+        }
+        return insert(locationId, date, values, contentHash);
+    }
+
+    private long find(long locationId, long date, long contentHash) {
+        if (mFind == null) {
+            mFind = mDb.compileStatement(FIND_WEATHER_ROW_SQL);
+        }
+        mFind.bindLong(1, contentHash);
+        mFind.bindLong(2, locationId);
+        mFind.bindLong(3, date);
+        try {
+            return mFind.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // No row for this location and date.
+            return 0;
+        }
+    }
+
+    private long insert(long locationId, long date, ContentValues values, long contentHash) {
+        if (mInsert == null) {
+            mInsert = mDb.compileStatement(INSERT_WEATHER_SQL);
+        }
+        bindLongOrNull(mInsert, 1, locationId);
+        bindLongOrNull(mInsert, 2, date);
+        for (int i = 0; i < sForecastColumns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(mInsert, i + 3, values.get(sForecastColumns[i]));
+        }
+        mInsert.bindLong(sForecastColumns.length + 3, contentHash);
+        long _id = WeatherProvider.executeInsert(mInsert);
+        if (_id != -1) {
+            mInserted++;
+        }
+        return _id;
+    }
+
+    private long update(long _id, ContentValues values, long contentHash) {
+        if (mUpdate == null) {
+            mUpdate = mDb.compileStatement(UPDATE_WEATHER_SQL);
+        }
+        for (int i = 0; i < sForecastColumns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(mUpdate, i + 1, values.get(sForecastColumns[i]));
+        }
+        mUpdate.bindLong(sForecastColumns.length + 1, contentHash);
+        mUpdate.bindLong(sForecastColumns.length + 2, _id);
+        try {
+            // execute rather than executeUpdateDelete, which needs API 11; the row was just
+            // found, so it is there to update.
+            mUpdate.execute();
+        } catch (SQLiteConstraintException e) {
+            Log.e(LOG_TAG, "Error updating row " + _id, e);
+            return -1;
+        }
+        mUpdated++;
+        return _id;
+    }
+
+    private static void bindLongOrNull(SQLiteStatement statement, int index, long value) {
+        if (value == WeatherProvider.NO_VALUE) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    int getInserted() {
+        return mInserted;
+    }
+
+    int getUpdated() {
+        return mUpdated;
+    }
+
+    int getUnchanged() {
+        return mUnchanged;
+    }
+
+    void close() {
+        if (mFind != null) {
+            mFind.close();
+        }
+        if (mInsert != null) {
+            mInsert.close();
+        }
+        if (mUpdate != null) {
+            mUpdate.close();
+        }
+    }
+}
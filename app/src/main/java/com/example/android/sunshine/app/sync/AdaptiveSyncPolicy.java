@@ -0,0 +1,75 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Stretches the sync period while the forecast keeps coming back without a change a user would
+ * notice, and shrinks it when it moves.  Syncing is made cheaper while the device charges on an
+ * unmetered network, and rarer when the app hasn't been opened for days.  The period always
+ * stays between the bounds the policy was created with.
+ */
+class AdaptiveSyncPolicy implements SyncPolicy {
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+    private static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // The forecast is volatile when this share of the days fetched changed, and at least
+    // MIN_VOLATILE_DAYS of them; a fetch of only the near term has fewer days to change.
+    private static final float VOLATILE_DAYS_SHARE = 0.5f;
+    private static final int MIN_VOLATILE_DAYS = 2;
+
+    private final long mMinInterval;
+    private final long mMaxInterval;
+
+    /**
+     * @param minInterval the shortest period, in seconds.
+     * @param maxInterval the longest period, in seconds.
+     */
+    AdaptiveSyncPolicy(long minInterval, long maxInterval) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid bounds " + minInterval + ", "
+                    + maxInterval);
+        }
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+    }
+
+    @Override
+    public long nextInterval(long currentInterval, SyncSignals signals) {
+        double factor;
+        if (signals.failed) {
+            // Nothing learned; retrying is the back-off's business.
+            factor = 1;
+        } else if (signals.changedDays >= getVolatileDays(signals.fetchedDays)) {
+            factor = 0.5;
+        } else if (signals.changedDays > 0) {
+            factor = 0.8;
+        } else if (signals.noOp) {
+            // Grows faster the more often recent syncs found nothing new.
+            factor = 1 + Math.max(0, Math.min(1, signals.noOpRate));
+        } else {
+            factor = 1;
+        }
+
+        if (signals.charging && signals.unmetered) {
+            factor *= 0.75;
+        }
+        if (signals.millisSinceAppUse < 0 || signals.millisSinceAppUse > 3 * DAY_IN_MILLIS) {
+            // Nobody is looking; the widgets and the watch can do with older data.
+            factor *= 2;
+        } else if (signals.millisSinceAppUse < HOUR_IN_MILLIS) {
+            factor *= 0.75;
+        }
+
+        long interval = Math.round(currentInterval * factor);
+        return Math.max(mMinInterval, Math.min(mMaxInterval, interval));
+    }
+
+    /**
+     * @return the changed days that make a fetch of {@code fetchedDays} days volatile.
+     */
+    static int getVolatileDays(int fetchedDays) {
+        if (fetchedDays <= 0) {
+            fetchedDays = ForecastRequest.NUM_DAYS;
+        }
+        return Math.max(MIN_VOLATILE_DAYS, (int) Math.ceil(fetchedDays * VOLATILE_DAYS_SHARE));
+    }
+}
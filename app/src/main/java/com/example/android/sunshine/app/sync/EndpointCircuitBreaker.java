@@ -0,0 +1,234 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Keeps the syncs off a forecast endpoint that keeps failing.  Every failure pushes the next
+ * attempt back exponentially, with jitter so devices don't retry in lockstep.  After
+ * {@link #FAILURE_THRESHOLD} failures in a row the circuit opens: no request is made until the
+ * back-off has passed, and then a single probe decides whether it closes again.  Meanwhile the
+ * forecast already stored is what the app shows.
+ *
+ * The state survives the process in its own preferences file, keyed by endpoint.
+ */
+class EndpointCircuitBreaker {
+    private static final String LOG_TAG = EndpointCircuitBreaker.class.getSimpleName();
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_CLOSED, STATE_OPEN, STATE_HALF_OPEN})
+    @interface State {}
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    // Consecutive failures that open the circuit.
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 30 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    // Transitions kept for diagnostics.
+    private static final int MAX_TRANSITIONS = 16;
+
+    private static final String PREFS_NAME = "endpoint_breakers";
+
+    private static final String KEY_STATE = "state:";
+    private static final String KEY_FAILURES = "failures:";
+    private static final String KEY_RETRY_AT = "retry_at:";
+
+    private static final HashMap<String, EndpointCircuitBreaker> sBreakers =
+            new HashMap<String, EndpointCircuitBreaker>();
+
+    private final String mEndpoint;
+    private final Random mRandom;
+
+    @State
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    // Wall clock time before which no request is made.
+    private long mRetryAt;
+    private boolean mProbeInFlight;
+
+    private final ArrayDeque<String> mTransitions = new ArrayDeque<String>(MAX_TRANSITIONS);
+
+    EndpointCircuitBreaker(String endpoint, Random random) {
+        mEndpoint = endpoint;
+        mRandom = random;
+    }
+
+    /**
+     * @return the breaker of {@code endpoint}, shared by every fetch in the process.
+     */
+    static EndpointCircuitBreaker forEndpoint(Context context, String endpoint) {
+        synchronized (sBreakers) {
+            EndpointCircuitBreaker breaker = sBreakers.get(endpoint);
+            if (breaker == null) {
+                breaker = new EndpointCircuitBreaker(endpoint, new Random());
+                SharedPreferences prefs = getPreferences(context);
+                //noinspection ResourceType
+                breaker.mState = prefs.getInt(KEY_STATE + endpoint, STATE_CLOSED);
+                breaker.mConsecutiveFailures = prefs.getInt(KEY_FAILURES + endpoint, 0);
+                breaker.mRetryAt = prefs.getLong(KEY_RETRY_AT + endpoint, 0);
+                sBreakers.put(endpoint, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Closes every breaker and forgets their saved state, e.g. before running syncs against
+     * another server.
+     */
+    static void resetAll(Context context) {
+        synchronized (sBreakers) {
+            sBreakers.clear();
+            getPreferences(context).edit().clear().commit();
+        }
+    }
+
+    /**
+     * Writes the state of every breaker of the process, and its recent transitions.
+     */
+    static void dumpAll(PrintWriter writer) {
+        synchronized (sBreakers) {
+            if (sBreakers.isEmpty()) {
+                writer.println("No endpoint contacted yet");
+            }
+            for (EndpointCircuitBreaker breaker : sBreakers.values()) {
+                breaker.dump(writer);
+            }
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return true if a request may be made now.  When the circuit is half open only the
+     * first caller is let through, as the probe; it must report how it went.
+     */
+    synchronized boolean allowRequest(long now) {
+        switch (mState) {
+            case STATE_CLOSED:
+                return now >= mRetryAt;
+            case STATE_OPEN:
+                if (now < mRetryAt) {
+                    return false;
+                }
+                transitionTo(STATE_HALF_OPEN, now);
+                mProbeInFlight = true;
+                return true;
+            case STATE_HALF_OPEN:
+            default:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+        }
+    }
+
+    synchronized void onSuccess(long now) {
+        if (mState != STATE_CLOSED) {
+            transitionTo(STATE_CLOSED, now);
+        }
+        mProbeInFlight = false;
+        mConsecutiveFailures = 0;
+        mRetryAt = 0;
+    }
+
+    synchronized void onFailure(long now) {
+        mProbeInFlight = false;
+        mConsecutiveFailures++;
+        mRetryAt = now + getBackoffMillis(mConsecutiveFailures);
+        if (mState == STATE_HALF_OPEN
+                || (mState == STATE_CLOSED && mConsecutiveFailures >= FAILURE_THRESHOLD)) {
+            transitionTo(STATE_OPEN, now);
+        }
+    }
+
+    /**
+     * @return the back-off after {@code failures} consecutive failures: half of the exponential
+     * delay, plus up to as much again at random.
+     */
+    long getBackoffMillis(int failures) {
+        long delay = BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MILLIS);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    private void transitionTo(@State int state, long now) {
+        String transition = formatTime(now) + " " + getStateName(mState) + " -> "
+                + getStateName(state) + " after " + mConsecutiveFailures + " failure(s)";
+        Log.d(LOG_TAG, mEndpoint + ": " + transition);
+        if (mTransitions.size() == MAX_TRANSITIONS) {
+            mTransitions.removeFirst();
+        }
+        mTransitions.addLast(transition);
+        mState = state;
+    }
+
+    @State
+    synchronized int getState() {
+        return mState;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    synchronized long getRetryAt() {
+        return mRetryAt;
+    }
+
+    /**
+     * Remembers the state across processes.  This should not be called from the UI thread
+     * because it uses commit to write to the shared preferences.
+     */
+    synchronized void save(Context context) {
+        getPreferences(context).edit()
+                .putInt(KEY_STATE + mEndpoint, mState)
+                .putInt(KEY_FAILURES + mEndpoint, mConsecutiveFailures)
+                .putLong(KEY_RETRY_AT + mEndpoint, mRetryAt)
+                .commit();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println(mEndpoint + ": " + getStateName(mState) + ", " + mConsecutiveFailures
+                + " consecutive failure(s)"
+                + (mRetryAt > 0 ? ", next attempt at " + formatTime(mRetryAt) : ""));
+        for (String transition : mTransitions) {
+            writer.println("  " + transition);
+        }
+    }
+
+    private static String getStateName(@State int state) {
+        switch (state) {
+            case STATE_OPEN:
+                return "open";
+            case STATE_HALF_OPEN:
+                return "half open";
+            case STATE_CLOSED:
+            default:
+                return "closed";
+        }
+    }
+
+    private static String formatTime(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(time));
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Always syncs with the same period, whatever happened.
+ */
+class FixedSyncPolicy implements SyncPolicy {
+
+    private final long mInterval;
+
+    FixedSyncPolicy(long interval) {
+        mInterval = interval;
+    }
+
+    @Override
+    public long nextInterval(long currentInterval, SyncSignals signals) {
+        return mInterval;
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.WeatherInformation;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the weather rows of one forecast response as the parser emits them, ready to be
+ * handed to the provider as part of a single batch.
+ */
+class ForecastBatch implements ForecastParser.Callback {
+
+    private final String mLocationSetting;
+    private final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>(16);
+    private final Time mDayTime;
+    private final int mJulianStartDay;
+
+    private String mCityName;
+    private double mCityLatitude;
+    private double mCityLongitude;
+    private boolean mHasCity;
+
+    private WeatherInformation mToday;
+
+    ForecastBatch(String locationSetting) {
+        this(locationSetting, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now the time the forecast is for, whose day is the first of the response.
+     */
+    ForecastBatch(String locationSetting, long now) {
+        mLocationSetting = locationSetting;
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        mJulianStartDay = Time.getJulianDay(now, dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        mDayTime = new Time();
+    }
+
+    @Override
+    public void onCity(String cityName, double latitude, double longitude) {
+        mCityName = cityName;
+        mCityLatitude = latitude;
+        mCityLongitude = longitude;
+        mHasCity = true;
+    }
+
+    @Override
+    public void onDay(int index, ForecastDay day) {
+        // Cheating to convert this to UTC time, which is what we want anyhow
+        long dateTime = mDayTime.setJulianDay(mJulianStartDay + index);
+
+        // The location key is filled in by the provider once the location row is known,
+        // since the "city" object isn't guaranteed to come before "list".
+        ContentValues weatherValues = new ContentValues(11);
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+
+        mRows.add(weatherValues);
+
+        if (index == 0) {
+            mToday = new WeatherInformation(day.high, day.low, day.description, day.weatherId);
+        }
+    }
+
+    String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    boolean hasCity() {
+        return mHasCity;
+    }
+
+    String getCityName() {
+        return mCityName;
+    }
+
+    double getCityLatitude() {
+        return mCityLatitude;
+    }
+
+    double getCityLongitude() {
+        return mCityLongitude;
+    }
+
+    /**
+     * @return today's values, or null if the response had no days.
+     */
+    WeatherInformation getToday() {
+        return mToday;
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    /**
+     * @return today's weather id; only meaningful if the response had days.
+     */
+    int getTodayWeatherId() {
+        return getWeatherId(0);
+    }
+
+    /**
+     * @return a hash of today's date and values; only meaningful if the response had days.
+     */
+    long getTodayHash() {
+        return getDayHash(0);
+    }
+
+    /**
+     * @return a hash of the date and values of the {@code index}th day.
+     */
+    long getDayHash(int index) {
+        return hashRow(index, 17);
+    }
+
+    /**
+     * @return the normalized date of the {@code index}th day.
+     */
+    long getDate(int index) {
+        return mRows.get(index).getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+    }
+
+    int getWeatherId(int index) {
+        return mRows.get(index).getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+    }
+
+    double getHigh(int index) {
+        return mRows.get(index).getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+    }
+
+    double getLow(int index) {
+        return mRows.get(index).getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+    }
+
+    private long hashRow(int index, long hash) {
+        ContentValues row = mRows.get(index);
+        hash = 31 * hash + row.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        return 31 * hash + WeatherProvider.computeContentHash(row);
+    }
+
+    /**
+     * Adds the operations storing this forecast: an upsert of its location followed by an
+     * insert of each weather row, keyed to the location through a back reference.
+     *
+     * @return the index of the location's operation.
+     */
+    int addOperationsTo(ArrayList<ContentProviderOperation> operations) {
+        int locationIndex = operations.size();
+        operations.add(ContentProviderOperation
+                .newInsert(WeatherContract.LocationEntry.buildLocationUpsertUri())
+                .withValue(WeatherContract.LocationEntry.COLUMN_CITY_NAME, mCityName)
+                .withValue(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, mLocationSetting)
+                .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LAT, mCityLatitude)
+                .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LONG, mCityLongitude)
+                .build());
+        for (ContentValues row : mRows) {
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withValues(row)
+                    .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                            locationIndex)
+                    .build());
+        }
+        return locationIndex;
+    }
+
+    /**
+     * Replaces the location's snapshot with this forecast, once it has been committed.
+     *
+     * @param nearTermOnly whether this is only the first days of the forecast, in which case
+     * the later days of the previous snapshot are kept.
+     */
+    boolean writeSnapshot(Context context, long now, boolean nearTermOnly) {
+        return ForecastSnapshot.write(context, mLocationSetting, mRows, now, nearTermOnly);
+    }
+
+    /**
+     * @return the date before which rows are considered history and can be deleted.
+     */
+    long getRetentionCutoff() {
+        return mDayTime.setJulianDay(mJulianStartDay - 1);
+    }
+}
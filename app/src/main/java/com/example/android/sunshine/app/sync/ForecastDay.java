@@ -0,0 +1,29 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * The values we keep for one element of the forecast "list" array.  Parsers fill a single
+ * instance over and over, so nothing is allocated per day while parsing.
+ */
+class ForecastDay {
+    double pressure;
+    int humidity;
+    double windSpeed;
+    double windDirection;
+
+    double high;
+    double low;
+
+    String description;
+    int weatherId;
+
+    void reset() {
+        pressure = 0;
+        humidity = 0;
+        windSpeed = 0;
+        windDirection = 0;
+        high = 0;
+        low = 0;
+        description = null;
+        weatherId = 0;
+    }
+}
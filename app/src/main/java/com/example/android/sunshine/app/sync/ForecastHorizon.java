@@ -0,0 +1,63 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Decides how many days each fetch asks for.  The first days of a forecast are what changes
+ * from one sync to the next; the second week hardly moves in a few hours.  So most syncs only
+ * fetch the near term, {@link #SHORT_DAYS} days, and merge it over the stored rows, and the
+ * full {@link ForecastRequest#NUM_DAYS} are only fetched once the last full forecast stored is
+ * {@link #FULL_INTERVAL_MILLIS} old, or there is none.
+ *
+ * When each location's full forecast was last stored is kept in its own preferences file,
+ * keyed like the validators.
+ */
+class ForecastHorizon {
+
+    static final int SHORT_DAYS = 3;
+    static final long FULL_INTERVAL_MILLIS = 12 * 60 * 60 * 1000;
+
+    private static final String PREFS_NAME = "forecast_horizons";
+    private static final String KEY_FULL_STORED_AT = "full_stored_at:";
+
+    /**
+     * @param haveStoredForecast whether the location's forecast for today is in the database;
+     * without it there is nothing for a short fetch to be merged with.
+     * @return the number of days to fetch for the location.
+     */
+    static int chooseDays(Context context, String locationKey, boolean haveStoredForecast,
+                          long now) {
+        if (!haveStoredForecast) {
+            return ForecastRequest.NUM_DAYS;
+        }
+        long fullStoredAt = getPreferences(context).getLong(KEY_FULL_STORED_AT + locationKey, 0);
+        // A clock set back also calls for the full forecast.
+        if (now - fullStoredAt >= FULL_INTERVAL_MILLIS || now < fullStoredAt) {
+            return ForecastRequest.NUM_DAYS;
+        }
+        return SHORT_DAYS;
+    }
+
+    /**
+     * Remembers that the location's full forecast, fetched at {@code fetchedAt}, is stored.
+     * This should not be called from the UI thread because it uses commit to write to the
+     * shared preferences.
+     */
+    static void onFullForecastStored(Context context, String locationKey, long fetchedAt) {
+        getPreferences(context).edit()
+                .putLong(KEY_FULL_STORED_AT + locationKey, fetchedAt)
+                .commit();
+    }
+
+    /**
+     * Forgets every location's full forecast, so the next fetches ask for all the days.
+     */
+    static void clear(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
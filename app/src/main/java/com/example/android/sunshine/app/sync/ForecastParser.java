@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an OpenWeatherMap daily forecast response and reports what it finds through a
+ * {@link Callback}, one call per parsed element, instead of handing back an object tree.
+ */
+interface ForecastParser {
+
+    /**
+     * Receives the parsed pieces of a forecast response in the order they are read.
+     */
+    interface Callback {
+        /**
+         * Called once for the "city" object of the response.
+         */
+        void onCity(String cityName, double latitude, double longitude);
+
+        /**
+         * Called for each element of the "list" array.  The {@link ForecastDay} instance may be
+         * reused by the parser, so implementations must copy what they need before returning.
+         *
+         * @param index position of the day in the "list" array, 0 being today
+         */
+        void onDay(int index, ForecastDay day);
+    }
+
+    /**
+     * Parses the response read from {@code in}.  The stream is not closed.
+     *
+     * @return the "cod" value of the response, or HttpURLConnection.HTTP_OK if it has none.
+     * Parsing stops at the first code that isn't HTTP_OK.
+     */
+    int parse(InputStream in, Callback callback) throws IOException, JSONException;
+}
@@ -0,0 +1,224 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks the locations the user is likely to switch to next, so a sync can fetch and store their
+ * forecast before they do and the forecast shows as soon as they pick one.  The candidates are
+ * the locations stored before that aren't synced anyway, those near the preferred location
+ * first, then the most recently added.
+ *
+ * Prefetching is speculative, so it only happens on an unmetered network and within
+ * {@link #DAILY_BYTE_BUDGET} downloaded bytes a day.  Whether it pays off is counted: a switch
+ * to a location prefetched within {@link #HIT_WINDOW_MILLIS} is a hit, any other switch a miss.
+ * The budget, the counters and what was prefetched when are kept in their own preferences file.
+ */
+class ForecastPrefetcher {
+    private static final String LOG_TAG = ForecastPrefetcher.class.getSimpleName();
+
+    static final int MAX_CANDIDATES = 3;
+    static final long DAILY_BYTE_BUDGET = 256 * 1024;
+    // Locations this close to the preferred one come before the others.
+    static final double NEARBY_KM = 100;
+    static final long HIT_WINDOW_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final double EARTH_RADIUS_KM = 6371;
+
+    private static final String PREFS_NAME = "forecast_prefetch";
+
+    private static final String KEY_BUDGET_DAY = "budget_day";
+    private static final String KEY_BUDGET_BYTES = "budget_bytes";
+    private static final String KEY_LAST_PREFERRED = "last_preferred";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+    private static final String KEY_PREFETCHED_AT = "prefetched_at:";
+
+    private static final String[] LOCATION_COLUMNS = {
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final int COL_LOCATION_SETTING = 0;
+    private static final int COL_COORD_LAT = 1;
+    private static final int COL_COORD_LONG = 2;
+
+    private ForecastPrefetcher() {
+    }
+
+    /**
+     * @return true if the network is unmetered and today's budget isn't spent.
+     */
+    static boolean isAllowed(Context context, long now) {
+        if (!SyncScheduler.isUnmetered(context)) {
+            return false;
+        }
+        return getBytesSpent(context, now) < DAILY_BYTE_BUDGET;
+    }
+
+    /**
+     * @return the bytes prefetched on the day of {@code now}.
+     */
+    static long getBytesSpent(Context context, long now) {
+        SharedPreferences prefs = getPreferences(context);
+        if (prefs.getLong(KEY_BUDGET_DAY, 0) != WeatherContract.normalizeDate(now)) {
+            return 0;
+        }
+        return prefs.getLong(KEY_BUDGET_BYTES, 0);
+    }
+
+    /**
+     * @param synced the locations the sync fetches anyway.
+     * @return the locations to prefetch, at most {@link #MAX_CANDIDATES}.
+     */
+    static List<ForecastRequest> chooseCandidates(Context context, List<ForecastRequest> synced) {
+        Set<String> skipped = new HashSet<String>();
+        for (ForecastRequest request : synced) {
+            skipped.add(request.locationSetting);
+        }
+        String preferred = Utility.getPreferredLocation(context);
+        boolean havePreferredCoords = Utility.isLocationLatLonAvailable(context);
+        double preferredLat = Utility.getLocationLatitude(context);
+        double preferredLon = Utility.getLocationLongitude(context);
+
+        List<String> settings = new ArrayList<String>();
+        List<double[]> coords = new ArrayList<double[]>();
+        Cursor cursor = context.getContentResolver().query(LocationEntry.CONTENT_URI,
+                LOCATION_COLUMNS, null, null, LocationEntry._ID + " DESC");
+        if (cursor == null) {
+            return new ArrayList<ForecastRequest>();
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String setting = cursor.getString(COL_LOCATION_SETTING);
+                if (!havePreferredCoords && setting.equals(preferred)) {
+                    havePreferredCoords = true;
+                    preferredLat = cursor.getDouble(COL_COORD_LAT);
+                    preferredLon = cursor.getDouble(COL_COORD_LONG);
+                }
+                if (skipped.add(setting)) {
+                    settings.add(setting);
+                    coords.add(new double[]{
+                            cursor.getDouble(COL_COORD_LAT), cursor.getDouble(COL_COORD_LONG)});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Nearby first, nearest first; then the rest, newest first, as the query returned them.
+        List<ForecastRequest> candidates = new ArrayList<ForecastRequest>(MAX_CANDIDATES);
+        if (havePreferredCoords) {
+            while (candidates.size() < MAX_CANDIDATES) {
+                int nearest = -1;
+                double nearestKm = NEARBY_KM;
+                for (int i = 0; i < settings.size(); i++) {
+                    if (settings.get(i) == null) {
+                        continue;
+                    }
+                    double km = getDistanceKm(preferredLat, preferredLon,
+                            coords.get(i)[0], coords.get(i)[1]);
+                    if (km <= nearestKm) {
+                        nearest = i;
+                        nearestKm = km;
+                    }
+                }
+                if (nearest == -1) {
+                    break;
+                }
+                candidates.add(new ForecastRequest(settings.get(nearest), false));
+                settings.set(nearest, null);
+            }
+        }
+        for (int i = 0; i < settings.size() && candidates.size() < MAX_CANDIDATES; i++) {
+            if (settings.get(i) != null) {
+                candidates.add(new ForecastRequest(settings.get(i), false));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Counts the bytes of a prefetch against today's budget and remembers when the locations
+     * stored were prefetched.  This should not be called from the UI thread because it uses
+     * commit to write to the shared preferences.
+     */
+    static void onPrefetched(Context context, List<String> storedLocations, long wireBytes,
+                             long now) {
+        SharedPreferences.Editor editor = getPreferences(context).edit()
+                .putLong(KEY_BUDGET_DAY, WeatherContract.normalizeDate(now))
+                .putLong(KEY_BUDGET_BYTES, getBytesSpent(context, now) + wireBytes);
+        for (String location : storedLocations) {
+            editor.putLong(KEY_PREFETCHED_AT + location, now);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Called with the preferred location at the start of every sync; a location other than the
+     * last sync's is a switch, and counts as a hit or a miss.  This should not be called from
+     * the UI thread because it uses commit to write to the shared preferences.
+     */
+    static void onPreferredLocation(Context context, String location, long now) {
+        SharedPreferences prefs = getPreferences(context);
+        String last = prefs.getString(KEY_LAST_PREFERRED, null);
+        if (location == null || location.equals(last)) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit().putString(KEY_LAST_PREFERRED, location);
+        if (last != null) {
+            long prefetchedAt = prefs.getLong(KEY_PREFETCHED_AT + location, 0);
+            boolean hit = prefetchedAt > 0 && now - prefetchedAt >= 0
+                    && now - prefetchedAt < HIT_WINDOW_MILLIS;
+            String key = hit ? KEY_HITS : KEY_MISSES;
+            editor.putLong(key, prefs.getLong(key, 0) + 1);
+            Log.d(LOG_TAG, "Switched to " + location + ", prefetch " + (hit ? "hit" : "miss"));
+        }
+        editor.commit();
+    }
+
+    static long getHits(Context context) {
+        return getPreferences(context).getLong(KEY_HITS, 0);
+    }
+
+    static long getMisses(Context context) {
+        return getPreferences(context).getLong(KEY_MISSES, 0);
+    }
+
+    /**
+     * Forgets the budget, the counters and what was prefetched.
+     */
+    static void clear(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    static void dump(Context context, PrintWriter writer) {
+        long now = System.currentTimeMillis();
+        writer.println("  " + getHits(context) + " hit(s), " + getMisses(context)
+                + " miss(es), " + getBytesSpent(context, now) + " of " + DAILY_BYTE_BUDGET
+                + " bytes spent today");
+    }
+
+    private static double getDistanceKm(double lat1, double lon1, double lat2, double lon2) {
+        // Equirectangular; plenty for telling near from far.
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_KM;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.Utility;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One location to fetch the forecast for: the location setting its rows are stored under and,
+ * when it came from the Place Picker, the latitude and longitude to query with.
+ */
+class ForecastRequest {
+
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
+    // The 3-hour forecast lives next to the daily one, at ".../forecast".
+    private static final String DAILY_PATH_SEGMENT = "daily";
+
+    // Where forecasts are fetched from; replaced to run syncs against a local server.
+    private static volatile String sBaseUrl = FORECAST_BASE_URL;
+
+    // Upper bound on the locations synced in one pass, the preferred one included.
+    static final int MAX_TRACKED_LOCATIONS = 8;
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    static final int NUM_DAYS = 14;
+
+    final String locationSetting;
+    final boolean hasLatLon;
+    final float latitude;
+    final float longitude;
+    final boolean isPreferred;
+
+    ForecastRequest(String locationSetting, boolean isPreferred) {
+        this(locationSetting, false, 0, 0, isPreferred);
+    }
+
+    ForecastRequest(String locationSetting, boolean hasLatLon, float latitude, float longitude,
+                    boolean isPreferred) {
+        this.locationSetting = locationSetting;
+        this.hasLatLon = hasLatLon;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.isPreferred = isPreferred;
+    }
+
+    /**
+     * @return the preferred location followed by the tracked ones, at most
+     * {@link #MAX_TRACKED_LOCATIONS} in total.
+     */
+    static List<ForecastRequest> forTrackedLocations(Context context) {
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+
+        // We no longer need just the location String, but also potentially the latitude and
+        // longitude, in case we are sync ing based on a new Place Picker API result.
+        requests.add(new ForecastRequest(Utility.getPreferredLocation(context),
+                Utility.isLocationLatLonAvailable(context),
+                Utility.getLocationLatitude(context),
+                Utility.getLocationLongitude(context),
+                true));
+
+        for (String location : Utility.getTrackedLocations(context)) {
+            if (requests.size() == MAX_TRACKED_LOCATIONS) {
+                break;
+            }
+            requests.add(new ForecastRequest(location, false));
+        }
+        return requests;
+    }
+
+    /**
+     * @return what the server is asked for, used to key what we remember about the response.
+     */
+    String getKey() {
+        return hasLatLon
+                ? String.valueOf(latitude) + "," + String.valueOf(longitude)
+                : locationSetting;
+    }
+
+    /**
+     * @return what the response to this request for {@code days} days is cached under: the
+     * endpoint and the query that decides the content of the response, normalized so that
+     * spelling variants of the same location share an entry.
+     */
+    String getCacheKey(int days) {
+        String query = hasLatLon
+                ? "lat=" + latitude + "&lon=" + longitude
+                : "q=" + locationSetting.trim().toLowerCase(Locale.US);
+        return getEndpoint() + "?" + query + "&units=" + UNITS + "&cnt=" + days;
+    }
+
+    /**
+     * @param baseUrl the forecast URL the query parameters are appended to, or null for
+     * {@link #FORECAST_BASE_URL}.
+     */
+    static void setBaseUrl(String baseUrl) {
+        sBaseUrl = baseUrl != null ? baseUrl : FORECAST_BASE_URL;
+    }
+
+    /**
+     * @return the host the forecast is fetched from, which failures are accounted to.
+     */
+    String getEndpoint() {
+        Uri baseUri = Uri.parse(sBaseUrl);
+        return baseUri.getPort() == -1
+                ? baseUri.getHost()
+                : baseUri.getHost() + ":" + baseUri.getPort();
+    }
+
+    URL buildUrl(int days) throws MalformedURLException {
+        return buildUrl(Uri.parse(sBaseUrl), days);
+    }
+
+    /**
+     * @return the URL of the location's 3-hour forecast, or null if the forecast URL has no
+     * 3-hour counterpart.
+     */
+    URL buildHourlyUrl() throws MalformedURLException {
+        Uri dailyUri = Uri.parse(sBaseUrl);
+        String path = dailyUri.getPath();
+        if (path == null || !path.endsWith("/" + DAILY_PATH_SEGMENT)) {
+            return null;
+        }
+        Uri hourlyUri = dailyUri.buildUpon()
+                .path(path.substring(0, path.length() - DAILY_PATH_SEGMENT.length() - 1))
+                .build();
+        // Five days in 3 hour steps is all the endpoint has.
+        return buildUrl(hourlyUri, 0);
+    }
+
+    /**
+     * @param days the number of days to ask for, or 0 to leave it to the server.
+     */
+    private URL buildUrl(Uri baseUri, int days) throws MalformedURLException {
+        // Construct the URL for the OpenWeatherMap query
+        // Possible parameters are avaiable at OWM's forecast API page, at
+        // http://openweathermap.org/API#forecast
+        final String QUERY_PARAM = "q";
+        final String LAT_PARAM = "lat";
+        final String LON_PARAM = "lon";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        Uri.Builder uriBuilder = baseUri.buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (hasLatLon) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
+                    .appendQueryParameter(LON_PARAM, String.valueOf(longitude));
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, locationSetting);
+        }
+
+        uriBuilder.appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS);
+        if (days > 0) {
+            uriBuilder.appendQueryParameter(DAYS_PARAM, Integer.toString(days));
+        }
+        Uri builtUri = uriBuilder
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+}
@@ -0,0 +1,329 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Keeps the raw forecast responses of recently fetched requests on disk, so switching back to a
+ * location fetched a few minutes ago doesn't go to the network.  Entries are keyed by the
+ * normalized request, one file each, and are fresh for {@link #FRESH_MILLIS}.  Once the files
+ * add up to more than the size limit, the least recently used ones are deleted.  Each file
+ * records when it was last used in its header, since setting a file's modification time
+ * silently fails on some devices and file systems.
+ *
+ * How many fetches were served from the cache, and the bytes that saved, is kept in its own
+ * preferences file.
+ */
+class ForecastResponseCache {
+    private static final String LOG_TAG = ForecastResponseCache.class.getSimpleName();
+
+    // How long a response is served without asking the server.
+    static final long FRESH_MILLIS = 30 * 60 * 1000;
+    // A fresh response older than this is still served, but revalidated in the background.
+    static final long REVALIDATE_AFTER_MILLIS = 5 * 60 * 1000;
+    // Past this a response is of no use at all.
+    static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
+    // A 14 day forecast is a few kilobytes, so this holds several dozen locations.
+    static final long MAX_BYTES = 512 * 1024;
+
+    private static final String DIRECTORY_NAME = "forecast_responses";
+    private static final int FORMAT_VERSION = 2;
+    // Where the last use is written, right after the version, so it can be updated in place.
+    private static final long ACCESSED_AT_OFFSET = 4;
+
+    private static final String PREFS_NAME = "forecast_response_cache";
+    private static final String KEY_HITS = "hits";
+    private static final String KEY_MISSES = "misses";
+    private static final String KEY_BYTES_SAVED = "bytes_saved";
+
+    private static ForecastResponseCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * A cached response.
+     */
+    static class Entry {
+        final String key;
+        // Wall clock time the response was fetched, or last revalidated, at.
+        final long fetchedAt;
+        // Bytes the response took on the wire, i.e. what serving it from here saves.
+        final long wireBytes;
+        final String eTag;
+        final String lastModified;
+        final byte[] body;
+
+        Entry(String key, long fetchedAt, long wireBytes, String eTag, String lastModified,
+              byte[] body) {
+            this.key = key;
+            this.fetchedAt = fetchedAt;
+            this.wireBytes = wireBytes;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        boolean isFresh(long now) {
+            return now - fetchedAt < FRESH_MILLIS && now >= fetchedAt;
+        }
+
+        boolean needsRevalidation(long now) {
+            return now - fetchedAt >= REVALIDATE_AFTER_MILLIS;
+        }
+    }
+
+    ForecastResponseCache(Context context, File directory, long maxBytes) {
+        mContext = context;
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    static synchronized ForecastResponseCache get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new ForecastResponseCache(appContext,
+                    new File(appContext.getCacheDir(), DIRECTORY_NAME), MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the cached response to the request with this key, or null if there is none.
+     */
+    synchronized Entry get(String key, long now) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        Entry entry = read(file);
+        if (entry == null || !entry.key.equals(key) || now - entry.fetchedAt > MAX_AGE_MILLIS) {
+            file.delete();
+            return null;
+        }
+        writeAccessedAt(file, now);
+        return entry;
+    }
+
+    /**
+     * Stores a response, replacing any previous one for the request.
+     */
+    synchronized void put(String key, long now, long wireBytes, String eTag, String lastModified,
+                          byte[] body, int length) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create " + mDirectory);
+            return;
+        }
+        File file = getFile(key);
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(now);
+            out.writeUTF(key);
+            out.writeLong(now);
+            out.writeLong(wireBytes);
+            out.writeUTF(eTag != null ? eTag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.writeInt(length);
+            out.write(body, 0, length);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error caching the response for " + key, e);
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        trimToSize();
+    }
+
+    /**
+     * Marks the cached response as fresh again, after the server said it hasn't changed.
+     */
+    synchronized void touch(String key, long now) {
+        Entry entry = get(key, now);
+        if (entry != null) {
+            put(key, now, entry.wireBytes, entry.eTag, entry.lastModified, entry.body,
+                    entry.body.length);
+        }
+    }
+
+    synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    synchronized void recordHit(Entry entry) {
+        SharedPreferences prefs = getPreferences();
+        prefs.edit()
+                .putLong(KEY_HITS, prefs.getLong(KEY_HITS, 0) + 1)
+                .putLong(KEY_BYTES_SAVED, prefs.getLong(KEY_BYTES_SAVED, 0) + entry.wireBytes)
+                .commit();
+    }
+
+    synchronized void recordMiss() {
+        SharedPreferences prefs = getPreferences();
+        prefs.edit().putLong(KEY_MISSES, prefs.getLong(KEY_MISSES, 0) + 1).commit();
+    }
+
+    /**
+     * @return the share of fetches served from the cache, between 0 and 1.
+     */
+    float getHitRate() {
+        SharedPreferences prefs = getPreferences();
+        long hits = prefs.getLong(KEY_HITS, 0);
+        long total = hits + prefs.getLong(KEY_MISSES, 0);
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    long getBytesSaved() {
+        return getPreferences().getLong(KEY_BYTES_SAVED, 0);
+    }
+
+    void dump(PrintWriter writer) {
+        SharedPreferences prefs = getPreferences();
+        File[] files = mDirectory.listFiles();
+        writer.println("  " + (files != null ? files.length : 0) + " response(s) cached, "
+                + prefs.getLong(KEY_HITS, 0) + " hit(s), " + prefs.getLong(KEY_MISSES, 0)
+                + " miss(es), hit rate " + Math.round(getHitRate() * 100) + "%, "
+                + getBytesSaved() + " bytes saved");
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private File getFile(String key) {
+        byte[] keyBytes = key.getBytes();
+        return new File(mDirectory, ForecastValidators.hashContent(keyBytes, keyBytes.length));
+    }
+
+    private static Entry read(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            // When it was last used, which only eviction needs.
+            in.readLong();
+            String key = in.readUTF();
+            long fetchedAt = in.readLong();
+            long wireBytes = in.readLong();
+            String eTag = in.readUTF();
+            String lastModified = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > ForecastTransport.MAX_PAYLOAD_BYTES) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return new Entry(key, fetchedAt, wireBytes, eTag.isEmpty() ? null : eTag,
+                    lastModified.isEmpty() ? null : lastModified, body);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return when the cached response in the file was last used, or 0 if it is unreadable.
+     */
+    private static long readAccessedAt(File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            return in.readInt() == FORMAT_VERSION ? in.readLong() : 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeAccessedAt(File file, long now) {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.seek(ACCESSED_AT_OFFSET);
+            out.writeLong(now);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error updating " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the rest fit in the size limit.
+     */
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mMaxBytes) {
+            return;
+        }
+        final HashMap<File, Long> accessedAt = new HashMap<File, Long>();
+        for (File file : files) {
+            accessedAt.put(file, readAccessedAt(file));
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsAccessed = accessedAt.get(lhs);
+                long rhsAccessed = accessedAt.get(rhs);
+                return lhsAccessed < rhsAccessed ? -1 : (lhsAccessed == rhsAccessed ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > mMaxBytes; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing more to do with it anyway.
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads forecast responses as bytes.  It asks for gzip, reads the (decompressed) body into
+ * a buffer that is sized from Content-Length and kept across fetches, and refuses bodies over
+ * {@link #MAX_PAYLOAD_BYTES}.  The body is handed to the parser as is: no line splitting, no
+ * character decoding and no String building.
+ *
+ * A transport is not thread safe, and the body of a {@link Response} is only valid until the
+ * next call to {@link #fetch} or {@link #recycle}.
+ */
+class ForecastTransport {
+
+    // A 14 day forecast is a few kilobytes; anything this big is not a forecast.
+    static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_BYTES = 16 * 1024;
+    // Typical expansion of gzipped JSON, used to size the buffer from a compressed length.
+    private static final int GZIP_EXPANSION_ESTIMATE = 6;
+
+    // Transports are recycled so their buffers survive from one sync to the next.
+    private static final int MAX_POOLED_TRANSPORTS = 4;
+    private static final ArrayList<ForecastTransport> sPool = new ArrayList<ForecastTransport>();
+
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_BYTES];
+
+    /**
+     * @return a transport for the calling thread's exclusive use until it is recycled.
+     */
+    static ForecastTransport obtain() {
+        synchronized (sPool) {
+            if (!sPool.isEmpty()) {
+                return sPool.remove(sPool.size() - 1);
+            }
+        }
+        return new ForecastTransport();
+    }
+
+    /**
+     * Returns a transport to the pool.  Neither it nor the body of its last response may be
+     * used afterwards.
+     */
+    void recycle() {
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED_TRANSPORTS) {
+                sPool.add(this);
+            }
+        }
+    }
+
+    /**
+     * What came back from one fetch, along with how much work it took to get it.
+     */
+    static class Response {
+        int responseCode;
+        String eTag;
+        String lastModified;
+
+        byte[] body;
+        int length;
+
+        // Bytes read off the connection, before decompression.
+        long wireBytes;
+        // Bytes copied into and within the body buffer, including copies made to grow it.
+        long bytesCopied;
+        boolean gzipped;
+
+        // Until the connection was open, then until the status line and headers had arrived.
+        long connectMillis;
+        long ttfbMillis;
+        long downloadMillis;
+
+        boolean isNotModified() {
+            return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        boolean isError() {
+            return responseCode >= HttpURLConnection.HTTP_BAD_REQUEST;
+        }
+
+        /**
+         * @return whether the status is the endpoint's fault and counts against its circuit
+         * breaker.  An unknown location is the request's fault.
+         */
+        boolean isEndpointFailure() {
+            return isError() && responseCode != HttpURLConnection.HTTP_NOT_FOUND;
+        }
+    }
+
+    /**
+     * Fetches {@code url}, making the request conditional on the given validators, either of
+     * which may be null.  The body of a 304 or of an error status is not read; an error status
+     * comes back as a response for which {@link Response#isError} is true.
+     *
+     * @throws EOFException if the response body was empty.
+     * @throws IOException if the request failed or the body was larger than
+     * {@link #MAX_PAYLOAD_BYTES}.
+     */
+    Response fetch(URL url, String eTag, String lastModified) throws IOException {
+        Response response = new Response();
+        long start = SystemClock.elapsedRealtime();
+
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        try {
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setRequestMethod("GET");
+            // Setting this ourselves turns off the transparent decompression, which would also
+            // hide Content-Length and the number of bytes actually transferred.
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            if (eTag != null) {
+                urlConnection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            urlConnection.connect();
+            response.connectMillis = SystemClock.elapsedRealtime() - start;
+
+            response.responseCode = urlConnection.getResponseCode();
+            response.ttfbMillis = SystemClock.elapsedRealtime() - start - response.connectMillis;
+            if (response.isNotModified() || response.isError()) {
+                // No body worth reading; the status says it all.
+                return response;
+            }
+
+            response.eTag = urlConnection.getHeaderField("ETag");
+            response.lastModified = urlConnection.getHeaderField("Last-Modified");
+
+            CountingInputStream wire = new CountingInputStream(urlConnection.getInputStream());
+            response.gzipped = "gzip".equalsIgnoreCase(urlConnection.getContentEncoding());
+            inputStream = response.gzipped ? new GZIPInputStream(wire) : wire;
+
+            int contentLength = urlConnection.getContentLength();
+            if (contentLength > MAX_PAYLOAD_BYTES) {
+                throw new IOException("Forecast payload of " + contentLength
+                        + " bytes exceeds " + MAX_PAYLOAD_BYTES);
+            }
+            if (contentLength > 0) {
+                ensureCapacity(response.gzipped
+                        ? Math.min(contentLength * GZIP_EXPANSION_ESTIMATE, MAX_PAYLOAD_BYTES)
+                        : contentLength, 0, response);
+            }
+
+            readBody(inputStream, response);
+            response.wireBytes = wire.getCount();
+            response.downloadMillis = SystemClock.elapsedRealtime() - start
+                    - response.connectMillis - response.ttfbMillis;
+
+            if (response.length == 0) {
+                throw new EOFException("Empty forecast response");
+            }
+            return response;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (final IOException e) {
+                    // Nothing more to read from it anyway.
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    private void readBody(InputStream inputStream, Response response) throws IOException {
+        int length = 0;
+        while (true) {
+            if (length == mBuffer.length) {
+                if (length >= MAX_PAYLOAD_BYTES) {
+                    // Only fail if there really is more to come.
+                    if (inputStream.read() == -1) {
+                        break;
+                    }
+                    throw new IOException("Forecast payload exceeds " + MAX_PAYLOAD_BYTES);
+                }
+                ensureCapacity(Math.min(mBuffer.length * 2, MAX_PAYLOAD_BYTES), length, response);
+            }
+            int read = inputStream.read(mBuffer, length, mBuffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+            response.bytesCopied += read;
+        }
+        response.body = mBuffer;
+        response.length = length;
+    }
+
+    private void ensureCapacity(int capacity, int used, Response response) {
+        if (capacity <= mBuffer.length) {
+            return;
+        }
+        byte[] buffer = new byte[capacity];
+        System.arraycopy(mBuffer, 0, buffer, 0, used);
+        response.bytesCopied += used;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Counts the bytes read through it, i.e. the bytes that came over the wire.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The cache validators of the last forecast response stored for a location: the ETag and
+ * Last-Modified headers the server sent, and a hash of the body for servers that send neither.
+ * They are kept in their own preferences file, keyed by the location the request was made for.
+ */
+class ForecastValidators {
+
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_CONTENT_HASH = "content_hash:";
+
+    private final String mLocationKey;
+    private String mETag;
+    private String mLastModified;
+    private String mContentHash;
+
+    private ForecastValidators(String locationKey) {
+        mLocationKey = locationKey;
+    }
+
+    /**
+     * @param locationKey identifies the request, e.g. the location setting or a lat/lon pair.
+     */
+    static ForecastValidators load(Context context, String locationKey) {
+        SharedPreferences prefs = getPreferences(context);
+        ForecastValidators validators = new ForecastValidators(locationKey);
+        validators.mETag = prefs.getString(KEY_ETAG + locationKey, null);
+        validators.mLastModified = prefs.getString(KEY_LAST_MODIFIED + locationKey, null);
+        validators.mContentHash = prefs.getString(KEY_CONTENT_HASH + locationKey, null);
+        return validators;
+    }
+
+    /**
+     * Forgets everything stored for the location, so the next fetch is unconditional.
+     */
+    static void clear(Context context, String locationKey) {
+        getPreferences(context).edit()
+                .remove(KEY_ETAG + locationKey)
+                .remove(KEY_LAST_MODIFIED + locationKey)
+                .remove(KEY_CONTENT_HASH + locationKey)
+                .commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    String getLastModified() {
+        return mLastModified;
+    }
+
+    boolean hasContentHash(String contentHash) {
+        return mContentHash != null && mContentHash.equals(contentHash);
+    }
+
+    /**
+     * Remembers the validators of a response whose content has been stored.  This should not
+     * be called from the UI thread because it uses commit to write to the shared preferences.
+     */
+    void save(Context context, String eTag, String lastModified, String contentHash) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mContentHash = contentHash;
+
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        putOrRemove(editor, KEY_ETAG + mLocationKey, eTag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + mLocationKey, lastModified);
+        putOrRemove(editor, KEY_CONTENT_HASH + mLocationKey, contentHash);
+        editor.commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    /**
+     * @return a hex encoded hash of {@code length} bytes of {@code content}.
+     */
+    static String hashContent(byte[] content, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(content, 0, length);
+            byte[] hash = digest.digest();
+
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device provides MD5; without it we just never match.
+            return null;
+        }
+    }
+}
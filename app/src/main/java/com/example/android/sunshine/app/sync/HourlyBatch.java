@@ -0,0 +1,102 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.app.data.HourlySlots;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the slots of one 3-hour forecast response, grouped into days, ready to be handed to
+ * the provider as part of the sync's batch: one row per day rather than one per slot.
+ */
+class HourlyBatch {
+
+    private final String mLocationSetting;
+    // Slots by the start of their day.
+    private final TreeMap<Long, HourlySlots.Builder> mDays = new TreeMap<Long, HourlySlots.Builder>();
+    private int mSlotCount;
+
+    private String mCityName;
+    private double mCityLatitude;
+    private double mCityLongitude;
+
+    HourlyBatch(String locationSetting) {
+        mLocationSetting = locationSetting;
+    }
+
+    void onCity(String cityName, double latitude, double longitude) {
+        mCityName = cityName;
+        mCityLatitude = latitude;
+        mCityLongitude = longitude;
+    }
+
+    void onSlot(long timeMillis, double temperature, int weatherId, int humidity,
+                double windSpeed, double windDirection) {
+        long day = WeatherContract.normalizeDate(timeMillis);
+        HourlySlots.Builder slots = mDays.get(day);
+        if (slots == null) {
+            slots = new HourlySlots.Builder();
+            mDays.put(day, slots);
+        }
+        if (slots.size() == HourlySlots.MAX_SLOTS) {
+            // Not a 3-hour forecast; drop what doesn't fit rather than the whole day.
+            return;
+        }
+        slots.add((int) ((timeMillis - day) / DateUtils.HOUR_IN_MILLIS), temperature,
+                weatherId, humidity, windSpeed, windDirection);
+        mSlotCount++;
+    }
+
+    /**
+     * @return the number of days, i.e. of rows to store.
+     */
+    int size() {
+        return mDays.size();
+    }
+
+    int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * Adds an insert of each day, keyed to the location through a back reference.
+     *
+     * @param locationIndex the index of the operation resolving the location, or -1 to add
+     * one here.
+     */
+    void addOperationsTo(ArrayList<ContentProviderOperation> operations, int locationIndex) {
+        if (locationIndex < 0) {
+            locationIndex = operations.size();
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.LocationEntry.buildLocationUpsertUri())
+                    .withValue(WeatherContract.LocationEntry.COLUMN_CITY_NAME, mCityName)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                            mLocationSetting)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LAT, mCityLatitude)
+                    .withValue(WeatherContract.LocationEntry.COLUMN_COORD_LONG, mCityLongitude)
+                    .build());
+        }
+        for (Map.Entry<Long, HourlySlots.Builder> day : mDays.entrySet()) {
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.HourlyEntry.CONTENT_URI)
+                    .withValue(WeatherContract.HourlyEntry.COLUMN_DATE, day.getKey())
+                    .withValue(WeatherContract.HourlyEntry.COLUMN_SLOTS, day.getValue().build())
+                    .withValueBackReference(WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                            locationIndex)
+                    .build());
+        }
+    }
+
+    /**
+     * @return the date before which days are history and can be deleted.
+     */
+    static long getRetentionCutoff() {
+        return WeatherContract.normalizeDate(
+                System.currentTimeMillis() - DateUtils.DAY_IN_MILLIS);
+    }
+}
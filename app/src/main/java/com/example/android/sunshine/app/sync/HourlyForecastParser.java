@@ -0,0 +1,57 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+
+/**
+ * Reads an OpenWeatherMap 3-hour forecast response into an {@link HourlyBatch}.  The response
+ * is a few dozen short elements, so it is parsed with org.json, which is available on every
+ * API level.
+ */
+class HourlyForecastParser {
+
+    /**
+     * @return the "cod" value of the response, or HttpURLConnection.HTTP_OK if it has none.
+     */
+    int parse(byte[] body, int length, HourlyBatch batch) throws JSONException {
+        String json;
+        try {
+            json = new String(body, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new JSONException(e.getMessage());
+        }
+        JSONObject forecastJson = new JSONObject(json);
+
+        // do we have an error?
+        if (forecastJson.has(OwmJson.MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OwmJson.MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONObject cityJson = forecastJson.getJSONObject(OwmJson.CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OwmJson.COORD);
+        batch.onCity(cityJson.getString(OwmJson.CITY_NAME),
+                cityCoord.getDouble(OwmJson.LATITUDE), cityCoord.getDouble(OwmJson.LONGITUDE));
+
+        JSONArray slots = forecastJson.getJSONArray(OwmJson.LIST);
+        for (int i = 0; i < slots.length(); i++) {
+            JSONObject slot = slots.getJSONObject(i);
+            JSONObject main = slot.getJSONObject(OwmJson.MAIN_VALUES);
+            JSONObject weather = slot.getJSONArray(OwmJson.WEATHER).getJSONObject(0);
+            JSONObject wind = slot.getJSONObject(OwmJson.WIND);
+            batch.onSlot(slot.getLong(OwmJson.DATE_TIME) * 1000,
+                    main.getDouble(OwmJson.TEMPERATURE),
+                    weather.getInt(OwmJson.WEATHER_ID),
+                    main.getInt(OwmJson.HUMIDITY),
+                    wind.getDouble(OwmJson.WINDSPEED),
+                    wind.optDouble(OwmJson.WIND_DIRECTION, 0));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * The original parser: reads the complete response into a String and builds an org.json
+ * object hierarchy from it before reporting anything.  Kept so it can be compared against
+ * {@link StreamingForecastParser} on the same payloads.
+ */
+class JsonObjectForecastParser implements ForecastParser {
+
+    @Override
+    public int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        // Read the input stream into a String
+        StringBuffer buffer = new StringBuffer();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
+            // But it does make debugging a *lot* easier if you print out the completed
+            // buffer for debugging.
+            buffer.append(line + "\n");
+        }
+
+        if (buffer.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            throw new EOFException("Empty forecast response");
+        }
+        return parse(buffer.toString(), callback);
+    }
+
+    int parse(String forecastJsonStr, Callback callback) throws JSONException {
+        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
+        // into an Object hierarchy for us.
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OwmJson.MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OwmJson.MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OwmJson.LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OwmJson.CITY);
+        String cityName = cityJson.getString(OwmJson.CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OwmJson.COORD);
+        callback.onCity(cityName,
+                cityCoord.getDouble(OwmJson.LATITUDE),
+                cityCoord.getDouble(OwmJson.LONGITUDE));
+
+        ForecastDay day = new ForecastDay();
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            day.pressure = dayForecast.getDouble(OwmJson.PRESSURE);
+            day.humidity = dayForecast.getInt(OwmJson.HUMIDITY);
+            day.windSpeed = dayForecast.getDouble(OwmJson.WINDSPEED);
+            day.windDirection = dayForecast.getDouble(OwmJson.WIND_DIRECTION);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OwmJson.WEATHER).getJSONObject(0);
+            day.description = weatherObject.getString(OwmJson.DESCRIPTION);
+            day.weatherId = weatherObject.getInt(OwmJson.WEATHER_ID);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OwmJson.TEMPERATURE);
+            day.high = temperatureObject.getDouble(OwmJson.MAX);
+            day.low = temperatureObject.getDouble(OwmJson.MIN);
+
+            callback.onDay(i, day);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
@@ -0,0 +1,453 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches and parses the forecast of one location.  Nothing is written to the database here,
+ * so several fetches can run at once and have their results committed together.
+ *
+ * A response fetched within {@link ForecastResponseCache#FRESH_MILLIS} is served from the
+ * response cache instead of the network, and revalidated in the background if it is getting
+ * old; should it have changed, another sync is requested to store it.
+ */
+class LocationFetch implements Callable<LocationFetch> {
+    private static final String LOG_TAG = LocationFetch.class.getSimpleName();
+
+    static final int OUTCOME_FAILED = 0;
+    static final int OUTCOME_UNCHANGED = 1;
+    static final int OUTCOME_PARSED = 2;
+    // Not fetched because the endpoint's circuit breaker held it back.
+    static final int OUTCOME_DEFERRED = 3;
+
+    final ForecastRequest request;
+    private final Context mContext;
+    private final int mParserType;
+
+    int outcome = OUTCOME_FAILED;
+    @SunshineSyncAdapter.LocationStatus
+    int locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+    ForecastBatch batch;
+    // The 3-hour forecast, if it was fetched and has changed.
+    HourlyBatch hourlyBatch;
+    // When the endpoint may be tried again, if this fetch was deferred or failed.
+    long retryAt;
+    // Whether the response came from the response cache rather than the network.
+    boolean fromCache;
+    // The days asked for; fewer than ForecastRequest.NUM_DAYS only refreshes the near term.
+    int days = ForecastRequest.NUM_DAYS;
+
+    // What the validators of the 3-hour forecast are kept under, ahead of the request key.
+    private static final String HOURLY_KEY_PREFIX = "hourly:";
+    // And those of a near-term fetch, whose responses differ from the full forecast's.
+    private static final String SHORT_KEY_PREFIX = "short:";
+
+    // Revalidates cached responses off the sync thread, one at a time.
+    private static final ThreadPoolExecutor sRevalidator = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        sRevalidator.allowCoreThreadTimeOut(true);
+    }
+
+    private ForecastValidators mValidators;
+    private boolean mHaveStoredForecast;
+    private String mETag;
+    private String mLastModified;
+    private String mContentHash;
+    // Wall clock time the response was fetched at.
+    private long mFetchedAt;
+    private ForecastValidators mHourlyValidators;
+    private String mHourlyETag;
+    private String mHourlyLastModified;
+    private String mHourlyContentHash;
+
+    long wireBytes;
+    long bodyBytes;
+    long bytesCopied;
+    long connectMillis;
+    long ttfbMillis;
+    long downloadMillis;
+    long parseMillis;
+
+    LocationFetch(Context context, ForecastRequest request, int parserType) {
+        mContext = context;
+        this.request = request;
+        mParserType = parserType;
+    }
+
+    @Override
+    public LocationFetch call() {
+        // Only revalidate what we already have stored; if the rows are gone we need the
+        // full response even when the server's copy hasn't changed.
+        mHaveStoredForecast = hasForecastForToday(request.locationSetting);
+        long now = System.currentTimeMillis();
+        days = ForecastHorizon.chooseDays(mContext, request.getKey(), mHaveStoredForecast, now);
+
+        ForecastResponseCache cache = ForecastResponseCache.get(mContext);
+        ForecastResponseCache.Entry cached = getFreshCached(cache, now);
+        mValidators = ForecastValidators.load(mContext, getValidatorKey());
+        if (cached != null && serveFromCache(cached)) {
+            cache.recordHit(cached);
+            if (cached.needsRevalidation(now)) {
+                revalidate(cached);
+            }
+            return this;
+        }
+        cache.recordMiss();
+
+        EndpointCircuitBreaker breaker =
+                EndpointCircuitBreaker.forEndpoint(mContext, request.getEndpoint());
+        if (!breaker.allowRequest(System.currentTimeMillis())) {
+            // Leave the endpoint alone; the forecast already stored is what's shown meanwhile.
+            Log.d(LOG_TAG, "Not fetching " + request.locationSetting + ", "
+                    + request.getEndpoint() + " is backing off");
+            outcome = OUTCOME_DEFERRED;
+            locationStatus = SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN;
+            retryAt = breaker.getRetryAt();
+            return this;
+        }
+
+        ForecastTransport transport = ForecastTransport.obtain();
+        try {
+            fetch(transport);
+            if (outcome != OUTCOME_FAILED) {
+                fetchHourly(transport);
+            }
+        } catch (EOFException e) {
+            // Stream was empty or ended early.  There's nothing usable to store.
+            Log.e(LOG_TAG, "Incomplete response for " + request.locationSetting, e);
+            fail(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching " + request.locationSetting, e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            fail(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            fail(SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID);
+        } finally {
+            transport.recycle();
+            recordResult(breaker);
+        }
+        return this;
+    }
+
+    /**
+     * Tells the breaker whether the endpoint answered properly.  An unknown location is the
+     * request's fault, not the endpoint's.
+     */
+    private void recordResult(EndpointCircuitBreaker breaker) {
+        long now = System.currentTimeMillis();
+        if (outcome == OUTCOME_FAILED
+                && (locationStatus == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                || locationStatus == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID)) {
+            breaker.onFailure(now);
+            retryAt = breaker.getRetryAt();
+        } else {
+            breaker.onSuccess(now);
+        }
+        breaker.save(mContext);
+    }
+
+    /**
+     * @return a fresh cached response for the days to fetch or, failing that, a fresh full
+     * forecast, which covers the near term as well; null if there is neither.
+     */
+    private ForecastResponseCache.Entry getFreshCached(ForecastResponseCache cache, long now) {
+        ForecastResponseCache.Entry cached = cache.get(request.getCacheKey(days), now);
+        if ((cached == null || !cached.isFresh(now)) && days != ForecastRequest.NUM_DAYS) {
+            cached = cache.get(request.getCacheKey(ForecastRequest.NUM_DAYS), now);
+            if (cached != null && cached.isFresh(now)) {
+                days = ForecastRequest.NUM_DAYS;
+            }
+        }
+        return cached != null && cached.isFresh(now) ? cached : null;
+    }
+
+    private String getValidatorKey() {
+        return days == ForecastRequest.NUM_DAYS
+                ? request.getKey()
+                : SHORT_KEY_PREFIX + request.getKey();
+    }
+
+    private void fetch(ForecastTransport transport) throws IOException, JSONException {
+        // Send the request to OpenWeatherMap and read the response body
+        mFetchedAt = System.currentTimeMillis();
+        ForecastTransport.Response response = transport.fetch(request.buildUrl(days),
+                mHaveStoredForecast ? mValidators.getETag() : null,
+                mHaveStoredForecast ? mValidators.getLastModified() : null);
+        connectMillis = response.connectMillis;
+        ttfbMillis = response.ttfbMillis;
+        if (response.isNotModified()) {
+            ForecastResponseCache.get(mContext).touch(request.getCacheKey(days),
+                    System.currentTimeMillis());
+            unchanged("304 Not Modified");
+            return;
+        }
+        if (response.isError()) {
+            Log.e(LOG_TAG, "HTTP " + response.responseCode + " for " + request.locationSetting);
+            fail(response.isEndpointFailure()
+                    ? SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                    : SunshineSyncAdapter.LOCATION_STATUS_INVALID);
+            return;
+        }
+        wireBytes = response.wireBytes;
+        bodyBytes = response.length;
+        bytesCopied = response.bytesCopied;
+        downloadMillis = response.downloadMillis;
+        mETag = response.eTag;
+        mLastModified = response.lastModified;
+
+        process(response.body, response.length);
+        Log.d(LOG_TAG, "Forecast fetched for " + request.locationSetting + ": " + wireBytes
+                + " bytes on the wire" + (response.gzipped ? " (gzip)" : "") + ", " + bodyBytes
+                + " bytes of JSON, " + bytesCopied + " bytes copied; connect " + connectMillis
+                + " ms, first byte " + ttfbMillis + " ms, download " + downloadMillis
+                + " ms, parse " + parseMillis + " ms, time to parsed "
+                + (connectMillis + ttfbMillis + downloadMillis + parseMillis) + " ms");
+
+        if (outcome != OUTCOME_FAILED) {
+            ForecastResponseCache.get(mContext).put(request.getCacheKey(days),
+                    System.currentTimeMillis(), wireBytes, mETag, mLastModified,
+                    response.body, response.length);
+        }
+    }
+
+    /**
+     * Fetches the 3-hour forecast after the daily one.  It is extra detail, so failing to get
+     * it is logged and otherwise ignored, and it doesn't count against the endpoint.
+     */
+    private void fetchHourly(ForecastTransport transport) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            URL url = request.buildHourlyUrl();
+            if (url == null) {
+                return;
+            }
+            mHourlyValidators = ForecastValidators.load(mContext,
+                    HOURLY_KEY_PREFIX + request.getKey());
+            boolean haveStoredHourly = mHaveStoredForecast && hasHourlyForToday();
+            ForecastTransport.Response response = transport.fetch(url,
+                    haveStoredHourly ? mHourlyValidators.getETag() : null,
+                    haveStoredHourly ? mHourlyValidators.getLastModified() : null);
+            if (response.isNotModified() || response.isError()) {
+                return;
+            }
+            wireBytes += response.wireBytes;
+            mHourlyContentHash = ForecastValidators.hashContent(response.body, response.length);
+            if (haveStoredHourly && mHourlyValidators.hasContentHash(mHourlyContentHash)) {
+                return;
+            }
+            HourlyBatch parsed = new HourlyBatch(request.locationSetting);
+            if (new HourlyForecastParser().parse(response.body, response.length, parsed)
+                    == HttpURLConnection.HTTP_OK && parsed.size() > 0) {
+                hourlyBatch = parsed;
+                mHourlyETag = response.eTag;
+                mHourlyLastModified = response.lastModified;
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error fetching the 3-hour forecast of " + request.locationSetting, e);
+        } finally {
+            Log.d(LOG_TAG, "3-hour forecast of " + request.locationSetting + ": "
+                    + (hourlyBatch != null ? hourlyBatch.getSlotCount() + " slots in "
+                    + hourlyBatch.size() + " days" : "nothing new") + ", "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    /**
+     * Serves the fetch from a cached response, unless it can't be parsed.
+     *
+     * @return true if the fetch was served.
+     */
+    private boolean serveFromCache(ForecastResponseCache.Entry cached) {
+        mFetchedAt = cached.fetchedAt;
+        mETag = cached.eTag;
+        mLastModified = cached.lastModified;
+        try {
+            process(cached.body, cached.body.length);
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Unusable cached response for " + request.locationSetting, e);
+            return false;
+        }
+        if (outcome == OUTCOME_FAILED) {
+            return false;
+        }
+        fromCache = true;
+        Log.d(LOG_TAG, "Forecast for " + request.locationSetting + " served from the cache, "
+                + (System.currentTimeMillis() - cached.fetchedAt) / 1000 + " s old, "
+                + cached.wireBytes + " bytes not fetched");
+        return true;
+    }
+
+    /**
+     * Parses a response body, unless it is the one already stored.
+     */
+    private void process(byte[] body, int length) throws IOException, JSONException {
+        // Comparing the hash of the body with the stored one catches unchanged forecasts
+        // from servers that send no validators.
+        mContentHash = ForecastValidators.hashContent(body, length);
+        if (mHaveStoredForecast && mValidators.hasContentHash(mContentHash)) {
+            unchanged("identical content");
+            return;
+        }
+
+        long parseStart = SystemClock.elapsedRealtime();
+        ForecastBatch parsed = new ForecastBatch(request.locationSetting);
+        int code = SunshineSyncAdapter.createForecastParser(mParserType)
+                .parse(new ByteArrayInputStream(body, 0, length), parsed);
+        parseMillis = SystemClock.elapsedRealtime() - parseStart;
+
+        // do we have an error?
+        switch (code) {
+            case HttpURLConnection.HTTP_OK:
+                batch = parsed;
+                outcome = OUTCOME_PARSED;
+                locationStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                fail(SunshineSyncAdapter.LOCATION_STATUS_INVALID);
+                break;
+            default:
+                fail(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+                break;
+        }
+    }
+
+    /**
+     * Asks the server, in the background, whether the cached response is still current.  If
+     * it isn't, the new response replaces it and a sync is requested, which then finds it in
+     * the cache.
+     */
+    private void revalidate(final ForecastResponseCache.Entry cached) {
+        final int cachedDays = days;
+        sRevalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                EndpointCircuitBreaker breaker =
+                        EndpointCircuitBreaker.forEndpoint(mContext, request.getEndpoint());
+                if (!breaker.allowRequest(System.currentTimeMillis())) {
+                    return;
+                }
+                ForecastResponseCache cache = ForecastResponseCache.get(mContext);
+                ForecastTransport transport = ForecastTransport.obtain();
+                boolean failed = true;
+                try {
+                    ForecastTransport.Response response = transport.fetch(
+                            request.buildUrl(cachedDays), cached.eTag, cached.lastModified);
+                    // Counted the way a sync's own fetch is.
+                    failed = response.isEndpointFailure();
+                    if (response.isNotModified()) {
+                        cache.touch(cached.key, System.currentTimeMillis());
+                    } else if (!response.isError()) {
+                        cache.put(cached.key, System.currentTimeMillis(), response.wireBytes,
+                                response.eTag, response.lastModified, response.body,
+                                response.length);
+                        String hash = ForecastValidators.hashContent(response.body,
+                                response.length);
+                        if (hash == null || !hash.equals(ForecastValidators.hashContent(
+                                cached.body, cached.body.length))) {
+                            Log.d(LOG_TAG, "Cached forecast for " + request.locationSetting
+                                    + " has changed, syncing");
+                            SunshineSyncAdapter.syncImmediately(mContext);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error revalidating " + request.locationSetting, e);
+                } finally {
+                    transport.recycle();
+                    long now = System.currentTimeMillis();
+                    if (failed) {
+                        breaker.onFailure(now);
+                    } else {
+                        breaker.onSuccess(now);
+                    }
+                    breaker.save(mContext);
+                }
+            }
+        });
+    }
+
+    private void unchanged(String reason) {
+        Log.d(LOG_TAG, "Forecast for " + request.locationSetting + " unchanged (" + reason + ")");
+        outcome = OUTCOME_UNCHANGED;
+        locationStatus = SunshineSyncAdapter.LOCATION_STATUS_OK;
+    }
+
+    private void fail(@SunshineSyncAdapter.LocationStatus int status) {
+        outcome = OUTCOME_FAILED;
+        locationStatus = status;
+        batch = null;
+    }
+
+    /**
+     * Remembers the validators of the response, and whether it was the full forecast, once its
+     * forecast has been stored.
+     */
+    void saveValidators() {
+        if (outcome == OUTCOME_PARSED) {
+            mValidators.save(mContext, mETag, mLastModified, mContentHash);
+        }
+        if (outcome != OUTCOME_FAILED && outcome != OUTCOME_DEFERRED
+                && days == ForecastRequest.NUM_DAYS) {
+            ForecastHorizon.onFullForecastStored(mContext, request.getKey(), mFetchedAt);
+        }
+        if (hourlyBatch != null) {
+            mHourlyValidators.save(mContext, mHourlyETag, mHourlyLastModified,
+                    mHourlyContentHash);
+        }
+    }
+
+    /**
+     * @return true if today's 3-hour forecast for the location is in the database.
+     */
+    private boolean hasHourlyForToday() {
+        long now = System.currentTimeMillis();
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocationWithDateRange(
+                        request.locationSetting, now, now),
+                new String[]{WeatherContract.HourlyEntry.TABLE_NAME + "." +
+                        WeatherContract.HourlyEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
+
+    /**
+     * @return true if today's forecast for the location is in the database.
+     */
+    private boolean hasForecastForToday(String locationSetting) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                        System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
+}
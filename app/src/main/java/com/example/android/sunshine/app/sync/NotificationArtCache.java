@@ -0,0 +1,181 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the large icons of the weather notification, keyed by art URL and size, so posting
+ * the notification doesn't wait on the art pack host.  Loads are started on the main thread,
+ * where Glide wants them, and only waited on for a bounded time; if the artwork isn't there by
+ * then the bundled art resource is used, and the load carries on to fill the cache for next
+ * time.
+ */
+class NotificationArtCache {
+    private static final String LOG_TAG = NotificationArtCache.class.getSimpleName();
+
+    // A large icon is at most a few hundred kilobytes; this holds the handful of conditions
+    // a day's notifications can show.
+    private static final int MAX_CACHE_BYTES = 1024 * 1024;
+
+    // How long posting the notification waits for artwork that isn't cached yet.
+    static final long ART_WAIT_MILLIS = 500;
+
+    private static final LruCache<String, Bitmap> sCache =
+            new LruCache<String, Bitmap>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+            };
+
+    // Loads in flight, so a prewarm and a notification never fetch the same artwork twice.
+    private static final HashMap<String, CountDownLatch> sPending =
+            new HashMap<String, CountDownLatch>();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private NotificationArtCache() {
+    }
+
+    /**
+     * Starts loading the notification artwork for the condition, without waiting for it.
+     */
+    static void prewarm(Context context, int weatherId) {
+        Resources resources = context.getResources();
+        String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+        int width = getLargeIconWidth(resources);
+        int height = getLargeIconHeight(resources);
+        if (artUrl != null && sCache.get(getKey(artUrl, width, height)) == null) {
+            load(context, artUrl, Utility.getArtResourceForWeatherCondition(weatherId),
+                    width, height);
+        }
+    }
+
+    /**
+     * @return the notification artwork for the condition, or the bundled art resource if it
+     * can't be had within {@link #ART_WAIT_MILLIS}.
+     */
+    static Bitmap get(Context context, int weatherId) {
+        Resources resources = context.getResources();
+        String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+        int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+        int width = getLargeIconWidth(resources);
+        int height = getLargeIconHeight(resources);
+
+        if (artUrl != null) {
+            String key = getKey(artUrl, width, height);
+            Bitmap art = sCache.get(key);
+            if (art != null) {
+                return art;
+            }
+            try {
+                if (load(context, artUrl, artResourceId, width, height)
+                        .await(ART_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    art = sCache.get(key);
+                } else {
+                    Log.d(LOG_TAG, "No artwork from " + artUrl + " within " + ART_WAIT_MILLIS
+                            + " ms, using the bundled one");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (art != null) {
+                return art;
+            }
+        }
+        return BitmapFactory.decodeResource(resources, artResourceId);
+    }
+
+    private static String getKey(String artUrl, int width, int height) {
+        return width + "x" + height + ":" + artUrl;
+    }
+
+    private static CountDownLatch load(Context context, final String artUrl,
+                                       final int artResourceId, final int width,
+                                       final int height) {
+        final String key = getKey(artUrl, width, height);
+        final CountDownLatch loaded;
+        synchronized (sPending) {
+            CountDownLatch pending = sPending.get(key);
+            if (pending != null) {
+                return pending;
+            }
+            loaded = new CountDownLatch(1);
+            sPending.put(key, loaded);
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Glide.with(appContext)
+                        .load(artUrl)
+                        .asBitmap()
+                        .error(artResourceId)
+                        .fitCenter()
+                        .into(new SimpleTarget<Bitmap>(width, height) {
+                            @Override
+                            public void onResourceReady(Bitmap resource,
+                                                        GlideAnimation<? super Bitmap> animation) {
+                                // Glide may hand its bitmap to other loads later on, so keep
+                                // a copy of our own.
+                                Bitmap.Config config = resource.getConfig() != null
+                                        ? resource.getConfig() : Bitmap.Config.ARGB_8888;
+                                sCache.put(key, resource.copy(config, false));
+                                finish(key, loaded);
+                            }
+
+                            @Override
+                            public void onLoadFailed(Exception e, Drawable errorDrawable) {
+                                // Nothing is cached, so the next notification tries again.
+                                Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                                finish(key, loaded);
+                            }
+                        });
+            }
+        });
+        return loaded;
+    }
+
+    private static void finish(String key, CountDownLatch loaded) {
+        synchronized (sPending) {
+            sPending.remove(key);
+        }
+        loaded.countDown();
+    }
+
+    // On Honeycomb and higher devices, we can retrieve the size of the large icon
+    // Prior to that, we use a fixed size
+    @SuppressLint("InlinedApi")
+    private static int getLargeIconWidth(Resources resources) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+    }
+
+    @SuppressLint("InlinedApi")
+    private static int getLargeIconHeight(Resources resources) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Token-level parser that walks the response with a {@link JsonReader} and reports each
+ * element of "list" as soon as it has been read.  Neither the response text nor an object
+ * tree is ever held in memory, and a single {@link ForecastDay} is reused for every day.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class StreamingForecastParser implements ForecastParser {
+
+    // Bits for the fields a day must contain, mirroring what the JSONObject parser requires.
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WINDSPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_WEATHER = 1 << 4;
+    private static final int FIELD_TEMPERATURE = 1 << 5;
+    private static final int ALL_DAY_FIELDS = (1 << 6) - 1;
+
+    private final ForecastDay mDay = new ForecastDay();
+
+    @Override
+    public int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            boolean sawCity = false;
+            boolean sawList = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OwmJson.MESSAGE_CODE.equals(name)) {
+                    int code = reader.nextInt();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        return code;
+                    }
+                } else if (OwmJson.CITY.equals(name)) {
+                    readCity(reader, callback);
+                    sawCity = true;
+                } else if (OwmJson.LIST.equals(name)) {
+                    readList(reader, callback);
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (!sawList) {
+                throw new JSONException("No value for " + OwmJson.LIST);
+            }
+            if (!sawCity) {
+                throw new JSONException("No value for " + OwmJson.CITY);
+            }
+            return HttpURLConnection.HTTP_OK;
+        } catch (MalformedJsonException e) {
+            // Broken JSON is an invalid response, not a network failure.
+            throw new JSONException(e.getMessage());
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected token types this way.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private void readCity(JsonReader reader, Callback callback) throws IOException, JSONException {
+        String cityName = null;
+        double latitude = 0;
+        double longitude = 0;
+        boolean sawCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OwmJson.CITY_NAME.equals(name) && reader.peek() != JsonToken.NULL) {
+                cityName = reader.nextString();
+            } else if (OwmJson.COORD.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OwmJson.LATITUDE.equals(coordName)) {
+                        latitude = reader.nextDouble();
+                    } else if (OwmJson.LONGITUDE.equals(coordName)) {
+                        longitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                sawCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null) {
+            throw new JSONException("No value for " + OwmJson.CITY_NAME);
+        }
+        if (!sawCoord) {
+            throw new JSONException("No value for " + OwmJson.COORD);
+        }
+        callback.onCity(cityName, latitude, longitude);
+    }
+
+    private void readList(JsonReader reader, Callback callback) throws IOException, JSONException {
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            readDay(reader, mDay);
+            callback.onDay(i, mDay);
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader, ForecastDay day) throws IOException, JSONException {
+        day.reset();
+        int fields = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OwmJson.PRESSURE.equals(name)) {
+                day.pressure = reader.nextDouble();
+                fields |= FIELD_PRESSURE;
+            } else if (OwmJson.HUMIDITY.equals(name)) {
+                day.humidity = (int) reader.nextDouble();
+                fields |= FIELD_HUMIDITY;
+            } else if (OwmJson.WINDSPEED.equals(name)) {
+                day.windSpeed = reader.nextDouble();
+                fields |= FIELD_WINDSPEED;
+            } else if (OwmJson.WIND_DIRECTION.equals(name)) {
+                day.windDirection = reader.nextDouble();
+                fields |= FIELD_WIND_DIRECTION;
+            } else if (OwmJson.WEATHER.equals(name)) {
+                readWeather(reader, day);
+                fields |= FIELD_WEATHER;
+            } else if (OwmJson.TEMPERATURE.equals(name)) {
+                readTemperature(reader, day);
+                fields |= FIELD_TEMPERATURE;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fields != ALL_DAY_FIELDS) {
+            throw new JSONException("Incomplete forecast day, fields present: "
+                    + Integer.toBinaryString(fields));
+        }
+    }
+
+    private void readWeather(JsonReader reader, ForecastDay day) throws IOException, JSONException {
+        // Description is in a child array called "weather", which is 1 element long.
+        // That element also contains a weather code.
+        boolean sawId = false;
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OwmJson.DESCRIPTION.equals(name) && reader.peek() != JsonToken.NULL) {
+                    day.description = reader.nextString();
+                } else if (OwmJson.WEATHER_ID.equals(name)) {
+                    day.weatherId = (int) reader.nextDouble();
+                    sawId = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+
+        if (day.description == null || !sawId) {
+            throw new JSONException("Incomplete " + OwmJson.WEATHER + " element");
+        }
+    }
+
+    private void readTemperature(JsonReader reader, ForecastDay day) throws IOException, JSONException {
+        // Temperatures are in a child object called "temp".  Try not to name variables
+        // "temp" when working with temperature.  It confuses everybody.
+        boolean sawMax = false;
+        boolean sawMin = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OwmJson.MAX.equals(name)) {
+                day.high = reader.nextDouble();
+                sawMax = true;
+            } else if (OwmJson.MIN.equals(name)) {
+                day.low = reader.nextDouble();
+                sawMin = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!sawMax || !sawMin) {
+            throw new JSONException("Incomplete " + OwmJson.TEMPERATURE + " element");
+        }
+    }
+}
@@ -2,26 +2,29 @@ package com.example.android.sunshine.app.sync;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
@@ -30,40 +33,28 @@ import android.text.format.Time;
 import android.util.Log;
 import android.widget.RemoteViews;
 
-import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
 import com.example.android.sunshine.app.WeatherInformation;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import com.google.android.gms.wearable.DataMap;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.Vector;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
-        GoogleApiClient.OnConnectionFailedListener {
+public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public final String WEATHER_DETAILS_PATH  = "/weatherDetails";
     private final String MAX_TEMP_KEY = "maxTemp";
@@ -72,14 +63,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather until SyncScheduler has learned a better one,
+    // in seconds.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
-    GoogleApiClient googleApiClient;
-
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
@@ -104,315 +94,519 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
-    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
-        super(context, autoInitialize);
-        if(googleApiClient == null){
-            googleApiClient = new GoogleApiClient.Builder(context)
-                    .addOnConnectionFailedListener(this)
-                    .addApi(Wearable.API).build();
-        }
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PARSER_STREAMING, PARSER_JSON_OBJECT})
+    public @interface ParserType {}
+
+    public static final int PARSER_STREAMING = 0;
+    public static final int PARSER_JSON_OBJECT = 1;
+
+    private static volatile int sParserType = PARSER_STREAMING;
+
+    // Bounded pool for fetching tracked locations concurrently; idle threads don't linger
+    // between syncs.
+    private static final int MAX_PARALLEL_FETCHES = 4;
+    private static final ThreadPoolExecutor sFetchExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_FETCHES, MAX_PARALLEL_FETCHES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    static {
+        sFetchExecutor.allowCoreThreadTimeOut(true);
     }
 
-    @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
-        Log.e(LOG_TAG, "Could not connect to google api client : " + connectionResult.getErrorMessage());
-        Log.e(LOG_TAG, "Resolution : " + connectionResult.getResolution());
+    // Prefetches after syncs, off the sync thread and one at a time; a prefetch asked for while
+    // one is waiting already is dropped, as the waiting one will fetch the same.
+    private static final ThreadPoolExecutor sPrefetchExecutor = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(1),
+            new ThreadPoolExecutor.DiscardPolicy());
+    static {
+        sPrefetchExecutor.allowCoreThreadTimeOut(true);
     }
 
-    @Override
-    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
+    // Requests to sync immediately that come within this window of each other are collapsed
+    // into a single sync.
+    static final long SYNC_COALESCE_WINDOW_MILLIS = 1000;
 
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are sync ing based on a new Place Picker API result.
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+    /**
+     * What sync requests are handed to: the sync manager, or a stand-in for it.
+     */
+    interface SyncRequester {
+        void requestSync(Context context, Bundle extras);
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        void cancelSync(Context context);
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    private static final SyncRequester SYNC_MANAGER = new SyncRequester() {
+        @Override
+        public void requestSync(Context context, Bundle extras) {
+            ContentResolver.requestSync(getSyncAccount(context),
+                    context.getString(R.string.content_authority), extras);
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        @Override
+        public void cancelSync(Context context) {
+            ContentResolver.cancelSync(getSyncAccount(context),
+                    context.getString(R.string.content_authority));
+        }
+    };
+    private static volatile SyncRequester sSyncRequester = SYNC_MANAGER;
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
-            }
+    private static final Handler sSyncRequestHandler = new Handler(Looper.getMainLooper());
+    private static final Object sSyncRequestLock = new Object();
+    private static Runnable sPendingSyncRequest;
+    private static int sCoalescedSyncRequests;
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+    // The locations the sync in flight fetches, the preferred one first, while it fetches them;
+    // null otherwise.
+    private static volatile List<String> sSyncingLocations;
+    private static volatile Account sSyncAccount;
 
-            URL url = new URL(builtUri.toString());
+    private volatile boolean mSyncCanceled;
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+    // Syncs of one adapter don't overlap, so the one in flight can keep its trace here.
+    private SyncTrace mTrace;
+    private static volatile SyncTrace sLastTrace;
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+    public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        super(context, autoInitialize);
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        Log.d(LOG_TAG, "Starting sync");
+        long syncStart = SystemClock.elapsedRealtime();
+        mSyncCanceled = false;
+        mTrace = new SyncTrace();
+        mTrace.startedAt = System.currentTimeMillis();
+        List<ForecastRequest> prefetchAfter = null;
+        try {
+            List<ForecastRequest> requests = ForecastRequest.forTrackedLocations(getContext());
+            sSyncingLocations = getLocationSettings(requests);
+            ForecastPrefetcher.onPreferredLocation(getContext(),
+                    requests.get(0).locationSetting, mTrace.startedAt);
+            mTrace.locations = requests.size();
+            List<LocationFetch> fetches = fetchAll(requests);
+            // From here on a request to sync has to be honoured: what this sync stores was
+            // fetched before it came in.
+            sSyncingLocations = null;
+            mTrace.fetchMillis = SystemClock.elapsedRealtime() - syncStart;
+            for (LocationFetch fetch : fetches) {
+                mTrace.addFetch(fetch);
+            }
+            delayWhileBackingOff(fetches, syncResult);
+            if (mSyncCanceled) {
+                // A newer sync is on its way; don't store what it is about to replace.
+                mTrace.outcome = WeatherContract.SyncTraceEntry.OUTCOME_CANCELED;
                 return;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            SyncSignals signals = new SyncSignals();
+            boolean storedNew = commitForecasts(fetches, signals);
+            mTrace.outcome = signals.failed ? WeatherContract.SyncTraceEntry.OUTCOME_FAILED
+                    : !storedNew ? WeatherContract.SyncTraceEntry.OUTCOME_NO_OP
+                    : WeatherContract.SyncTraceEntry.OUTCOME_OK;
+            // Only the periodic syncs are what the scheduler's period costs.
+            SyncScheduler.onSyncFinished(getContext(), signals, mTrace.wireBytes,
+                    !extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+            if (!signals.failed) {
+                prefetchAfter = requests;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+        } finally {
+            sSyncingLocations = null;
+            mTrace.totalMillis = SystemClock.elapsedRealtime() - syncStart;
+            Log.d(LOG_TAG, "Synced " + mTrace);
+            sLastTrace = mTrace;
+            saveTrace(mTrace);
+        }
+        // Once the sync is over and off its thread, so it neither counts in its trace nor
+        // holds back the syncs queued behind it, and not at all if a newer sync replaced it.
+        if (prefetchAfter != null && !mSyncCanceled) {
+            final List<ForecastRequest> synced = prefetchAfter;
+            sPrefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    prefetch(synced);
                 }
-            }
+            });
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Adds the trace to the ones the provider keeps, for dumpsys and the sync_trace URI.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    private void saveTrace(SyncTrace trace) {
+        try {
+            getContext().getContentResolver().insert(WeatherContract.SyncTraceEntry.CONTENT_URI,
+                    trace.toContentValues());
+        } catch (RuntimeException e) {
+            // Losing a trace must not fail the sync it describes.
+            Log.e(LOG_TAG, "Error saving the sync trace", e);
+        }
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * @return the trace of the last sync of the process, or null if none ran.
+     */
+    static SyncTrace getLastSyncTrace() {
+        return sLastTrace;
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    /**
+     * If no location could be fetched, asks the sync manager to hold further syncs back until
+     * the endpoints' back-off is over, rather than retrying into an outage.
+     */
+    private void delayWhileBackingOff(List<LocationFetch> fetches, SyncResult syncResult) {
+        long retryAt = Long.MAX_VALUE;
+        for (LocationFetch fetch : fetches) {
+            if (fetch.outcome != LocationFetch.OUTCOME_FAILED
+                    && fetch.outcome != LocationFetch.OUTCOME_DEFERRED) {
+                return;
+            }
+            if (fetch.retryAt > 0) {
+                retryAt = Math.min(retryAt, fetch.retryAt);
+            }
+        }
+        if (retryAt != Long.MAX_VALUE && retryAt > System.currentTimeMillis()) {
+            // In seconds since the epoch.
+            syncResult.delayUntil = retryAt / 1000;
+            Log.d(LOG_TAG, "Delaying syncs for "
+                    + (retryAt - System.currentTimeMillis()) / 1000 + " s");
+        }
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Called when the sync in flight has been superseded by one for another location.
+     */
+    @Override
+    public void onSyncCanceled() {
+        mSyncCanceled = true;
+        // Interrupts the sync thread, which stops waiting on the fetches.
+        super.onSyncCanceled();
+    }
 
-        final String OWM_MESSAGE_CODE = "cod";
+    /**
+     * Fetch and parse the forecast of every location, concurrently when there is more than
+     * one, so the sync takes about as long as the slowest fetch.
+     */
+    private List<LocationFetch> fetchAll(List<ForecastRequest> requests) {
+        List<LocationFetch> fetches = new ArrayList<LocationFetch>(requests.size());
+        for (ForecastRequest request : requests) {
+            fetches.add(new LocationFetch(getContext(), request, sParserType));
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+        if (fetches.size() == 1) {
+            // No point in handing a single fetch to another thread.
+            fetches.get(0).call();
+            return fetches;
+        }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        List<Future<LocationFetch>> futures = new ArrayList<Future<LocationFetch>>(fetches.size());
+        for (LocationFetch fetch : fetches) {
+            futures.add(sFetchExecutor.submit(fetch));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                // The fetch keeps its failed outcome.
+                Log.e(LOG_TAG, "Error fetching " + fetches.get(i).request.locationSetting, e);
+            } catch (InterruptedException e) {
+                // The sync is being torn down; don't leave fetches running behind it.
+                for (Future<LocationFetch> future : futures) {
+                    future.cancel(true);
                 }
+                Thread.currentThread().interrupt();
+                break;
             }
+        }
+        return fetches;
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+    /**
+     * Store every parsed forecast in a single batch, so all locations are committed in one
+     * provider transaction, then let everything showing the preferred location know.
+     * @param signals receives how the sync went, for the scheduler.
+     * @return true if something new was stored for the preferred location.
+     */
+    private boolean commitForecasts(List<LocationFetch> fetches, SyncSignals signals) {
+        Context context = getContext();
+        LocationFetch preferred = null;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        int parsedRows = 0;
+        int hourlyDays = 0;
+        long retentionCutoff = 0;
+        boolean anyFailed = false;
+
+        for (LocationFetch fetch : fetches) {
+            if (fetch.request.isPreferred) {
+                preferred = fetch;
+            }
+            if (fetch.outcome == LocationFetch.OUTCOME_FAILED
+                    || fetch.outcome == LocationFetch.OUTCOME_DEFERRED) {
+                anyFailed = true;
+            }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+            int locationIndex = -1;
+            // A near-term fetch only replaces its own days; the later ones stay as the last
+            // full fetch stored them.
+            if (fetch.outcome == LocationFetch.OUTCOME_PARSED) {
+                locationIndex = fetch.batch.addOperationsTo(operations);
+                parsedRows += fetch.batch.size();
+                retentionCutoff = fetch.batch.getRetentionCutoff();
+            }
+            if (fetch.hourlyBatch != null) {
+                // Shares the location operation of the daily forecast, if there is one.
+                fetch.hourlyBatch.addOperationsTo(operations, locationIndex);
+                hourlyDays += fetch.hourlyBatch.size();
+            }
+        }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+        if ( !operations.isEmpty() ) {
+            // delete old data so we don't build up an endless history
+            if (parsedRows > 0) {
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                        .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                                new String[]{Long.toString(retentionCutoff)})
+                        .build());
+            }
+            if (hourlyDays > 0) {
+                operations.add(ContentProviderOperation
+                        .newDelete(WeatherContract.HourlyEntry.CONTENT_URI)
+                        .withSelection(WeatherContract.HourlyEntry.COLUMN_DATE + " <= ?",
+                                new String[]{Long.toString(HourlyBatch.getRetentionCutoff())})
+                        .build());
+            }
 
-                double high;
-                double low;
-                WeatherInformation information;
+            // Locations, weather rows and the deletion are committed in one transaction, so
+            // observers see either all of this sync or none of it, and are notified once.
+            // Rows identical to the stored ones are skipped by the provider.
+            long commitStart = SystemClock.elapsedRealtime();
+            try {
+                context.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                        operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error storing the forecasts", e);
+                signals.failed = true;
+                return false;
+            }
+            mTrace.commitMillis = SystemClock.elapsedRealtime() - commitStart;
+            mTrace.addBatch(WeatherProvider.getLastBatchTimings());
+            mTrace.parsedRows = parsedRows;
+
+            // Only now that the rows are stored, so a snapshot is never ahead of the database.
+            long now = System.currentTimeMillis();
+            for (LocationFetch fetch : fetches) {
+                if (fetch.outcome == LocationFetch.OUTCOME_PARSED && fetch.batch.size() > 0) {
+                    fetch.batch.writeSnapshot(context, now,
+                            fetch.days < ForecastRequest.NUM_DAYS);
+                }
+            }
+        }
+        for (LocationFetch fetch : fetches) {
+            fetch.saveValidators();
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + parsedRows + " Parsed");
 
-                String description;
-                int weatherId;
+        boolean storedNew = false;
+        if (preferred != null) {
+            if (preferred.outcome != LocationFetch.OUTCOME_FAILED
+                    && preferred.outcome != LocationFetch.OUTCOME_DEFERRED) {
+                storedNew = fanOut(preferred, signals);
+            }
+            setLocationStatus(context, preferred.locationStatus);
+        }
+        signals.failed = preferred == null || preferred.outcome == LocationFetch.OUTCOME_FAILED
+                || preferred.outcome == LocationFetch.OUTCOME_DEFERRED;
+        signals.noOp = !signals.failed && signals.changedDays == 0;
+
+        if (parsedRows > 0) {
+            setLastSyncResult(context, false);
+        } else if (!anyFailed) {
+            // The server had nothing newer than what we already stored: nothing was parsed,
+            // stored or pushed out to the widgets, Muzei or the watch.  The daily notification
+            // still went out if it was due.
+            setLastSyncResult(context, true);
+        }
+        return storedNew;
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * Fetches and stores the forecast of the locations the user may switch to next, when the
+     * network and today's budget allow, so it shows as soon as they do.  What is prefetched
+     * goes through the response cache and the provider like any other fetch, in a batch of its
+     * own that touches nothing the sync has shown.  It runs on its own thread once the sync is
+     * over.
+     */
+    private void prefetch(List<ForecastRequest> synced) {
+        Context context = getContext();
+        long now = System.currentTimeMillis();
+        if (!ForecastPrefetcher.isAllowed(context, now)) {
+            return;
+        }
+        List<ForecastRequest> candidates = ForecastPrefetcher.chooseCandidates(context, synced);
+        if (candidates.isEmpty()) {
+            return;
+        }
+        List<LocationFetch> fetches = fetchAll(candidates);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<String> stored = new ArrayList<String>(fetches.size());
+        long wireBytes = 0;
+        for (LocationFetch fetch : fetches) {
+            wireBytes += fetch.wireBytes;
+            int locationIndex = -1;
+            if (fetch.outcome == LocationFetch.OUTCOME_PARSED) {
+                locationIndex = fetch.batch.addOperationsTo(operations);
+            }
+            if (fetch.hourlyBatch != null) {
+                fetch.hourlyBatch.addOperationsTo(operations, locationIndex);
+            }
+            if (fetch.outcome == LocationFetch.OUTCOME_PARSED
+                    || fetch.outcome == LocationFetch.OUTCOME_UNCHANGED) {
+                stored.add(fetch.request.locationSetting);
+            }
+        }
+        if (!operations.isEmpty()) {
+            try {
+                context.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                        operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error storing the prefetched forecasts", e);
+                stored.clear();
+            }
+        }
+        if (!stored.isEmpty()) {
+            for (LocationFetch fetch : fetches) {
+                if (fetch.outcome == LocationFetch.OUTCOME_PARSED && fetch.batch.size() > 0) {
+                    fetch.batch.writeSnapshot(context, now,
+                            fetch.days < ForecastRequest.NUM_DAYS);
+                }
+                fetch.saveValidators();
+            }
+        }
+        ForecastPrefetcher.onPrefetched(context, stored, wireBytes, now);
+        Log.d(LOG_TAG, "Prefetched " + stored + ", " + wireBytes + " bytes");
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Sets the parser used by following syncs.  The streaming parser is the default; the
+     * JSONObject one is kept so the two can be compared on the same payloads.
+     */
+    public static void setParserType(@ParserType int parserType) {
+        sParserType = parserType;
+    }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+    /**
+     * Hands the sync requests that follow to {@code requester}.  Null restores the sync
+     * manager.
+     */
+    static void setSyncRequester(SyncRequester requester) {
+        sSyncRequester = requester != null ? requester : SYNC_MANAGER;
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    /**
+     * @return the location the sync in flight is fetching, or null if no sync is running or it
+     * is past its fetches.
+     */
+    static String getSyncingLocation() {
+        List<String> locations = sSyncingLocations;
+        return locations != null ? locations.get(0) : null;
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    private static List<String> getLocationSettings(List<ForecastRequest> requests) {
+        List<String> locations = new ArrayList<String>(requests.size());
+        for (ForecastRequest request : requests) {
+            locations.add(request.locationSetting);
+        }
+        return locations;
+    }
 
-                ContentValues weatherValues = new ContentValues();
+    /**
+     * @return true if a request to sync immediately is waiting out the coalescing window.
+     */
+    static boolean isSyncRequestPending() {
+        synchronized (sSyncRequestLock) {
+            return sPendingSyncRequest != null;
+        }
+    }
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+    /**
+     * Sets the forecast URL following syncs fetch from, e.g. a local stand-in for
+     * OpenWeatherMap.  Null restores the real one.
+     */
+    public static void setForecastBaseUrl(String baseUrl) {
+        ForecastRequest.setBaseUrl(baseUrl);
+    }
 
-                cVVector.add(weatherValues);
+    static ForecastParser createForecastParser(@ParserType int parserType) {
+        // JsonReader is only available from Honeycomb on.
+        if (parserType == PARSER_STREAMING
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return new StreamingForecastParser();
+        }
+        return new JsonObjectForecastParser();
+    }
 
-                if(i == 0) {
-                    // DO it only once
-                    information = new WeatherInformation(high, low, description, weatherId);
-                    updateWatchFace(information);
-                }
-            }
+    /**
+     * Pushes the preferred location's forecast to whatever shows it, skipping the consumers
+     * that would show the same thing as before.  When the sync stored nothing new, that is
+     * everything but the daily notification, which goes out whenever it is due.
+     *
+     * @return true if the sync stored something new for the preferred location.
+     */
+    private boolean fanOut(LocationFetch preferred, SyncSignals signals) {
+        Context context = getContext();
+        final ForecastBatch batch = preferred.outcome == LocationFetch.OUTCOME_PARSED
+                && preferred.batch.size() > 0 ? preferred.batch : null;
+        SyncChangeSet changeSet = batch != null
+                ? SyncChangeSet.compute(context, batch, preferred.days < ForecastRequest.NUM_DAYS)
+                : SyncChangeSet.unchanged();
+        signals.changedDays = changeSet.getChangedDays();
+        signals.fetchedDays = batch != null ? batch.size() : 0;
+        if (isNotificationDue(context)) {
+            changeSet.add(SyncChangeSet.NOTIFICATION_DUE);
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        // Only read by the consumers of a changed forecast, which don't run without a batch.
+        final WeatherInformation today = batch != null ? batch.getToday() : null;
+        final int todayWeatherId = batch != null ? batch.getTodayWeatherId() : 0;
+        long fanOutStart = SystemClock.elapsedRealtime();
+        new SyncFanOut()
+                .add("widgets", SyncChangeSet.FORECAST, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateWidgets();
+                    }
+                })
+                .add("Muzei source", SyncChangeSet.CONDITION, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateMuzei();
+                    }
+                })
+                .add("notification", SyncChangeSet.NOTIFICATION_DUE, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifyWeather();
+                    }
+                })
+                .add("notification art", SyncChangeSet.CONDITION, new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only starts the load, so the next notification finds it cached.
+                        NotificationArtCache.prewarm(getContext(), todayWeatherId);
+                    }
+                })
+                .add("watch face", SyncChangeSet.TODAY, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateWatchFace(today);
+                    }
+                })
+                .run(changeSet, context, mTrace);
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        }
+        mTrace.fanOutMillis = SystemClock.elapsedRealtime() - fanOutStart;
+        return batch != null;
     }
 
     private void updateWidgets() {
@@ -442,185 +636,120 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         String formattedMinTemperature = Utility.formatTemperature(getContext(),
                 information.getMinTemp());
 
-        PutDataMapRequest dataMapRequest = PutDataMapRequest.create(WEATHER_DETAILS_PATH);
-
-        dataMapRequest.getDataMap().putString(MAX_TEMP_KEY, formattedMaxTemperature);
-        dataMapRequest.getDataMap().putString(MIN_TEMP_KEY, formattedMinTemperature);
-        dataMapRequest.getDataMap().putInt(WEATHER_KEY,
-                information.getWeatherArtResourceId());
-
-        PutDataRequest request = dataMapRequest.asPutDataRequest();
-        if(!googleApiClient.isConnected()){
-            googleApiClient.connect();
+        DataMap dataMap = new DataMap();
+        dataMap.putString(MAX_TEMP_KEY, formattedMaxTemperature);
+        dataMap.putString(MIN_TEMP_KEY, formattedMinTemperature);
+        dataMap.putInt(WEATHER_KEY, information.getWeatherArtResourceId());
+
+        WearSyncManager wearSync = WearSyncManager.get(getContext());
+        wearSync.enqueue(WEATHER_DETAILS_PATH, dataMap);
+        // What isn't delivered stays queued; failing the consumer makes the next sync fan the
+        // change out to the watch again.
+        if (!wearSync.flush()) {
+            throw new IllegalStateException("The weather could not be put to the data layer");
         }
-        Log.d(LOG_TAG, "The data has been pushed .");
-        Log.d(LOG_TAG, "Google api client connection status : " + googleApiClient.isConnected());
-        Wearable.DataApi.putDataItem(googleApiClient, request).setResultCallback(
-                new ResultCallback<DataApi.DataItemResult>() {
-                    @Override
-                    public void onResult(DataApi.DataItemResult dataItemResult) {
-                        Log.d(LOG_TAG, "The status of result is " +
-                                dataItemResult.getStatus().toString());
-                    }
-                }
-        );
     }
 
-    private void notifyWeather() {
-        Context context = getContext();
+    /**
+     * @return true if notifications are enabled and the last one is more than a day old.
+     */
+    private static boolean isNotificationDue(Context context) {
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
         boolean displayNotifications = prefs.getBoolean(displayNotificationsKey,
                 Boolean.parseBoolean(context.getString(R.string.pref_enable_notifications_default)));
+        if (!displayNotifications) {
+            return false;
+        }
 
-        if ( displayNotifications ) {
+        String lastNotificationKey = context.getString(R.string.pref_last_notification);
+        long lastSync = prefs.getLong(lastNotificationKey, 0);
+        return System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS;
+    }
 
-            String lastNotificationKey = context.getString(R.string.pref_last_notification);
-            long lastSync = prefs.getLong(lastNotificationKey, 0);
+    private void notifyWeather() {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String lastNotificationKey = context.getString(R.string.pref_last_notification);
+
+        if ( isNotificationDue(context) ) {
+            // Last sync was more than 1 day ago, let's send a notification with the weather.
+            String locationQuery = Utility.getPreferredLocation(context);
 
-            if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-                // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
+            long now = System.currentTimeMillis();
 
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+            // The snapshot the sync just wrote has today's values, without a query.
+            ForecastSnapshot snapshot = ForecastSnapshot.read(context, locationQuery);
+            int today = snapshot != null ? snapshot.findDay(now) : -1;
+            Cursor cursor = null;
+            if (today == -1 || snapshot.getDate(today) != WeatherContract.normalizeDate(now)) {
+                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, now);
 
                 // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
-
-                    int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-                    Resources resources = context.getResources();
-                    int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-                    String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-                    // On Honeycomb and higher devices, we can retrieve the size of the large icon
-                    // Prior to that, we use a fixed size
-                    @SuppressLint("InlinedApi")
-                    int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-                    @SuppressLint("InlinedApi")
-                    int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                            ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                            : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-
-                    // Retrieve the large icon
-                    Bitmap largeIcon;
-                    try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                        largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-                    }
-                    String title = context.getString(R.string.app_name);
-
-                    // Define the text of the forecast.
-                    String contentText = String.format(context.getString(R.string.format_notification),
-                            desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
-
-                    // NotificationCompatBuilder is a very convenient way to build backward-compatible
-                    // notifications.  Just throw in some data.
-                    NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
-                                    .setColor(resources.getColor(R.color.primary_light))
-                                    .setSmallIcon(iconId)
-                                    .setLargeIcon(largeIcon)
-                                    .setContentTitle(title)
-                                    .setContentText(contentText);
-
-                    // Make something interesting happen when the user clicks on the notification.
-                    // In this case, opening the app is sufficient.
-                    Intent resultIntent = new Intent(context, MainActivity.class);
-
-                    // The stack builder object will contain an artificial back stack for the
-                    // started Activity.
-                    // This ensures that navigating backward from the Activity leads out of
-                    // your application to the Home screen.
-                    TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-                    stackBuilder.addNextIntent(resultIntent);
-                    PendingIntent resultPendingIntent =
-                            stackBuilder.getPendingIntent(
-                                    0,
-                                    PendingIntent.FLAG_UPDATE_CURRENT
-                            );
-                    mBuilder.setContentIntent(resultPendingIntent);
-
-                    NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
-                    // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
-                    mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
-
-                    //refreshing last sync
-                    SharedPreferences.Editor editor = prefs.edit();
-                    editor.putLong(lastNotificationKey, System.currentTimeMillis());
-                    editor.commit();
-                }
-                cursor.close();
+                cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+                today = -1;
             }
-        }
-    }
-
-    /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+            if (today != -1 || cursor.moveToFirst()) {
+                int weatherId = today != -1 ? snapshot.getWeatherId(today) : cursor.getInt(INDEX_WEATHER_ID);
+                double high = today != -1 ? snapshot.getHigh(today) : cursor.getDouble(INDEX_MAX_TEMP);
+                double low = today != -1 ? snapshot.getLow(today) : cursor.getDouble(INDEX_MIN_TEMP);
+                String desc = today != -1 ? snapshot.getDescription(today) : cursor.getString(INDEX_SHORT_DESC);
+
+                int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                Resources resources = context.getResources();
+                // Cached artwork, or the bundled art if the art pack host is slow to answer.
+                Bitmap largeIcon = NotificationArtCache.get(context, weatherId);
+                String title = context.getString(R.string.app_name);
+
+                // Define the text of the forecast.
+                String contentText = String.format(context.getString(R.string.format_notification),
+                        desc,
+                        Utility.formatTemperature(context, high),
+                        Utility.formatTemperature(context, low));
+
+                // NotificationCompatBuilder is a very convenient way to build backward-compatible
+                // notifications.  Just throw in some data.
+                NotificationCompat.Builder mBuilder =
+                        new NotificationCompat.Builder(getContext())
+                                .setColor(resources.getColor(R.color.primary_light))
+                                .setSmallIcon(iconId)
+                                .setLargeIcon(largeIcon)
+                                .setContentTitle(title)
+                                .setContentText(contentText);
+
+                // Make something interesting happen when the user clicks on the notification.
+                // In this case, opening the app is sufficient.
+                Intent resultIntent = new Intent(context, MainActivity.class);
+
+                // The stack builder object will contain an artificial back stack for the
+                // started Activity.
+                // This ensures that navigating backward from the Activity leads out of
+                // your application to the Home screen.
+                TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+                stackBuilder.addNextIntent(resultIntent);
+                PendingIntent resultPendingIntent =
+                        stackBuilder.getPendingIntent(
+                                0,
+                                PendingIntent.FLAG_UPDATE_CURRENT
+                        );
+                mBuilder.setContentIntent(resultPendingIntent);
+
+                NotificationManager mNotificationManager =
+                        (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+                // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
+                mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
+
+                //refreshing last sync
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putLong(lastNotificationKey, System.currentTimeMillis());
+                editor.commit();
+            }
+            if (cursor != null) {
+                cursor.close();
+            }
         }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
     }
 
     /**
@@ -643,15 +772,70 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Requests that come in a burst,
+     * e.g. while the location is being edited, are collapsed into one sync of the location
+     * set by the last of them.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (sSyncRequestLock) {
+            if (sPendingSyncRequest != null) {
+                sSyncRequestHandler.removeCallbacks(sPendingSyncRequest);
+                sCoalescedSyncRequests++;
+            }
+            sPendingSyncRequest = new Runnable() {
+                @Override
+                public void run() {
+                    int coalesced;
+                    synchronized (sSyncRequestLock) {
+                        if (sPendingSyncRequest != this) {
+                            return;
+                        }
+                        sPendingSyncRequest = null;
+                        coalesced = sCoalescedSyncRequests;
+                        sCoalescedSyncRequests = 0;
+                    }
+                    if (coalesced > 0) {
+                        Log.d(SunshineSyncAdapter.class.getSimpleName(), "Collapsed "
+                                + (coalesced + 1) + " sync requests into one");
+                    }
+                    requestSync(appContext);
+                }
+            };
+            sSyncRequestHandler.postDelayed(sPendingSyncRequest, SYNC_COALESCE_WINDOW_MILLIS);
+        }
+    }
+
+    private static void requestSync(Context context) {
+        // The sync reads the locations when it starts, so these are the latest ones.
+        List<String> locations =
+                getLocationSettings(ForecastRequest.forTrackedLocations(context));
+        SyncRequester requester = sSyncRequester;
+
+        // Only set while the sync in flight is still fetching; once it has fetched, the sync
+        // manager runs this request after it.
+        List<String> syncingLocations = sSyncingLocations;
+        if (syncingLocations != null) {
+            if (syncingLocations.equals(locations)) {
+                // The sync in flight is yet to fetch what this one would.
+                return;
+            }
+            if (!syncingLocations.get(0).equals(locations.get(0))) {
+                // The sync in flight is for a location that is no longer wanted.  If only the
+                // tracked locations changed, its preferred one is still worth storing.
+                requester.cancelSync(context);
+            }
+        }
+
+        requester.requestSync(context, createManualSyncExtras());
+    }
+
+    private static Bundle createManualSyncExtras() {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        ContentResolver.requestSync(getSyncAccount(context),
-                context.getString(R.string.content_authority), bundle);
+        return bundle;
     }
 
     /**
@@ -663,6 +847,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @return a fake account.
      */
     public static Account getSyncAccount(Context context) {
+        // Once the account is known to exist there's no need to ask the account service again.
+        Account account = sSyncAccount;
+        if (account != null) {
+            return account;
+        }
+
         // Get an instance of the Android account manager
         AccountManager accountManager =
                 (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
@@ -690,6 +880,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
             onAccountCreated(newAccount, context);
         }
+        sSyncAccount = newAccount;
         return newAccount;
     }
 
@@ -697,7 +888,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        int syncInterval = (int) SyncScheduler.getInterval(context);
+        SunshineSyncAdapter.configurePeriodicSync(context, syncInterval, syncInterval / 3);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -726,4 +918,23 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
         spe.commit();
     }
+
+    /**
+     * Records when the last successful sync ran and whether it was a no-op, i.e. the server
+     * had nothing newer than what we already stored.  This function should not be called from
+     * the UI thread because it uses commit to write to the shared preferences.
+     * @param c Context to get the PreferenceManager from.
+     * @param noOp true if nothing was stored
+     */
+    static private void setLastSyncResult(Context c, boolean noOp) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        SharedPreferences.Editor spe = sp.edit();
+        spe.putLong(c.getString(R.string.pref_last_sync_key), System.currentTimeMillis());
+        spe.putBoolean(c.getString(R.string.pref_last_sync_noop_key), noOp);
+        if (noOp) {
+            String noOpCountKey = c.getString(R.string.pref_sync_noop_count_key);
+            spe.putInt(noOpCountKey, sp.getInt(noOpCountKey, 0) + 1);
+        }
+        spe.commit();
+    }
 }
\ No newline at end of file
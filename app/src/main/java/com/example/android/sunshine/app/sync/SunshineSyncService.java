@@ -2,9 +2,16 @@ package com.example.android.sunshine.app.sync;
 
 import android.app.Service;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.QueryCache;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class SunshineSyncService extends Service {
     private static final Object sSyncAdapterLock = new Object();
     private static SunshineSyncAdapter sSunshineSyncAdapter = null;
@@ -23,4 +30,47 @@ public class SunshineSyncService extends Service {
     public IBinder onBind(Intent intent) {
         return sSunshineSyncAdapter.getSyncAdapterBinder();
     }
-}
\ No newline at end of file
+
+    /**
+     * Prints the recent sync traces, newest first, the state of the endpoints' circuit breakers,
+     * how well the response cache and the prefetching do and how deliveries to the watch go:
+     * adb shell dumpsys activity service SunshineSyncService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Recent syncs:");
+        Cursor cursor = getContentResolver().query(WeatherContract.SyncTraceEntry.CONTENT_URI,
+                null, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.getCount() == 0) {
+                    writer.println("  none");
+                }
+                while (cursor.moveToNext()) {
+                    writer.print(" ");
+                    for (int i = 0; i < cursor.getColumnCount(); i++) {
+                        writer.print(" " + cursor.getColumnName(i) + "=" + cursor.getString(i));
+                    }
+                    writer.println();
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        writer.println("Endpoints:");
+        EndpointCircuitBreaker.dumpAll(writer);
+
+        writer.println("Response cache:");
+        ForecastResponseCache.get(this).dump(writer);
+
+        writer.println("Prefetch:");
+        ForecastPrefetcher.dump(this, writer);
+
+        writer.println("Watch:");
+        WearSyncManager.get(this).dump(writer);
+
+        writer.println("Query cache:");
+        QueryCache.dump(writer);
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.HashMap;
+
+/**
+ * What a sync changed about the preferred location, compared with what was last pushed out to
+ * the consumers of the forecast.  Each aspect is reduced to a key, and the keys of the last
+ * fan-out are kept in their own preferences file.  The forecast's key lists the date and hash
+ * of every day, so a fetch of only the first days can be merged with the rest, along with what
+ * the day shows: its condition icon and its high and low.
+ *
+ * Any change to a day's values makes the forecast change for the consumers, but only a
+ * change a user would notice, to the icon or by a degree or more, counts as a changed day
+ * for the sync period.  A day that is new to the forecast, as the last one is after midnight,
+ * is not a changed day either.
+ */
+class SyncChangeSet {
+
+    // Any of the stored days.
+    static final int FORECAST = 1;
+    // Today's values, as shown by the watch face.
+    static final int TODAY = 1 << 1;
+    // Today's condition artwork, as shown by Muzei.
+    static final int CONDITION = 1 << 2;
+    // The once a day notification is due, whether or not anything changed.
+    static final int NOTIFICATION_DUE = 1 << 3;
+
+    private static final String PREFS_NAME = "sync_fan_out";
+
+    private static final String KEY_TODAY = "today";
+    private static final String KEY_CONDITION = "condition";
+    private static final String KEY_DAYS = "days";
+
+    // The fields of a day in the forecast's key: date, hash, icon, high and low.
+    private static final int DAY_FIELDS = 5;
+    private static final int FIELD_DATE = 0;
+    private static final int FIELD_ICON = 2;
+    private static final int FIELD_HIGH = 3;
+    private static final int FIELD_LOW = 4;
+    // Temperatures are kept in tenths of a degree Celsius; a change of a degree is noticeable.
+    private static final int NOTICEABLE_TENTHS = 10;
+
+    private final String mTodayKey;
+    private final String mConditionKey;
+    private final String mDaysKey;
+    private int mChanges;
+    private int mChangedDays;
+
+    private SyncChangeSet(String todayKey, String conditionKey, String daysKey) {
+        mTodayKey = todayKey;
+        mConditionKey = conditionKey;
+        mDaysKey = daysKey;
+    }
+
+    /**
+     * @return the change set of a sync that stored nothing new for the preferred location.
+     */
+    static SyncChangeSet unchanged() {
+        return new SyncChangeSet(null, null, null);
+    }
+
+    /**
+     * Compares a freshly stored forecast of the preferred location with the last one fanned out.
+     *
+     * @param nearTermOnly whether the batch is only the first days of the forecast, the rest
+     * of which is still the one last fanned out.
+     */
+    static SyncChangeSet compute(Context context, ForecastBatch batch, boolean nearTermOnly) {
+        SharedPreferences prefs = getPreferences(context);
+        String previousDays = prefs.getString(KEY_DAYS, "");
+
+        // Formatted temperatures depend on the units, so switching them changes what is shown.
+        String prefix = batch.getLocationSetting() + "|" + Utility.isMetric(context) + "|";
+        StringBuilder days = new StringBuilder(prefix);
+        for (int i = 0; i < batch.size(); i++) {
+            days.append(Long.toHexString(batch.getDate(i))).append(':')
+                    .append(Long.toHexString(batch.getDayHash(i))).append(':')
+                    .append(getIconName(context, batch.getWeatherId(i))).append(':')
+                    .append(Math.round(batch.getHigh(i) * 10)).append(':')
+                    .append(Math.round(batch.getLow(i) * 10)).append(',');
+        }
+        if (nearTermOnly && previousDays.startsWith(prefix)) {
+            long lastDate = batch.getDate(batch.size() - 1);
+            for (String day : TextUtils.split(previousDays.substring(prefix.length()), ",")) {
+                int separator = day.indexOf(':');
+                if (separator > 0 && Long.parseLong(day.substring(0, separator), 16) > lastDate) {
+                    days.append(day).append(',');
+                }
+            }
+        }
+        SyncChangeSet changeSet = new SyncChangeSet(
+                prefix + Long.toHexString(batch.getTodayHash()),
+                batch.getLocationSetting() + "|"
+                        + Utility.getArtUrlForWeatherCondition(context, batch.getTodayWeatherId()),
+                days.toString());
+
+        if (!changeSet.mDaysKey.equals(previousDays)) {
+            changeSet.mChanges |= FORECAST;
+        }
+        if (!changeSet.mTodayKey.equals(prefs.getString(KEY_TODAY, null))) {
+            changeSet.mChanges |= TODAY;
+        }
+        if (!changeSet.mConditionKey.equals(prefs.getString(KEY_CONDITION, null))) {
+            changeSet.mChanges |= CONDITION;
+        }
+        changeSet.mChangedDays = countChangedDays(previousDays, changeSet.mDaysKey,
+                prefix.length());
+        return changeSet;
+    }
+
+    /**
+     * @return the name of the icon shown for the condition, which unlike its resource id stays
+     * the same from one version of the app to the next.
+     */
+    private static String getIconName(Context context, int weatherId) {
+        int icon = Utility.getIconResourceForWeatherCondition(weatherId);
+        return icon == -1 ? "none" : context.getResources().getResourceEntryName(icon);
+    }
+
+    /**
+     * @return how many of the days in {@code days} look different from the same date in
+     * {@code previousDays}.
+     */
+    private static int countChangedDays(String previousDays, String days, int prefixLength) {
+        if (!previousDays.regionMatches(0, days, 0, prefixLength)) {
+            // Another location or other units: the forecast didn't change, it was replaced.
+            return 0;
+        }
+        HashMap<String, String[]> previous = new HashMap<String, String[]>();
+        for (String day : TextUtils.split(previousDays.substring(prefixLength), ",")) {
+            String[] fields = TextUtils.split(day, ":");
+            if (fields.length == DAY_FIELDS) {
+                previous.put(fields[FIELD_DATE], fields);
+            }
+        }
+        int changed = 0;
+        for (String day : TextUtils.split(days.substring(prefixLength), ",")) {
+            String[] fields = TextUtils.split(day, ":");
+            String[] before = fields.length == DAY_FIELDS ? previous.get(fields[FIELD_DATE]) : null;
+            if (before != null && isNoticeablyDifferent(before, fields)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isNoticeablyDifferent(String[] before, String[] after) {
+        try {
+            return !before[FIELD_ICON].equals(after[FIELD_ICON])
+                    || Math.abs(Long.parseLong(before[FIELD_HIGH])
+                    - Long.parseLong(after[FIELD_HIGH])) >= NOTICEABLE_TENTHS
+                    || Math.abs(Long.parseLong(before[FIELD_LOW])
+                    - Long.parseLong(after[FIELD_LOW])) >= NOTICEABLE_TENTHS;
+        } catch (NumberFormatException e) {
+            // Not a key this version wrote.
+            return false;
+        }
+    }
+
+    /**
+     * Forgets what was last fanned out, so the next sync pushes everything.
+     */
+    static void clear(Context context) {
+        getPreferences(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    void add(int changes) {
+        mChanges |= changes;
+    }
+
+    int getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * @return whether any day of the forecast changed, noticeably or not.
+     */
+    boolean isForecastChanged() {
+        return (mChanges & FORECAST) != 0;
+    }
+
+    /**
+     * @return the number of days that look different from the same days of the last forecast.
+     */
+    int getChangedDays() {
+        return mChangedDays;
+    }
+
+    /**
+     * Remembers this forecast as the one the consumers show.  This should not be called from
+     * the UI thread because it uses commit to write to the shared preferences.
+     */
+    void save(Context context) {
+        if (mDaysKey == null) {
+            // What the consumers show is still the forecast last saved.
+            return;
+        }
+        getPreferences(context).edit()
+                .putString(KEY_TODAY, mTodayKey)
+                .putString(KEY_CONDITION, mConditionKey)
+                .putString(KEY_DAYS, mDaysKey)
+                .commit();
+    }
+}
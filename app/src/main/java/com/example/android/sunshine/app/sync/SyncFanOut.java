@@ -0,0 +1,145 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands a committed sync to the things that show the forecast: the widgets, Muzei, the
+ * notification and the watch face.  Each consumer declares the changes it cares about and is
+ * skipped when none of them happened; the others run concurrently, so the stage takes about as
+ * long as the slowest of them.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    // How long the sync waits for a consumer before giving up on it.
+    static final long CONSUMER_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final int MAX_PARALLEL_CONSUMERS = 4;
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_PARALLEL_CONSUMERS, MAX_PARALLEL_CONSUMERS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final List<Consumer> mConsumers = new ArrayList<Consumer>();
+    private final long mTimeoutMillis;
+
+    SyncFanOut() {
+        this(CONSUMER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for each consumer.
+     */
+    SyncFanOut(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param interests the {@link SyncChangeSet} changes that make the consumer run.
+     */
+    SyncFanOut add(String name, int interests, Runnable consumer) {
+        mConsumers.add(new Consumer(name, interests, consumer));
+        return this;
+    }
+
+    /**
+     * Runs the consumers interested in the changes of {@code changeSet} and, if every one of
+     * them finished, remembers it as what they show.  Otherwise the next sync finds the same
+     * changes and tries again.
+     *
+     * @return true if every consumer that ran finished.
+     */
+    boolean run(SyncChangeSet changeSet, Context context, SyncTrace trace) {
+        boolean completed = run(changeSet.getChanges(), trace);
+        if (completed) {
+            changeSet.save(context);
+        }
+        return completed;
+    }
+
+    /**
+     * Runs the consumers interested in {@code changes} and waits for them to finish, recording
+     * what became of each in {@code trace}.
+     *
+     * @return true if every consumer that ran finished.
+     */
+    boolean run(int changes, SyncTrace trace) {
+        long start = SystemClock.elapsedRealtime();
+        List<Consumer> running = new ArrayList<Consumer>(mConsumers.size());
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(mConsumers.size());
+        StringBuilder skipped = new StringBuilder();
+        for (Consumer consumer : mConsumers) {
+            if ((consumer.interests & changes) == 0) {
+                skipped.append(' ').append(consumer.name);
+                trace.addConsumer(consumer.name, "skipped");
+                continue;
+            }
+            running.add(consumer);
+            futures.add(sExecutor.submit(consumer));
+        }
+
+        boolean completed = true;
+        StringBuilder timings = new StringBuilder();
+        for (int i = 0; i < futures.size(); i++) {
+            String name = running.get(i).name;
+            try {
+                long millis = futures.get(i).get(mTimeoutMillis, TimeUnit.MILLISECONDS);
+                timings.append(' ').append(name).append(' ').append(millis).append(" ms");
+                trace.addConsumer(name, millis + " ms");
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Error updating the " + name, e);
+                trace.addConsumer(name, "failed");
+                completed = false;
+            } catch (TimeoutException e) {
+                Log.e(LOG_TAG, "Gave up waiting for the " + name);
+                trace.addConsumer(name, "timed out");
+                futures.get(i).cancel(true);
+                completed = false;
+            } catch (InterruptedException e) {
+                for (Future<Long> future : futures) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        Log.d(LOG_TAG, "Fan-out done in " + (SystemClock.elapsedRealtime() - start) + " ms;"
+                + (timings.length() > 0 ? timings : " nothing ran")
+                + (skipped.length() > 0 ? "; unchanged:" + skipped : ""));
+        return completed;
+    }
+
+    private static class Consumer implements Callable<Long> {
+        final String name;
+        final int interests;
+        private final Runnable mRunnable;
+
+        Consumer(String name, int interests, Runnable runnable) {
+            this.name = name;
+            this.interests = interests;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public Long call() {
+            long start = SystemClock.elapsedRealtime();
+            mRunnable.run();
+            return SystemClock.elapsedRealtime() - start;
+        }
+    }
+}
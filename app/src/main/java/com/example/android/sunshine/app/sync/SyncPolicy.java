@@ -0,0 +1,14 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Decides how long to wait until the next periodic sync.  Policies must not depend on anything
+ * but their arguments, so the tests' SyncSimulator can compare them offline.
+ */
+interface SyncPolicy {
+
+    /**
+     * @param currentInterval the period the last sync was scheduled with, in seconds.
+     * @return the period until the next sync, in seconds.
+     */
+    long nextInterval(long currentInterval, SyncSignals signals);
+}
@@ -0,0 +1,167 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+
+/**
+ * Picks the period of the periodic sync after every sync, using a pluggable {@link SyncPolicy}.
+ * It also keeps counters of the wakeups and bytes the periodic syncs cost, and of the bytes
+ * saved compared with syncing every {@link SunshineSyncAdapter#SYNC_INTERVAL} seconds; syncs
+ * the user or the app asked for would have run with any period.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // Bounds of the sync period, in seconds.
+    static final long MIN_SYNC_INTERVAL = 60 * 60;
+    static final long MAX_SYNC_INTERVAL = 60 * 60 * 12;
+
+    // The periodic sync is only registered again when its period moves by more than this.
+    private static final float RESCHEDULE_THRESHOLD = 0.1f;
+
+    private static final String PREFS_NAME = "sync_scheduler";
+
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_NO_OP_RATE = "no_op_rate";
+    private static final String KEY_WAKEUPS = "wakeups";
+    private static final String KEY_WIRE_BYTES = "wire_bytes";
+    private static final String KEY_COUNTING_SINCE = "counting_since";
+
+    private static volatile SyncPolicy sPolicy =
+            new AdaptiveSyncPolicy(MIN_SYNC_INTERVAL, MAX_SYNC_INTERVAL);
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * Sets the policy used after following syncs.
+     */
+    static void setPolicy(SyncPolicy policy) {
+        sPolicy = policy;
+    }
+
+    /**
+     * @return the current period of the periodic sync, in seconds.
+     */
+    static long getInterval(Context context) {
+        return getPreferences(context).getLong(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * Remembers that the app was just in the foreground.
+     */
+    public static void recordAppUse(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(context.getString(R.string.pref_last_app_use_key),
+                        System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Counts the sync, fills in the signals it can't know itself and reschedules the periodic
+     * sync with the period the policy picks.  This should not be called from the UI thread
+     * because it uses commit to write to the shared preferences.
+     *
+     * @param wireBytes the bytes the sync downloaded.
+     * @param periodic whether it was a periodic sync, rather than one asked for.
+     */
+    static void onSyncFinished(Context context, SyncSignals signals, long wireBytes,
+                               boolean periodic) {
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        float noOpRate = prefs.getFloat(KEY_NO_OP_RATE, 0);
+        if (!signals.failed) {
+            noOpRate = SyncSignals.updateNoOpRate(noOpRate, signals.noOp);
+            editor.putFloat(KEY_NO_OP_RATE, noOpRate);
+        }
+        signals.noOpRate = noOpRate;
+        signals.charging = isCharging(context);
+        signals.unmetered = isUnmetered(context);
+        long lastAppUse = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(context.getString(R.string.pref_last_app_use_key), -1);
+        signals.millisSinceAppUse = lastAppUse < 0 ? -1
+                : Math.max(0, System.currentTimeMillis() - lastAppUse);
+
+        long countingSince = prefs.getLong(KEY_COUNTING_SINCE, 0);
+        if (countingSince == 0) {
+            countingSince = System.currentTimeMillis();
+            editor.putLong(KEY_COUNTING_SINCE, countingSince);
+        }
+        int wakeups = prefs.getInt(KEY_WAKEUPS, 0);
+        long totalWireBytes = prefs.getLong(KEY_WIRE_BYTES, 0);
+        if (periodic) {
+            wakeups++;
+            totalWireBytes += wireBytes;
+            editor.putInt(KEY_WAKEUPS, wakeups);
+            editor.putLong(KEY_WIRE_BYTES, totalWireBytes);
+        }
+
+        long interval = getInterval(context);
+        long nextInterval = sPolicy.nextInterval(interval, signals);
+        boolean reschedule = Math.abs(nextInterval - interval) > interval * RESCHEDULE_THRESHOLD;
+        if (reschedule) {
+            editor.putLong(KEY_INTERVAL, nextInterval);
+        }
+        editor.commit();
+
+        if (reschedule) {
+            SunshineSyncAdapter.configurePeriodicSync(context, (int) nextInterval,
+                    (int) (nextInterval / 3));
+        }
+        Log.d(LOG_TAG, "Next sync in " + (reschedule ? nextInterval : interval) + " s (no-op rate "
+                + noOpRate + ", " + signals.changedDays + " of " + signals.fetchedDays
+                + " day(s) changed); " + wakeups + " periodic wakeups and " + totalWireBytes
+                + " bytes so far, ~"
+                + getBytesSaved(countingSince, wakeups, totalWireBytes) + " bytes saved");
+    }
+
+    /**
+     * @return the bytes a fixed period would have downloaded on top of what was, assuming
+     * every sync costs about the same.
+     */
+    private static long getBytesSaved(long countingSince, int wakeups, long wireBytes) {
+        if (wakeups == 0) {
+            return 0;
+        }
+        long fixedWakeups = 1 + (System.currentTimeMillis() - countingSince)
+                / (SunshineSyncAdapter.SYNC_INTERVAL * 1000L);
+        return Math.max(0, (fixedWakeups - wakeups) * (wireBytes / wakeups));
+    }
+
+    private static boolean isCharging(Context context) {
+        // ACTION_BATTERY_CHANGED is sticky, so this just reads the last battery state.
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static boolean isUnmetered(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnected()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return !cm.isActiveNetworkMetered();
+        }
+        return activeNetwork.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
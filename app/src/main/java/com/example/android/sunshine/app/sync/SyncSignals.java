@@ -0,0 +1,36 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * What a {@link SyncPolicy} knows when it picks the period until the next sync: how the last
+ * syncs went, the state of the device and how recently the app was used.
+ */
+class SyncSignals {
+
+    // Weight of the latest sync in the recent no-op rate.
+    static final float NO_OP_RATE_WEIGHT = 0.25f;
+
+    // The last sync failed, so it says nothing about how often the forecast changes.
+    boolean failed;
+    // The last sync changed nothing a user would notice, i.e. no day of the preferred
+    // location's forecast changed.
+    boolean noOp;
+    // Fraction of recent syncs that were no-ops, between 0 and 1.
+    float noOpRate;
+    // Days of the preferred location's forecast that changed noticeably in the last sync, out
+    // of the fetchedDays it fetched.
+    int changedDays;
+    int fetchedDays;
+
+    boolean charging;
+    boolean unmetered;
+
+    // Time since the app was last in the foreground, or -1 if it never was.
+    long millisSinceAppUse = -1;
+
+    /**
+     * @return the recent no-op rate once a sync with the given outcome is taken into account.
+     */
+    static float updateNoOpRate(float noOpRate, boolean noOp) {
+        return noOpRate * (1 - NO_OP_RATE_WEIGHT) + (noOp ? NO_OP_RATE_WEIGHT : 0);
+    }
+}
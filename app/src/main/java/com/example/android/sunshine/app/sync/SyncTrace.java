@@ -0,0 +1,135 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncTraceEntry;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+/**
+ * Where the time of one sync went, stage by stage.  The fetch stage runs the locations
+ * concurrently, so its connect, first byte, download and parse times are summed over the
+ * locations and can add up to more than the stage itself.
+ */
+class SyncTrace {
+
+    // Wall clock time the sync started at.
+    long startedAt;
+    int locations;
+    // One of the SyncTraceEntry.OUTCOME_ values.
+    String outcome = SyncTraceEntry.OUTCOME_FAILED;
+
+    long fetchMillis;
+    long connectMillis;
+    long ttfbMillis;
+    long downloadMillis;
+    long parseMillis;
+    long wireBytes;
+    int cacheHits;
+    int shortFetches;
+    int parsedRows;
+
+    long commitMillis;
+    long locationResolveMillis;
+    long dbWriteMillis;
+    long retentionDeleteMillis;
+    int rowsWritten;
+    int rowsUpdated;
+    int rowsUnchanged;
+    int hourlyRowsWritten;
+    int rowsDeleted;
+
+    long fanOutMillis;
+    // What became of each fan-out consumer.
+    private final StringBuilder mConsumers = new StringBuilder();
+
+    long totalMillis;
+
+    void addFetch(LocationFetch fetch) {
+        connectMillis += fetch.connectMillis;
+        ttfbMillis += fetch.ttfbMillis;
+        downloadMillis += fetch.downloadMillis;
+        parseMillis += fetch.parseMillis;
+        wireBytes += fetch.wireBytes;
+        if (fetch.fromCache) {
+            cacheHits++;
+        }
+        if (fetch.days < ForecastRequest.NUM_DAYS) {
+            shortFetches++;
+        }
+    }
+
+    /**
+     * Splits the commit stage up by what its batch spent its time on.
+     */
+    void addBatch(WeatherProvider.BatchTimings timings) {
+        if (timings == null) {
+            // The provider runs in another process and can't tell us.
+            return;
+        }
+        locationResolveMillis += timings.locationResolveMillis;
+        dbWriteMillis += timings.writeMillis;
+        retentionDeleteMillis += timings.deleteMillis;
+        rowsWritten += timings.rowsWritten;
+        rowsUpdated += timings.rowsUpdated;
+        rowsUnchanged += timings.rowsUnchanged;
+        hourlyRowsWritten += timings.hourlyRowsWritten;
+        rowsDeleted += timings.rowsDeleted;
+    }
+
+    /**
+     * @param result how long the consumer took, or why it didn't finish.
+     */
+    synchronized void addConsumer(String name, String result) {
+        if (mConsumers.length() > 0) {
+            mConsumers.append(", ");
+        }
+        mConsumers.append(name).append(' ').append(result);
+    }
+
+    synchronized String getConsumers() {
+        return mConsumers.toString();
+    }
+
+    ContentValues toContentValues() {
+        ContentValues values = new ContentValues(SyncTraceEntry.COLUMNS.length);
+        values.put(SyncTraceEntry.COLUMN_STARTED_AT, startedAt);
+        values.put(SyncTraceEntry.COLUMN_OUTCOME, outcome);
+        values.put(SyncTraceEntry.COLUMN_LOCATIONS, locations);
+        values.put(SyncTraceEntry.COLUMN_TOTAL_MS, totalMillis);
+        values.put(SyncTraceEntry.COLUMN_FETCH_MS, fetchMillis);
+        values.put(SyncTraceEntry.COLUMN_CONNECT_MS, connectMillis);
+        values.put(SyncTraceEntry.COLUMN_TTFB_MS, ttfbMillis);
+        values.put(SyncTraceEntry.COLUMN_DOWNLOAD_MS, downloadMillis);
+        values.put(SyncTraceEntry.COLUMN_PARSE_MS, parseMillis);
+        values.put(SyncTraceEntry.COLUMN_COMMIT_MS, commitMillis);
+        values.put(SyncTraceEntry.COLUMN_LOCATION_RESOLVE_MS, locationResolveMillis);
+        values.put(SyncTraceEntry.COLUMN_DB_WRITE_MS, dbWriteMillis);
+        values.put(SyncTraceEntry.COLUMN_RETENTION_DELETE_MS, retentionDeleteMillis);
+        values.put(SyncTraceEntry.COLUMN_FAN_OUT_MS, fanOutMillis);
+        values.put(SyncTraceEntry.COLUMN_CONSUMERS, getConsumers());
+        values.put(SyncTraceEntry.COLUMN_WIRE_BYTES, wireBytes);
+        values.put(SyncTraceEntry.COLUMN_CACHE_HITS, cacheHits);
+        values.put(SyncTraceEntry.COLUMN_SHORT_FETCHES, shortFetches);
+        values.put(SyncTraceEntry.COLUMN_ROWS_PARSED, parsedRows);
+        values.put(SyncTraceEntry.COLUMN_ROWS_WRITTEN, rowsWritten);
+        values.put(SyncTraceEntry.COLUMN_ROWS_UPDATED, rowsUpdated);
+        values.put(SyncTraceEntry.COLUMN_ROWS_UNCHANGED, rowsUnchanged);
+        values.put(SyncTraceEntry.COLUMN_HOURLY_ROWS_WRITTEN, hourlyRowsWritten);
+        values.put(SyncTraceEntry.COLUMN_ROWS_DELETED, rowsDeleted);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return locations + " location(s) in " + totalMillis + " ms (" + outcome + "): fetch "
+                + fetchMillis + " ms (connect " + connectMillis + ", first byte " + ttfbMillis
+                + ", download " + downloadMillis + ", parse " + parseMillis + "), commit "
+                + commitMillis + " ms (locations " + locationResolveMillis + ", write "
+                + dbWriteMillis + ", retention " + retentionDeleteMillis + "), fan-out "
+                + fanOutMillis + " ms (" + getConsumers() + "); " + wireBytes + " bytes, "
+                + cacheHits + " cache hit(s), " + shortFetches + " near-term fetch(es), "
+                + parsedRows + " rows parsed, " + rowsWritten + " written (" + rowsUpdated
+                + " in place, " + rowsUnchanged + " left unchanged) and " + hourlyRowsWritten
+                + " 3-hour days, " + rowsDeleted + " deleted";
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the weather to the watch face over the Wearable data layer.  It owns the one
+ * connection to Google Play services the process uses for that, and the queue of data items
+ * still to be put.  The connection is made by whichever thread flushes the queue, which during
+ * a sync is the {@link SyncFanOut} worker running the watch face consumer, with a bounded wait
+ * that fits the fan-out's timeout, and it is kept between syncs.  Flushes are serialized.
+ *
+ * Queued items are coalesced by path: the watch only ever shows the newest payload of a path,
+ * so a newer one replaces the one waiting.  An item that can't be put stays queued; a flush
+ * retries it with back-off a few times, and leaves it to the next flush after that.
+ */
+class WearSyncManager {
+    private static final String LOG_TAG = WearSyncManager.class.getSimpleName();
+
+    static final long CONNECT_TIMEOUT_MILLIS = 4000;
+    static final long PUT_TIMEOUT_MILLIS = 4000;
+    // Attempts of a flush before it leaves what is still queued to the next one.  With the
+    // timeouts above they fit in the time the fan-out gives a consumer.
+    static final int MAX_ATTEMPTS = 3;
+    static final long BASE_BACKOFF_MILLIS = 500;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({CONNECTED, UNAVAILABLE, FAILED})
+    @interface Connection {}
+
+    static final int CONNECTED = 0;
+    // The device has no Wearable API, so there is no watch to deliver to.
+    static final int UNAVAILABLE = 1;
+    static final int FAILED = 2;
+
+    /**
+     * Where the data items go: the data layer, or a stand-in in tests.
+     */
+    interface Channel {
+        /**
+         * Connects, unless connected already, waiting at most {@code timeoutMillis}.
+         */
+        @Connection
+        int connect(long timeoutMillis);
+
+        /**
+         * @return true if the data item was put.
+         */
+        boolean put(String path, DataMap dataMap, long timeoutMillis);
+    }
+
+    private static class Pending {
+        final DataMap dataMap;
+        final long enqueuedAt;
+
+        Pending(DataMap dataMap, long enqueuedAt) {
+            this.dataMap = dataMap;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static WearSyncManager sInstance;
+
+    private final Channel mChannel;
+
+    // The newest payload of each path, oldest path first; guarded by itself.
+    private final LinkedHashMap<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+    // Only one flush talks to the channel at a time.
+    private final Object mFlushLock = new Object();
+
+    // Guarded by mPending.
+    private int mDelivered;
+    private int mFailures;
+    private int mCoalesced;
+    private long mLastLatencyMillis;
+    private long mMaxLatencyMillis;
+
+    WearSyncManager(Channel channel) {
+        mChannel = channel;
+    }
+
+    static synchronized WearSyncManager get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearSyncManager(
+                    new DataLayerChannel(context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues {@code dataMap} to be put at {@code path}, replacing what is queued for it.
+     */
+    void enqueue(String path, DataMap dataMap) {
+        synchronized (mPending) {
+            // Re-inserting a key keeps its place, so remove it to queue the path last.
+            if (mPending.remove(path) != null) {
+                mCoalesced++;
+            }
+            mPending.put(path, new Pending(dataMap, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Puts the queued data items.  This blocks, so it must not be called from the UI thread.
+     *
+     * @return true if nothing is left to deliver.
+     */
+    boolean flush() {
+        synchronized (mFlushLock) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                if (getPendingCount() == 0) {
+                    return true;
+                }
+                if (attempt > 0) {
+                    try {
+                        Thread.sleep(getBackoffMillis(attempt));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                int connection = mChannel.connect(CONNECT_TIMEOUT_MILLIS);
+                if (connection == UNAVAILABLE) {
+                    synchronized (mPending) {
+                        Log.d(LOG_TAG, "No Wearable API, dropping " + mPending.size()
+                                + " data item(s)");
+                        mPending.clear();
+                    }
+                    return true;
+                }
+                if (connection == FAILED) {
+                    synchronized (mPending) {
+                        mFailures++;
+                    }
+                    continue;
+                }
+                putPending();
+            }
+            int left = getPendingCount();
+            if (left > 0) {
+                Log.e(LOG_TAG, "Gave up delivering " + left + " data item(s) after "
+                        + MAX_ATTEMPTS + " attempts; they wait for the next flush");
+            }
+            return left == 0;
+        }
+    }
+
+    /**
+     * Puts every queued item once, dequeuing those put, unless a newer one came in meanwhile.
+     */
+    private void putPending() {
+        List<Map.Entry<String, Pending>> entries;
+        synchronized (mPending) {
+            entries = new ArrayList<Map.Entry<String, Pending>>(mPending.entrySet());
+        }
+        for (Map.Entry<String, Pending> entry : entries) {
+            String path = entry.getKey();
+            Pending pending = entry.getValue();
+            boolean put = mChannel.put(path, pending.dataMap, PUT_TIMEOUT_MILLIS);
+            synchronized (mPending) {
+                if (!put) {
+                    mFailures++;
+                    continue;
+                }
+                long latency = SystemClock.elapsedRealtime() - pending.enqueuedAt;
+                mDelivered++;
+                mLastLatencyMillis = latency;
+                mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+                if (mPending.get(path) == pending) {
+                    mPending.remove(path);
+                }
+                Log.d(LOG_TAG, "Put " + path + " " + latency + " ms after it was queued");
+            }
+        }
+    }
+
+    static long getBackoffMillis(int attempt) {
+        return BASE_BACKOFF_MILLIS << (attempt - 1);
+    }
+
+    int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    int getDelivered() {
+        synchronized (mPending) {
+            return mDelivered;
+        }
+    }
+
+    int getFailures() {
+        synchronized (mPending) {
+            return mFailures;
+        }
+    }
+
+    int getCoalesced() {
+        synchronized (mPending) {
+            return mCoalesced;
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mPending) {
+            writer.println("  " + mPending.size() + " data item(s) queued, " + mDelivered
+                    + " delivered, " + mFailures + " failed attempt(s), " + mCoalesced
+                    + " coalesced, latency " + mLastLatencyMillis + " ms last, "
+                    + mMaxLatencyMillis + " ms at most");
+        }
+    }
+
+    /**
+     * The Wearable data layer, through a client that stays connected between flushes.
+     */
+    private static class DataLayerChannel implements Channel {
+        private final GoogleApiClient mClient;
+
+        DataLayerChannel(Context context) {
+            mClient = new GoogleApiClient.Builder(context)
+                    .addApi(Wearable.API)
+                    .build();
+        }
+
+        @Override
+        public int connect(long timeoutMillis) {
+            if (mClient.isConnected()) {
+                return CONNECTED;
+            }
+            ConnectionResult result = mClient.blockingConnect(timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+            if (result.isSuccess()) {
+                return CONNECTED;
+            }
+            Log.e(LOG_TAG, "Could not connect to Google Play services: "
+                    + result.getErrorCode() + " " + result.getErrorMessage());
+            switch (result.getErrorCode()) {
+                case ConnectionResult.API_UNAVAILABLE:
+                case ConnectionResult.SERVICE_MISSING:
+                case ConnectionResult.SERVICE_INVALID:
+                case ConnectionResult.SERVICE_DISABLED:
+                case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
+                    return UNAVAILABLE;
+                default:
+                    return FAILED;
+            }
+        }
+
+        @Override
+        public boolean put(String path, DataMap dataMap, long timeoutMillis) {
+            PutDataMapRequest request = PutDataMapRequest.create(path);
+            request.getDataMap().putAll(dataMap);
+            DataApi.DataItemResult result = Wearable.DataApi
+                    .putDataItem(mClient, request.asPutDataRequest())
+                    .await(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!result.getStatus().isSuccess()) {
+                Log.e(LOG_TAG, "Could not put " + path + ": " + result.getStatus());
+                return false;
+            }
+            return true;
+        }
+    }
+}
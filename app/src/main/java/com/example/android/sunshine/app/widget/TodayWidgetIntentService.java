@@ -58,10 +58,9 @@ public class TodayWidgetIntentService extends IntentService {
         int[] appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(this,
                 TodayWidgetProvider.class));
 
-        // Get today's data from the ContentProvider
+        // Get today's data from the sync's snapshot, or the ContentProvider
         String location = Utility.getPreferredLocation(this);
-        WeatherInformation information = WeatherInformation.getWeatherInformation(location,
-                getContentResolver());
+        WeatherInformation information = WeatherInformation.getWeatherInformation(this, location);
 
         if(information == null) return;
 